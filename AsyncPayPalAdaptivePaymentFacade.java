@@ -0,0 +1,19 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link PayPalAdaptivePaymentFacade}. The returned futures
+ * complete with the exception of the call, a {@link NeedsPreApprovalException} from
+ * <code>pay</code> is the cause seen by <code>exceptionally</code> and <code>whenComplete</code>,
+ * and of the <code>ExecutionException</code> thrown by <code>get</code>.
+ */
+public interface AsyncPayPalAdaptivePaymentFacade {
+
+	CompletableFuture<PayPalCustomerPaymentDetails> pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey, String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue);
+
+	CompletableFuture<PayPalPreApprovalResponse> preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment, String cancelUrl, String returnUrl, boolean isRestricted);
+
+	CompletableFuture<Void> updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus, String senderTransactionId, String senderTransactionStatus, Integer orderItemId);
+}
@@ -0,0 +1,17 @@
+package com.usell.platform.web.billing;
+
+import java.io.OutputStream;
+import java.util.Collection;
+
+import com.usell.platform.domain.InvoicePeriod;
+
+public interface BatchInvoiceExcelService extends InvoiceExcelService {
+
+	/**
+	 * Renders every requested invoice of the period and writes each file as an entry of one
+	 * ZIP archive to <code>out</code>. An invoice that fails to render is reported in the
+	 * result and left out of the archive, the other invoices are still exported.
+	 */
+	InvoiceBatchExportResult exportInvoicesToZip(InvoicePeriod invoicePeriod,
+			Collection<InvoiceExportRequest> requests, OutputStream out) throws Exception;
+}
@@ -0,0 +1,180 @@
+package com.usell.platform.web.billing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Renders the invoices of a batch concurrently with the wrapped {@link InvoiceExcelService}
+ * and streams each finished file into a ZIP archive from the calling thread.
+ * <p>
+ * At most <code>maxInFlight</code> invoices are rendering or waiting to be written at any
+ * time. When the limit is reached the caller writes finished files before submitting more,
+ * so memory stays flat however many invoices the batch has.
+ * <p>
+ * Invoices are rendered on the configured executor. Without one, a fixed pool with a thread
+ * per core is created for each batch. On Java 21 and later pass
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code> to render on virtual threads.
+ * <code>maxInFlight</code> still bounds the work in that case.
+ */
+public class BatchInvoiceExcelServiceImpl implements BatchInvoiceExcelService {
+
+	private final InvoiceExcelService invoiceExcelService;
+
+	private ExecutorService executor;
+
+	private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+
+	public BatchInvoiceExcelServiceImpl(InvoiceExcelService invoiceExcelService) {
+		this.invoiceExcelService = invoiceExcelService;
+	}
+
+	@Override
+	public void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Boolean isPowerBuyer, OutputStream out) throws Exception {
+		invoiceExcelService.exportInvoiceToExcel(invoice, invoicePeriod, buyer, isPowerBuyer, out);
+	}
+
+	@Override
+	public InvoiceBatchExportResult exportInvoicesToZip(InvoicePeriod invoicePeriod,
+			Collection<InvoiceExportRequest> requests, OutputStream out) throws Exception {
+
+		ExecutorService renderExecutor = executor;
+		if (renderExecutor == null) {
+			renderExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+
+		try {
+			return export(renderExecutor, invoicePeriod, requests, out);
+		} finally {
+			if (renderExecutor != executor) {
+				renderExecutor.shutdownNow();
+			}
+		}
+	}
+
+	private InvoiceBatchExportResult export(ExecutorService renderExecutor, InvoicePeriod invoicePeriod,
+			Collection<InvoiceExportRequest> requests, OutputStream out) throws Exception {
+
+		CompletionService<RenderedInvoice> completionService = new ExecutorCompletionService<RenderedInvoice>(renderExecutor);
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		ZipOutputStream zip = new ZipOutputStream(out);
+		List<InvoiceExportFailure> failures = new ArrayList<InvoiceExportFailure>();
+		int submitted = 0;
+		int written = 0;
+		int exported = 0;
+
+		for (InvoiceExportRequest request : requests) {
+			//Write finished files until there is room for one more invoice
+			while (!inFlight.tryAcquire()) {
+				exported += writeEntry(zip, completionService.take().get(), failures);
+				written++;
+				inFlight.release();
+			}
+			completionService.submit(new RenderTask(request, invoicePeriod));
+			submitted++;
+		}
+
+		while (written < submitted) {
+			exported += writeEntry(zip, completionService.take().get(), failures);
+			written++;
+		}
+
+		zip.finish();
+		out.flush();
+		out.close();
+		return new InvoiceBatchExportResult(exported, failures);
+	}
+
+	/**
+	 * @return 1 when the invoice was added to the archive, 0 when it was reported as a failure
+	 */
+	private int writeEntry(ZipOutputStream zip, RenderedInvoice rendered, List<InvoiceExportFailure> failures)
+			throws Exception {
+
+		if (rendered.failure != null) {
+			failures.add(new InvoiceExportFailure(rendered.request, rendered.failure));
+			return 0;
+		}
+
+		try {
+			zip.putNextEntry(new ZipEntry(rendered.request.getEntryName()));
+		} catch (ZipException e) {
+			//Duplicate entry name, nothing has been written for this entry yet
+			failures.add(new InvoiceExportFailure(rendered.request, e));
+			return 0;
+		}
+		rendered.content.writeTo(zip);
+		zip.closeEntry();
+		return 1;
+	}
+
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Most invoices rendering or waiting to be written at once. Bounds the memory of a batch
+	 * to about this many rendered files.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	private class RenderTask implements Callable<RenderedInvoice> {
+
+		private final InvoiceExportRequest request;
+
+		private final InvoicePeriod invoicePeriod;
+
+		RenderTask(InvoiceExportRequest request, InvoicePeriod invoicePeriod) {
+			this.request = request;
+			this.invoicePeriod = invoicePeriod;
+		}
+
+		@Override
+		public RenderedInvoice call() {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			try {
+				invoiceExcelService.exportInvoiceToExcel(request.getInvoice(), invoicePeriod, request.getBuyer(),
+						request.getIsPowerBuyer(), content);
+				return new RenderedInvoice(request, content, null);
+			} catch (Throwable e) {
+				return new RenderedInvoice(request, null, e);
+			}
+		}
+	}
+
+	private static class RenderedInvoice {
+
+		private final InvoiceExportRequest request;
+
+		private final ByteArrayOutputStream content;
+
+		private final Throwable failure;
+
+		RenderedInvoice(InvoiceExportRequest request, ByteArrayOutputStream content, Throwable failure) {
+			this.request = request;
+			this.content = content;
+			this.failure = failure;
+		}
+	}
+}
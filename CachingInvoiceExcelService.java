@@ -0,0 +1,106 @@
+package com.usell.platform.web.billing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Serves repeated exports of the same invoice from a cache instead of rendering them again
+ * with the wrapped {@link InvoiceExcelServiceImpl}.
+ * <p>
+ * Entries are keyed by an {@link InvoiceContentDigest} of the value objects of the export,
+ * which covers the invoice rows, the period, the buyer name and <code>isPowerBuyer</code>.
+ * The value objects are built on every call by the wrapped service, with its summary index
+ * and spill settings, and rendered from on a miss. Rendering is skipped on a hit. An invoice
+ * that changed gets a new digest, and the entry of its previous content is dropped when
+ * the new one is stored. {@link #invalidate} drops the entries of an invoice right away.
+ * <p>
+ * Cached files live in memory up to <code>maxMemoryBytes</code> and in <code>directory</code>
+ * up to <code>maxDiskBytes</code>, see {@link InvoiceExportCache}. Use a separate directory
+ * for each configuration of the wrapped service.
+ */
+public class CachingInvoiceExcelService implements InvoiceExcelService {
+
+	public static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+
+	public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+	private final InvoiceExcelServiceImpl invoiceExcelService;
+
+	private final InvoiceExportCache cache;
+
+	/** Latest digest per invoice number and power buyer flag. */
+	private final ConcurrentMap<String, String> currentDigests = new ConcurrentHashMap<String, String>();
+
+	public CachingInvoiceExcelService(InvoiceExcelServiceImpl invoiceExcelService, File directory) throws IOException {
+		this(invoiceExcelService, directory, DEFAULT_MAX_MEMORY_BYTES, DEFAULT_MAX_DISK_BYTES);
+	}
+
+	public CachingInvoiceExcelService(InvoiceExcelServiceImpl invoiceExcelService, File directory, long maxMemoryBytes,
+			long maxDiskBytes) throws IOException {
+		this.invoiceExcelService = invoiceExcelService;
+		this.cache = new InvoiceExportCache(directory.toPath(), maxMemoryBytes, maxDiskBytes);
+	}
+
+	@Override
+	public void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Boolean isPowerBuyer, OutputStream out) throws Exception {
+
+		String digest;
+		String invoiceNumber;
+		try (InvoiceSections sections = invoiceExcelService.buildSections(invoice, invoicePeriod, buyer)) {
+			digest = InvoiceContentDigest.of(sections, isPowerBuyer, invoiceExcelService.getClass().getName());
+			invoiceNumber = sections.getSummary().getInvoiceNumber();
+
+			if (!cache.transferTo(digest, out)) {
+				ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+				invoiceExcelService.writeSections(sections, isPowerBuyer, rendered);
+				byte[] bytes = rendered.toByteArray();
+				cache.put(digest, bytes);
+				out.write(bytes);
+			}
+		}
+
+		if (invoiceNumber != null) {
+			String previous = currentDigests.put(key(invoiceNumber, isPowerBuyer), digest);
+			if (previous != null && !previous.equals(digest)) {
+				cache.remove(previous);
+			}
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * Drops the cached exports of an invoice, for changes the value objects don't show.
+	 */
+	public void invalidate(String invoiceNumber) throws IOException {
+		String[] keys = {key(invoiceNumber, Boolean.TRUE), key(invoiceNumber, Boolean.FALSE)};
+		for (String key : keys) {
+			String digest = currentDigests.remove(key);
+			if (digest != null) {
+				cache.remove(digest);
+			}
+		}
+	}
+
+	public long getMemoryBytes() {
+		return cache.getMemoryBytes();
+	}
+
+	public long getDiskBytes() {
+		return cache.getDiskBytes();
+	}
+
+	private static String key(String invoiceNumber, Boolean isPowerBuyer) {
+		return invoiceNumber + (Boolean.TRUE.equals(isPowerBuyer) ? "/power" : "/standard");
+	}
+}
@@ -0,0 +1,108 @@
+package com.usell.platform.web.billing;
+
+import java.util.Arrays;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Keeps the widest rendered value of every column while rows are written, so a sheet can
+ * be sized once at the end instead of re-measuring every cell with font metrics the way
+ * {@link Sheet#autoSizeColumn(int)} does. Widths are counted in characters.
+ */
+class ColumnWidthEstimator {
+
+	/** Column widths are set in units of 1/256th of a character. */
+	private static final int CHARACTER_UNITS = 256;
+
+	/** Excel refuses columns wider than 255 characters. */
+	static final int MAX_EXCEL_COLUMN_WIDTH = 255;
+
+	/** Digits, decimal point, two decimals and the padding of the currency format. */
+	private static final int CURRENCY_EXTRA_CHARACTERS = 5;
+
+	/** Decimal point, up to two decimals and the percent sign of the percentage format. */
+	private static final int PERCENTAGE_EXTRA_CHARACTERS = 4;
+
+	private static final int PADDING = 1;
+
+	private final int maxColumnWidth;
+
+	private int[] widths = new int[16];
+
+	private int columnCount;
+
+	ColumnWidthEstimator(int maxColumnWidth) {
+		this.maxColumnWidth = Math.min(maxColumnWidth, MAX_EXCEL_COLUMN_WIDTH);
+	}
+
+	/** Header cells use a bold font, which renders roughly an eighth wider. */
+	void trackHeader(Row row) {
+		for (Cell cell : row) {
+			int length = measure(cell);
+			measure(cell.getColumnIndex(), length + (length + 7) / 8);
+		}
+	}
+
+	void track(Row row) {
+		for (Cell cell : row) {
+			measure(cell.getColumnIndex(), measure(cell));
+		}
+	}
+
+	void measureText(int column, String value) {
+		if (value != null) {
+			measure(column, value.length());
+		}
+	}
+
+	void measureNumber(int column, double value) {
+		measure(column, groupedIntegerLength(value) + CURRENCY_EXTRA_CHARACTERS);
+	}
+
+	/**
+	 * @param percentage the percentage shown, 12.5 for 12.5%
+	 */
+	void measurePercentage(int column, double percentage) {
+		measure(column, groupedIntegerLength(percentage) + PERCENTAGE_EXTRA_CHARACTERS);
+	}
+
+	void measure(int column, int characters) {
+		if (column >= widths.length) {
+			widths = Arrays.copyOf(widths, Math.max(column + 1, widths.length * 2));
+		}
+		if (characters > widths[column]) {
+			widths[column] = characters;
+		}
+		if (column >= columnCount) {
+			columnCount = column + 1;
+		}
+	}
+
+	void applyTo(Sheet sheet) {
+		for (int i = 0; i < columnCount; i++) {
+			int width = Math.min(widths[i] + PADDING, maxColumnWidth);
+			sheet.setColumnWidth(i, width * CHARACTER_UNITS);
+		}
+	}
+
+	private static int measure(Cell cell) {
+		if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+			return groupedIntegerLength(cell.getNumericCellValue()) + CURRENCY_EXTRA_CHARACTERS;
+		}
+		String value = cell.getStringCellValue();
+		return value == null ? 0 : value.length();
+	}
+
+	/** Length of the integer part of the value rendered with thousands separators. */
+	static int groupedIntegerLength(double value) {
+		long integerPart = Math.abs((long) value);
+		int digits = 1;
+		while (integerPart >= 10) {
+			integerPart /= 10;
+			digits++;
+		}
+		return digits + (digits - 1) / 3 + (value < 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,233 @@
+package com.usell.platform.web.billing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Writes CSV or TSV rows through one reusable character buffer. Numbers and dates are
+ * written digit by digit into the buffer, so writing a field doesn't allocate.
+ * <p>
+ * CSV fields containing the delimiter, a quote or a line break are quoted. TSV has no
+ * quoting, so tabs and line breaks in TSV fields are written as spaces.
+ * A writer is used by one thread at a time.
+ */
+class DelimitedRowWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Writer out;
+
+	private final char delimiter;
+
+	private final boolean quoted;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int position;
+
+	private boolean firstField = true;
+
+	/** Gregorian whatever the default locale, which could pick a Buddhist or Japanese calendar. */
+	private final Calendar calendar = new GregorianCalendar();
+
+	DelimitedRowWriter(Writer out, char delimiter, boolean quoted) {
+		this.out = out;
+		this.delimiter = delimiter;
+		this.quoted = quoted;
+	}
+
+	void header(String[] columns) throws IOException {
+		for (String column : columns) {
+			text(column);
+		}
+		endRow();
+	}
+
+	void text(String value) throws IOException {
+		startField();
+		if (value == null) {
+			return;
+		}
+		if (quoted && needsQuotes(value)) {
+			append('"');
+			appendEscaped(value);
+			append('"');
+		} else {
+			appendEscaped(value);
+		}
+	}
+
+	/**
+	 * First and last name separated by a space, the way the sheets show customer names.
+	 * Upper-cased with {@link String#toUpperCase()} like the sheets, so a sharp s becomes "SS".
+	 */
+	void fullName(String firstName, String lastName, boolean upperCase) throws IOException {
+		startField();
+		if (upperCase) {
+			firstName = firstName == null ? null : firstName.toUpperCase();
+			lastName = lastName == null ? null : lastName.toUpperCase();
+		}
+		boolean quote = quoted && (needsQuotes(firstName) || needsQuotes(lastName));
+		if (quote) {
+			append('"');
+		}
+		appendEscaped(firstName);
+		append(' ');
+		appendEscaped(lastName);
+		if (quote) {
+			append('"');
+		}
+	}
+
+	/** Money with two decimals and no grouping, e.g. <code>-1234.50</code>. */
+	void money(double value) throws IOException {
+		startField();
+		if (Double.isNaN(value)) {
+			return;
+		}
+		long cents = Math.round(value * 100);
+		if (cents < 0) {
+			append('-');
+			cents = -cents;
+		}
+		appendLong(cents / 100);
+		append('.');
+		long remainder = cents % 100;
+		append((char) ('0' + remainder / 10));
+		append((char) ('0' + remainder % 10));
+	}
+
+	/**
+	 * The percentage as {@link Double#toString(double)} followed by '%', e.g. 1234.5%. The
+	 * sheets show the same value with grouping and at most two decimals, 1,234.5%; the file
+	 * leaves the grouping out, a comma that CSV would have to quote.
+	 */
+	void percentage(double percentage) throws IOException {
+		startField();
+		if (Double.isNaN(percentage)) {
+			return;
+		}
+		long whole = (long) percentage;
+		if (whole == percentage && Math.abs(whole) < 10000000L) {
+			appendLong(whole);
+			append('.');
+			append('0');
+		} else {
+			appendEscaped(Double.toString(percentage));
+		}
+		append('%');
+	}
+
+	/** yyyy-MM-dd */
+	void date(long millis) throws IOException {
+		startField();
+		if (millis == InvoiceColumn.NO_DATE) {
+			return;
+		}
+		calendar.setTimeInMillis(millis);
+		appendPadded(calendar.get(Calendar.YEAR), 4);
+		append('-');
+		appendPadded(calendar.get(Calendar.MONTH) + 1, 2);
+		append('-');
+		appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+	}
+
+	/** MM/dd/yy */
+	void detailsDate(long millis) throws IOException {
+		startField();
+		if (millis == InvoiceColumn.NO_DATE) {
+			return;
+		}
+		calendar.setTimeInMillis(millis);
+		appendPadded(calendar.get(Calendar.MONTH) + 1, 2);
+		append('/');
+		appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+		append('/');
+		appendPadded(calendar.get(Calendar.YEAR) % 100, 2);
+	}
+
+	void endRow() throws IOException {
+		append('\r');
+		append('\n');
+		firstField = true;
+	}
+
+	void flush() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+		out.flush();
+	}
+
+	private void startField() throws IOException {
+		if (!firstField) {
+			append(delimiter);
+		}
+		firstField = false;
+	}
+
+	private boolean needsQuotes(String value) {
+		if (value == null) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == delimiter || c == '"' || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void appendEscaped(String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					append('"');
+				}
+			} else if (c == delimiter || c == '\n' || c == '\r') {
+				c = ' ';
+			}
+			append(c);
+		}
+	}
+
+	private void appendLong(long value) throws IOException {
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			append((char) ('0' + value / divisor % 10));
+			divisor /= 10;
+		}
+	}
+
+	private void appendPadded(int value, int digits) throws IOException {
+		int divisor = 1;
+		for (int i = 1; i < digits; i++) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			append((char) ('0' + value / divisor % 10));
+			divisor /= 10;
+		}
+	}
+
+	private void append(char c) throws IOException {
+		if (position == buffer.length) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+		buffer[position++] = c;
+	}
+}
@@ -0,0 +1,76 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the calls of a blocking {@link PayPalAdaptivePaymentFacade} on an executor, so the
+ * caller's thread is free during the PayPal round trip.
+ * <p>
+ * The executor bounds how many calls are in flight. Use a fixed pool sized for the I/O, or
+ * on Java 21 and later <code>Executors.newVirtualThreadPerTaskExecutor()</code> for a thread
+ * per call. A call the executor rejects fails its future with the
+ * {@link RejectedExecutionException}.
+ */
+public class ExecutorAsyncPayPalAdaptivePaymentFacade implements AsyncPayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final Executor executor;
+
+	public ExecutorAsyncPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade, Executor executor) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<PayPalCustomerPaymentDetails> pay(String senderEmail, String recieverEmail, String amount,
+			String preApprovalKey, String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) {
+		return call(() -> payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey,
+				restrictedPreApprovalKey, orderItemId, isReissue));
+	}
+
+	@Override
+	public CompletableFuture<PayPalPreApprovalResponse> preapproval(String senderEmail, Date startDate, Date endDate,
+			Double maxTotalPayment, String cancelUrl, String returnUrl, boolean isRestricted) {
+		return call(() -> payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate, maxTotalPayment,
+				cancelUrl, returnUrl, isRestricted));
+	}
+
+	@Override
+	public CompletableFuture<Void> updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId,
+			String transactionStatus, String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		return call(() -> {
+			payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId,
+					transactionStatus, senderTransactionId, senderTransactionStatus, orderItemId);
+			return null;
+		});
+	}
+
+	/**
+	 * Completes the future with the exception itself rather than a <code>CompletionException</code>
+	 * around it, so callers can match on the type.
+	 */
+	private <T> CompletableFuture<T> call(PayPalCall<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(call.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private interface PayPalCall<T> {
+
+		T call() throws Exception;
+	}
+}
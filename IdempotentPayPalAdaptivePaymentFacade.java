@@ -0,0 +1,154 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Makes <code>pay</code> safe to retry: an order item is paid at most once per reissue flag.
+ * <p>
+ * A call for a payout already made returns its details from the
+ * {@link PayPalPaymentIdempotencyIndex} or, if the index doesn't know it, from the
+ * {@link PayPalPaymentIdempotencyStore}. Calls arriving while the same payout is in flight
+ * wait for it and share its result or its exception. A call without an order item id is
+ * passed through.
+ * <p>
+ * The store gets an in-flight marker before PayPal is called. It is cleared only when the
+ * payout surely wasn't made: PayPal asked for a pre-approval, or the call was
+ * {@link PayPalCallRejectedException rejected} before it was made. Any other failure, a
+ * timeout for one, leaves the outcome unknown: the call and every later one for the order
+ * item fail with {@link PayPalPaymentOutcomeUnknownException} until {@link #reconciled}
+ * records what PayPal did.
+ */
+public class IdempotentPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final PayPalPaymentIdempotencyIndex index;
+
+	private final PayPalPaymentIdempotencyStore store;
+
+	public IdempotentPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade,
+			PayPalPaymentIdempotencyIndex index, PayPalPaymentIdempotencyStore store) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.index = index;
+		this.store = store;
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+
+		if (orderItemId == null) {
+			return payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey, restrictedPreApprovalKey,
+					orderItemId, isReissue);
+		}
+
+		int id = orderItemId.intValue();
+		boolean reissue = Boolean.TRUE.equals(isReissue);
+		CompletableFuture<PayPalCustomerPaymentDetails> payment = new CompletableFuture<PayPalCustomerPaymentDetails>();
+		CompletableFuture<PayPalCustomerPaymentDetails> existing = index.claim(id, reissue, payment);
+		if (existing != null) {
+			return await(existing);
+		}
+
+		PayPalCustomerPaymentDetails paymentDetails;
+		try {
+			paymentDetails = store.find(orderItemId, reissue);
+			if (paymentDetails == null && !store.markInFlight(orderItemId, reissue)) {
+				// attempted before, by a node that is paying now or failed not knowing the outcome
+				throw new PayPalPaymentOutcomeUnknownException(orderItemId, reissue, null);
+			}
+		} catch (RuntimeException | Error e) {
+			index.failed(id, reissue);
+			payment.completeExceptionally(e);
+			throw e;
+		}
+		if (paymentDetails != null) {
+			index.completed(id, reissue, paymentDetails);
+			payment.complete(paymentDetails);
+			return paymentDetails;
+		}
+
+		try {
+			paymentDetails = payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey,
+					restrictedPreApprovalKey, orderItemId, isReissue);
+		} catch (NeedsPreApprovalException | PayPalCallRejectedException e) {
+			try {
+				store.clearInFlight(orderItemId, reissue);
+			} finally {
+				index.failed(id, reissue);
+				payment.completeExceptionally(e);
+			}
+			throw e;
+		} catch (RuntimeException | Error e) {
+			PayPalPaymentOutcomeUnknownException unknown = new PayPalPaymentOutcomeUnknownException(orderItemId, reissue, e);
+			index.unknown(id, reissue, unknown);
+			payment.completeExceptionally(unknown);
+			throw unknown;
+		}
+
+		// recorded in the index first, so a retry after a failed save doesn't pay again
+		index.completed(id, reissue, paymentDetails);
+		payment.complete(paymentDetails);
+		store.save(orderItemId, reissue, paymentDetails);
+		return paymentDetails;
+	}
+
+	/**
+	 * Settles a payout whose outcome was unknown, once it was checked with PayPal.
+	 *
+	 * @param paymentDetails the payout PayPal made, null if it made none: the order item can be
+	 * paid again then
+	 */
+	public void reconciled(Integer orderItemId, boolean isReissue, PayPalCustomerPaymentDetails paymentDetails) {
+		if (paymentDetails != null) {
+			store.save(orderItemId, isReissue, paymentDetails);
+		} else {
+			store.clearInFlight(orderItemId, isReissue);
+		}
+		index.forget(orderItemId.intValue(), isReissue);
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		return payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate, maxTotalPayment, cancelUrl, returnUrl,
+				isRestricted);
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId, transactionStatus,
+				senderTransactionId, senderTransactionStatus, orderItemId);
+	}
+
+	/**
+	 * Waits for the payout another call is making and rethrows its exception as is.
+	 */
+	private static PayPalCustomerPaymentDetails await(CompletableFuture<PayPalCustomerPaymentDetails> payment)
+			throws NeedsPreApprovalException {
+		try {
+			return payment.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a payout in flight", e);
+		} catch (CancellationException e) {
+			throw new IllegalStateException("Payout in flight was cancelled", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof NeedsPreApprovalException) {
+				throw (NeedsPreApprovalException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
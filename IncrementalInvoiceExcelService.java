@@ -0,0 +1,117 @@
+package com.usell.platform.web.billing;
+
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Exports the running invoice of an open period, building device details only for the order
+ * items added since the previous export of the same invoice. The export goes through the
+ * wrapped {@link InvoiceExcelServiceImpl} like a full one, with its summary index, section
+ * executor, spill and metrics settings, only the device details are taken from an
+ * {@link InvoiceSnapshot}. The file is the same as a full export.
+ * <p>
+ * A snapshot is kept per invoice period and buyer. Exports of the same invoice are serialized,
+ * exports of different invoices run concurrently. An invoice whose device details the builder
+ * can't be shown to build one order item at a time is remembered and always exported in full.
+ * At most {@link #setMaxSnapshots maxSnapshots} invoices are kept, the least recently exported
+ * are dropped first; {@link #discard} drops one as its period closes.
+ * <p>
+ * Snapshots are kept on the heap only, not persisted: after a restart the first export of
+ * each invoice is a full one. Closed invoices are persisted as an {@link InvoiceExportSnapshot}.
+ */
+public class IncrementalInvoiceExcelService implements InvoiceExcelService {
+
+	private final InvoiceExcelServiceImpl invoiceExcelService;
+
+	/** Kept for invoices that can't be exported incrementally. */
+	private static final InvoiceSnapshot FULL_EXPORT = new InvoiceSnapshot();
+
+	private int maxSnapshots = 1000;
+
+	/** Least recently exported first. Guarded by itself. */
+	private final LinkedHashMap<String, InvoiceSnapshot> snapshots = new LinkedHashMap<String, InvoiceSnapshot>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, InvoiceSnapshot> eldest) {
+			return size() > maxSnapshots;
+		}
+	};
+
+	public IncrementalInvoiceExcelService(InvoiceExcelServiceImpl invoiceExcelService) {
+		this.invoiceExcelService = invoiceExcelService;
+	}
+
+	@Override
+	public void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Boolean isPowerBuyer, OutputStream out) throws Exception {
+
+		String key = key(invoicePeriod.getId().longValue(), buyer.getId().longValue());
+		InvoiceSnapshot snapshot;
+		synchronized (snapshots) {
+			snapshot = snapshots.get(key);
+			if (snapshot == null) {
+				snapshot = new InvoiceSnapshot();
+				snapshots.put(key, snapshot);
+			}
+		}
+		if (snapshot == FULL_EXPORT) {
+			invoiceExcelService.exportInvoiceToExcel(invoice, invoicePeriod, buyer, isPowerBuyer, out);
+			return;
+		}
+		synchronized (snapshot) {
+			InvoiceVoBuilder invoiceVoBuilder = invoiceExcelService.getInvoiceVoBuilder();
+			if (!snapshot.refresh(invoiceVoBuilder, invoice, buyer.getName())) {
+				synchronized (snapshots) {
+					if (snapshots.get(key) == snapshot) {
+						snapshots.put(key, FULL_EXPORT);
+					}
+				}
+				invoiceExcelService.exportInvoiceToExcel(invoice, invoicePeriod, buyer, isPowerBuyer, out);
+				return;
+			}
+			invoiceExcelService.exportInvoiceToExcel(invoice, invoicePeriod, buyer, isPowerBuyer, out,
+					snapshot.deviceDetails(invoiceVoBuilder, invoice, buyer.getName()));
+		}
+	}
+
+	/**
+	 * Drops what was kept of an invoice, for example once its period is closed. The next export
+	 * of it is a full one.
+	 */
+	public void discard(long invoicePeriodId, long buyerId) {
+		synchronized (snapshots) {
+			snapshots.remove(key(invoicePeriodId, buyerId));
+		}
+	}
+
+	/**
+	 * @return the invoices kept, those always exported in full included
+	 */
+	public int getSnapshotCount() {
+		synchronized (snapshots) {
+			return snapshots.size();
+		}
+	}
+
+	/**
+	 * Most invoices kept at once. Each holds the device details of all its order items, so
+	 * this bounds the heap taken to about that many open invoices.
+	 */
+	public void setMaxSnapshots(int maxSnapshots) {
+		if (maxSnapshots < 1) {
+			throw new IllegalArgumentException("maxSnapshots must be at least 1");
+		}
+		this.maxSnapshots = maxSnapshots;
+	}
+
+	private static String key(long invoicePeriodId, long buyerId) {
+		return invoicePeriodId + "/" + buyerId;
+	}
+}
@@ -0,0 +1,138 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long each call of the wrapped facade takes, in a {@link PayPalLatencyHistogram}
+ * per operation and outcome, and counts pre-approval misses and reissued payouts. Calls
+ * are reported to an optional {@link PayPalTracer} as spans. Recording takes no locks. A
+ * tracer that throws loses its span, the call's result and outcome stay as they were.
+ */
+public class InstrumentedPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final PayPalLatencyHistogram[][] histograms =
+			new PayPalLatencyHistogram[PayPalOperation.values().length][PayPalOutcome.values().length];
+
+	private final LongAdder preApprovalMisses = new LongAdder();
+
+	private final LongAdder reissues = new LongAdder();
+
+	private PayPalTracer tracer;
+
+	public InstrumentedPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		for (PayPalLatencyHistogram[] outcomes : histograms) {
+			for (int i = 0; i < outcomes.length; i++) {
+				outcomes[i] = new PayPalLatencyHistogram();
+			}
+		}
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+		if (Boolean.TRUE.equals(isReissue)) {
+			reissues.increment();
+		}
+		PayPalTracer currentTracer = tracer;
+		Object span = spanStarted(currentTracer, PayPalOperation.PAY, orderItemId);
+		long start = System.nanoTime();
+		PayPalCustomerPaymentDetails details;
+		try {
+			details = payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey,
+					restrictedPreApprovalKey, orderItemId, isReissue);
+		} catch (NeedsPreApprovalException e) {
+			preApprovalMisses.increment();
+			completed(PayPalOperation.PAY, PayPalOutcome.NEEDS_PRE_APPROVAL, e, start, currentTracer, span);
+			throw e;
+		} catch (RuntimeException | Error e) {
+			completed(PayPalOperation.PAY, PayPalOutcome.FAILURE, e, start, currentTracer, span);
+			throw e;
+		}
+		completed(PayPalOperation.PAY, PayPalOutcome.SUCCESS, null, start, currentTracer, span);
+		return details;
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		PayPalTracer currentTracer = tracer;
+		Object span = spanStarted(currentTracer, PayPalOperation.PREAPPROVAL, null);
+		long start = System.nanoTime();
+		PayPalPreApprovalResponse response;
+		try {
+			response = payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate, maxTotalPayment, cancelUrl,
+					returnUrl, isRestricted);
+		} catch (RuntimeException | Error e) {
+			completed(PayPalOperation.PREAPPROVAL, PayPalOutcome.FAILURE, e, start, currentTracer, span);
+			throw e;
+		}
+		completed(PayPalOperation.PREAPPROVAL, PayPalOutcome.SUCCESS, null, start, currentTracer, span);
+		return response;
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		PayPalTracer currentTracer = tracer;
+		Object span = spanStarted(currentTracer, PayPalOperation.UPDATE_STATUS, orderItemId);
+		long start = System.nanoTime();
+		try {
+			payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId, transactionStatus,
+					senderTransactionId, senderTransactionStatus, orderItemId);
+		} catch (RuntimeException | Error e) {
+			completed(PayPalOperation.UPDATE_STATUS, PayPalOutcome.FAILURE, e, start, currentTracer, span);
+			throw e;
+		}
+		completed(PayPalOperation.UPDATE_STATUS, PayPalOutcome.SUCCESS, null, start, currentTracer, span);
+	}
+
+	/**
+	 * @return null without a tracer, or if it threw
+	 */
+	private static Object spanStarted(PayPalTracer currentTracer, PayPalOperation operation, Integer orderItemId) {
+		if (currentTracer == null) {
+			return null;
+		}
+		try {
+			return currentTracer.spanStarted(operation, orderItemId);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Records the call once its outcome is settled. Never throws, whatever the tracer does.
+	 */
+	private void completed(PayPalOperation operation, PayPalOutcome outcome, Throwable failure, long start,
+			PayPalTracer currentTracer, Object span) {
+		long nanos = System.nanoTime() - start;
+		histograms[operation.ordinal()][outcome.ordinal()].record(nanos);
+		if (currentTracer != null) {
+			try {
+				currentTracer.spanEnded(span, outcome, failure, nanos);
+			} catch (RuntimeException e) {
+				// the span is lost, the call's outcome stands
+			}
+		}
+	}
+
+	public PayPalLatencyHistogram getHistogram(PayPalOperation operation, PayPalOutcome outcome) {
+		return histograms[operation.ordinal()][outcome.ordinal()];
+	}
+
+	public long getPreApprovalMisses() {
+		return preApprovalMisses.sum();
+	}
+
+	public long getReissues() {
+		return reissues.sum();
+	}
+
+	public void setTracer(PayPalTracer tracer) {
+		this.tracer = tracer;
+	}
+}
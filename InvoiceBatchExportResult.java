@@ -0,0 +1,29 @@
+package com.usell.platform.web.billing;
+
+import java.util.Collections;
+import java.util.List;
+
+public class InvoiceBatchExportResult {
+
+	private final int exportedCount;
+
+	private final List<InvoiceExportFailure> failures;
+
+	public InvoiceBatchExportResult(int exportedCount, List<InvoiceExportFailure> failures) {
+		this.exportedCount = exportedCount;
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	/** Number of invoices written to the archive. */
+	public int getExportedCount() {
+		return exportedCount;
+	}
+
+	public List<InvoiceExportFailure> getFailures() {
+		return failures;
+	}
+
+	public boolean hasFailures() {
+		return !failures.isEmpty();
+	}
+}
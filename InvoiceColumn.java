@@ -0,0 +1,119 @@
+package com.usell.platform.web.billing;
+
+import java.util.Date;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A typed column of an invoice sheet. Dates are read as epoch millis and numbers as
+ * primitive doubles, so renderers never box a value or build a string for it. A missing
+ * date is {@link #NO_DATE} and a missing number is {@link Double#NaN}, both render as
+ * an empty cell.
+ */
+final class InvoiceColumn<T> {
+
+	enum Type {
+		TEXT,
+		/** First and last name separated by a space. */
+		NAME,
+		/** yyyy-MM-dd */
+		DATE,
+		/** MM/dd/yy */
+		DETAILS_DATE,
+		MONEY,
+		/** A numeric cell of the percentage over 100 in a percent format, text followed by '%' in delimited files. */
+		PERCENTAGE
+	}
+
+	static final long NO_DATE = Long.MIN_VALUE;
+
+	private final Type type;
+
+	private final Function<T, String> text;
+
+	private final Function<T, String> lastName;
+
+	private final boolean upperCase;
+
+	private final ToLongFunction<T> date;
+
+	private final ToDoubleFunction<T> number;
+
+	private InvoiceColumn(Type type, Function<T, String> text, Function<T, String> lastName, boolean upperCase,
+			ToLongFunction<T> date, ToDoubleFunction<T> number) {
+		this.type = type;
+		this.text = text;
+		this.lastName = lastName;
+		this.upperCase = upperCase;
+		this.date = date;
+		this.number = number;
+	}
+
+	static <T> InvoiceColumn<T> text(Function<T, String> accessor) {
+		return new InvoiceColumn<T>(Type.TEXT, accessor, null, false, null, null);
+	}
+
+	static <T> InvoiceColumn<T> name(Function<T, String> firstName, Function<T, String> lastName, boolean upperCase) {
+		return new InvoiceColumn<T>(Type.NAME, firstName, lastName, upperCase, null, null);
+	}
+
+	static <T> InvoiceColumn<T> date(Type type, Function<T, Date> accessor) {
+		return dateMillis(type, row -> {
+			Date value = accessor.apply(row);
+			return value == null ? NO_DATE : value.getTime();
+		});
+	}
+
+	static <T> InvoiceColumn<T> dateMillis(Type type, ToLongFunction<T> accessor) {
+		if (type != Type.DATE && type != Type.DETAILS_DATE) {
+			throw new IllegalArgumentException("Not a date column type: " + type);
+		}
+		return new InvoiceColumn<T>(type, null, null, false, accessor, null);
+	}
+
+	static <T> InvoiceColumn<T> number(Type type, Function<T, Double> accessor) {
+		return numberValue(type, row -> {
+			Double value = accessor.apply(row);
+			return value == null ? Double.NaN : value;
+		});
+	}
+
+	static <T> InvoiceColumn<T> numberValue(Type type, ToDoubleFunction<T> accessor) {
+		if (type != Type.MONEY && type != Type.PERCENTAGE) {
+			throw new IllegalArgumentException("Not a number column type: " + type);
+		}
+		return new InvoiceColumn<T>(type, null, null, false, null, accessor);
+	}
+
+	Type getType() {
+		return type;
+	}
+
+	/** Value of a TEXT column, the first name of a NAME column. */
+	String text(T row) {
+		return text.apply(row);
+	}
+
+	String lastName(T row) {
+		return lastName.apply(row);
+	}
+
+	boolean isUpperCase() {
+		return upperCase;
+	}
+
+	long dateMillis(T row) {
+		return date.applyAsLong(row);
+	}
+
+	double number(T row) {
+		return number.applyAsDouble(row);
+	}
+
+	/** The NAME text as the sheets have always shown it. */
+	String fullName(T row) {
+		String fullName = text(row).concat(" ").concat(lastName(row));
+		return upperCase ? fullName.toUpperCase() : fullName;
+	}
+}
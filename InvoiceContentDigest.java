@@ -0,0 +1,184 @@
+package com.usell.platform.web.billing;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * SHA-256 over everything an invoice export shows: the summary and every row of every
+ * section, read through the same column specs the renderers use. Two invoices with equal
+ * digests render to the same file, so the digest can key a cache of rendered exports.
+ */
+final class InvoiceContentDigest {
+
+	/**
+	 * Changes whenever the digested content or the way it is rendered changes, so old cache
+	 * entries stop matching. 2: percentages written as numeric cells.
+	 */
+	private static final int VERSION = 2;
+
+	private final MessageDigest digest;
+
+	private final byte[] scratch = new byte[8];
+
+	private InvoiceContentDigest() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @param renderer identifies the output format, the same invoice renders differently per service
+	 * @return the digest as a lower case hex string
+	 */
+	static String of(InvoiceSections sections, Boolean isPowerBuyer, String renderer) {
+		InvoiceContentDigest contentDigest = new InvoiceContentDigest();
+		contentDigest.putInt(VERSION);
+		contentDigest.putString(renderer);
+		contentDigest.putInt(Boolean.TRUE.equals(isPowerBuyer) ? 1 : 0);
+		contentDigest.putSummary(sections.getSummary());
+		contentDigest.putSection(InvoiceSheetSpecs.LEADS, sections.getLeads());
+		contentDigest.putSection(InvoiceSheetSpecs.DEVICE_DETAILS, sections.getDeviceDetails(), sections.getSpilledDeviceDetails());
+		contentDigest.putSection(InvoiceSheetSpecs.POST_PAY_ORDERS, sections.getPostPayOrders());
+		contentDigest.putSection(InvoiceSheetSpecs.SENT_KITS, sections.getSentKits(), sections.getSpilledSentKits());
+		contentDigest.putSection(InvoiceSheetSpecs.RESENT_KITS, sections.getResentKits(), sections.getSpilledResentKits());
+		contentDigest.putSection(InvoiceSheetSpecs.CHECK_REQUESTS, sections.getCheckRequests());
+		return contentDigest.toHex();
+	}
+
+	/**
+	 * The digest of one section's rows alone, to tell whether two builds of it render the same.
+	 */
+	static <T> String of(InvoiceSheetSpec<T> spec, List<T> rows) {
+		InvoiceContentDigest contentDigest = new InvoiceContentDigest();
+		contentDigest.putSection(spec, rows);
+		return contentDigest.toHex();
+	}
+
+	private void putSummary(InvoiceSummaryVo summary) {
+		putString(summary.getBuyer());
+		putString(summary.getInvoiceNumber());
+		putString(summary.getInvoicePeriodStartDate());
+		putString(summary.getInvoicePeriodEndDate());
+		putString(summary.getInvoiceDate());
+		putNumber(summary.getPostPayOrderCount());
+		putNumber(summary.getTotalPostPayOrderCommission());
+		putNumber(summary.getTotalCheckCount());
+		putNumber(summary.getCheckChargePerUnit());
+		putNumber(summary.getTotalCheckAmountDue());
+		putString(summary.getAmountDue());
+
+		ShippingKitSummaryVo kits = summary.getShippingKitSummaryVo();
+		if (kits == null) {
+			putInt(-1);
+			return;
+		}
+		putInt(kits.getDays().size());
+		putInt(kits.getProductCategories().size());
+		for (String category : kits.getProductCategories()) {
+			putString(category);
+			putNumber(kits.getCategoryCount().get(category));
+			putString(kits.getCategoryPricePerUnit().get(category));
+			putString(kits.getCategoryAmountDue().get(category));
+		}
+		ShippingKitSummaryVo.CategoryDay categoryDay = new ShippingKitSummaryVo.CategoryDay();
+		for (String day : kits.getDays()) {
+			putString(day);
+			categoryDay.day = day;
+			for (String category : kits.getProductCategories()) {
+				categoryDay.productCategory = category;
+				putNumber(kits.getDailyCategoryCount().get(categoryDay));
+			}
+		}
+		putString(kits.getAmountDue());
+	}
+
+	/**
+	 * The rows of a section that may have been spilled. Spilled rows are read through the
+	 * spill's spec, which shows the same columns, so they digest the same as on the heap.
+	 */
+	private <T> void putSection(InvoiceSheetSpec<T> spec, List<T> rows, InvoiceSectionSpill<?> spilled) {
+		if (!InvoiceSections.hasRows(rows) && InvoiceSections.hasRows(spilled)) {
+			putRows(spilled.getSpec(), spilled, spilled.getRowCount());
+		} else {
+			putSection(spec, rows);
+		}
+	}
+
+	private <T> void putSection(InvoiceSheetSpec<T> spec, List<T> rows) {
+		if (!InvoiceSections.hasRows(rows)) {
+			putInt(0);
+			return;
+		}
+		putRows(spec, rows, rows.size());
+	}
+
+	private <T> void putRows(InvoiceSheetSpec<T> spec, Iterable<T> rows, int rowCount) {
+		putInt(rowCount);
+		int columnCount = spec.getColumnCount();
+		for (T row : rows) {
+			for (int colIndex = 0; colIndex < columnCount; colIndex++) {
+				InvoiceColumn<T> column = spec.getColumn(colIndex);
+				switch (column.getType()) {
+				case TEXT:
+					putString(column.text(row));
+					break;
+				case NAME:
+					putString(column.text(row));
+					putString(column.lastName(row));
+					break;
+				case DATE:
+				case DETAILS_DATE:
+					putLong(column.dateMillis(row));
+					break;
+				case MONEY:
+				case PERCENTAGE:
+					putLong(Double.doubleToLongBits(column.number(row)));
+					break;
+				}
+			}
+		}
+	}
+
+	private void putNumber(Number value) {
+		putLong(value == null ? Long.MIN_VALUE : Double.doubleToLongBits(value.doubleValue()));
+	}
+
+	/** Length prefixed, so adjacent strings can't run into each other. */
+	private void putString(String value) {
+		if (value == null) {
+			putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		putInt(bytes.length);
+		digest.update(bytes);
+	}
+
+	private void putInt(int value) {
+		for (int i = 0; i < 4; i++) {
+			scratch[i] = (byte) (value >>> (24 - 8 * i));
+		}
+		digest.update(scratch, 0, 4);
+	}
+
+	private void putLong(long value) {
+		for (int i = 0; i < 8; i++) {
+			scratch[i] = (byte) (value >>> (56 - 8 * i));
+		}
+		digest.update(scratch, 0, 8);
+	}
+
+	private String toHex() {
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+			hex[2 * i + 1] = Character.forDigit(hash[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+}
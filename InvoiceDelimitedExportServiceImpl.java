@@ -0,0 +1,152 @@
+package com.usell.platform.web.billing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Writes the row data of the "Orders", "Check Processed", "Kits Sent" and "Prepaid Device
+ * Level Details" sheets as CSV or TSV files, one ZIP entry per section. The sections are
+ * rendered from the same {@link InvoiceSheetSpecs} as the sheets of {@link InvoiceExcelServiceImpl}.
+ * No workbook is built, rows go straight from the invoice to the output stream.
+ */
+public class InvoiceDelimitedExportServiceImpl implements InvoiceExcelService {
+
+	public enum Format {
+		CSV(',', true, ".csv"),
+		TSV('\t', false, ".tsv");
+
+		private final char delimiter;
+
+		private final boolean quoted;
+
+		private final String extension;
+
+		Format(char delimiter, boolean quoted, String extension) {
+			this.delimiter = delimiter;
+			this.quoted = quoted;
+			this.extension = extension;
+		}
+	}
+
+	private InvoiceVoBuilder invoiceVoBuilder;
+
+	private Format format = Format.CSV;
+
+	@Override
+	public void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Boolean isPowerBuyer, OutputStream out) throws Exception {
+
+		ZipOutputStream zip = new ZipOutputStream(out);
+		DelimitedRowWriter writer = new DelimitedRowWriter(
+				new OutputStreamWriter(zip, StandardCharsets.UTF_8), format.delimiter, format.quoted);
+
+		if (invoice.getPostPayCustomerPayments() != null && !invoice.getPostPayCustomerPayments().isEmpty()) {
+			writeSection(zip, writer, InvoiceSheetSpecs.POST_PAY_ORDERS, invoice.getPostPayCustomerPayments());
+		}
+
+		if (invoice.getCheckRequests() != null && !invoice.getCheckRequests().isEmpty()) {
+			writeSection(zip, writer, InvoiceSheetSpecs.CHECK_REQUESTS, invoice.getCheckRequests());
+		}
+
+		List<InvoiceKitVo> sentKitsVo = invoiceVoBuilder.buildSentKitsVo(invoice.getShippingKits());
+		if (sentKitsVo != null && !sentKitsVo.isEmpty()) {
+			writeSection(zip, writer, InvoiceSheetSpecs.SENT_KITS, sentKitsVo);
+		}
+
+		List<InvoiceLeadOrderItem> invoiceOrderItems = InvoiceLeadOrderItems.of(invoice.getLeads());
+		if (!invoiceOrderItems.isEmpty()) {
+			writeSection(zip, writer, InvoiceSheetSpecs.deviceDetails(isPowerBuyer),
+					invoiceVoBuilder.buildInvoiceLeadOrderItemVo(invoiceOrderItems, buyer.getName()));
+		}
+
+		writer.flush();
+		zip.closeEntry();
+		zip.finish();
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * Writes the sections of an {@link InvoiceExportSnapshot} as {@link #exportInvoiceToExcel}
+	 * writes those of the invoice it was written from.
+	 */
+	public void exportSnapshot(InvoiceExportSnapshot snapshot, Boolean isPowerBuyer, OutputStream out) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		DelimitedRowWriter writer = new DelimitedRowWriter(
+				new OutputStreamWriter(zip, StandardCharsets.UTF_8), format.delimiter, format.quoted);
+
+		InvoiceExportSnapshot.Section[] sections = {InvoiceExportSnapshot.Section.POST_PAY_ORDERS,
+				InvoiceExportSnapshot.Section.CHECK_REQUESTS, InvoiceExportSnapshot.Section.SENT_KITS,
+				InvoiceExportSnapshot.Section.DEVICE_DETAILS};
+		for (InvoiceExportSnapshot.Section section : sections) {
+			InvoiceExportSnapshot.SnapshotSection rows = snapshot.getSection(section);
+			if (rows != null) {
+				InvoiceSheetSpec<InvoiceExportSnapshot.Cursor> spec = rows.getSpec();
+				if (section == InvoiceExportSnapshot.Section.DEVICE_DETAILS) {
+					spec = InvoiceSheetSpecs.deviceDetails(spec, isPowerBuyer);
+				}
+				writeSection(zip, writer, spec, rows);
+			}
+		}
+
+		writer.flush();
+		zip.closeEntry();
+		zip.finish();
+		out.flush();
+		out.close();
+	}
+
+	private <T> void writeSection(ZipOutputStream zip, DelimitedRowWriter writer, InvoiceSheetSpec<T> spec,
+			Iterable<T> rows) throws IOException {
+
+		writer.flush();
+		zip.putNextEntry(new ZipEntry(spec.getSheetName() + format.extension));
+		writer.header(spec.getHeaders());
+
+		int columnCount = spec.getColumnCount();
+		for (T row : rows) {
+			for (int colIndex = 0; colIndex < columnCount; colIndex++) {
+				InvoiceColumn<T> column = spec.getColumn(colIndex);
+				switch (column.getType()) {
+				case TEXT:
+					writer.text(column.text(row));
+					break;
+				case NAME:
+					writer.fullName(column.text(row), column.lastName(row), column.isUpperCase());
+					break;
+				case DATE:
+					writer.date(column.dateMillis(row));
+					break;
+				case DETAILS_DATE:
+					writer.detailsDate(column.dateMillis(row));
+					break;
+				case MONEY:
+					writer.money(column.number(row));
+					break;
+				case PERCENTAGE:
+					writer.percentage(column.number(row));
+					break;
+				}
+			}
+			writer.endRow();
+		}
+	}
+
+	public void setInvoiceVoBuilder(InvoiceVoBuilder invoiceVoBuilder) {
+		this.invoiceVoBuilder = invoiceVoBuilder;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+}
@@ -1,211 +1,200 @@
 package com.usell.platform.web.billing;
 
+import java.io.File;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
-import org.apache.poi.hssf.usermodel.HSSFCellStyle;
-import org.apache.poi.hssf.usermodel.HSSFFont;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 
 import com.usell.platform.billing.Invoice;
-import com.usell.platform.billing.InvoiceCheckRequest;
-import com.usell.platform.billing.InvoiceLead;
 import com.usell.platform.billing.InvoiceLeadOrderItem;
 import com.usell.platform.domain.Buyer;
 import com.usell.platform.domain.InvoicePeriod;
-import com.usell.platform.domain.PostPayCustomerPayment;
 
 
 public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 
 	private InvoiceVoBuilder invoiceVoBuilder;
 
-	private final String[] LEADS_HEADER_ROW = new String[] {"   Email Address","Prior Fees", "Current Fees", "Prior Invoiced Amount",
-			"Current Invoice Amount", "Customer Billing Inter   va   l"};
-//amd some more this doesnt stop
-	private final String[] DEVICE_DETAILS_HEADER_ROW = new String[] {"UUID", "Email Address", "User Name",
-			"Invoice Period", "Order Date", "Product Name", "Proasdlkjlkasdduct Category", "Product Condition", "Device Fee", "Partner Product Id", "Partner Name"};
+	private int maxColumnWidth = 80;
 
-	private final String[] RESENT_PACK_HEADER_ROW = new String[] {"UUID","Email", "Customer Name", "Ship Date",
-			"Order Date", "Product Name", "Category Name"};
-	//Release 1 changes
-	private final String[] SENT_PACK_HEADER_ROW = new String[] {"UUID","Email", "Customer Name", "Ship Date",
-			"Order Date", "Product Name", "Category Name"};
+	private final AtomicLong styleCacheHits = new AtomicLong();
 
-	private final String[] CHECK_PROCESSING_DETAILS_HEADER_ROW = new String[] {"UUID", "Check Number", "Check Date", "Customer Name", "Amount"};
+	private final AtomicLong styleCacheMisses = new AtomicLong();
 
-	private final String[] POST_PAY_ORDERS_HEADER_ROW = new String[] {"UUID", "Email Address", "User Name", "Order Date", "Payment Date", "Product Name", "Product Category", "Product Condition", "Order Commission Percentage",	"Bid", "Offer",	"Commission Amount Due"};
+	private InvoiceExportMetricsListener metricsListener = NoOpInvoiceExportMetricsListener.INSTANCE;
 
-	private CellStyle cellStyle;
-	
-	private CellStyle percentageCellStyle;
+	private boolean metricsEnabled;
 
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+	private Executor sectionExecutor;
 
-	private static final SimpleDateFormat detailsDateFormat = new SimpleDateFormat("MM/dd/yy");
+	private int spillThresholdRows;
+
+	private int spillChunkRows = 1000;
+
+	private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+	private InvoiceSummaryIndex summaryIndex;
 
 	@Override
 	public void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
 			Boolean isPowerBuyer, OutputStream out) throws Exception {
+		exportInvoiceToExcel(invoice, invoicePeriod, buyer, isPowerBuyer, out, null);
+	}
 
-		Workbook workbook = new HSSFWorkbook();
-		cellStyle = workbook.createCellStyle();
-		cellStyle.setDataFormat((short) 8);
-		
-		percentageCellStyle = workbook.createCellStyle();
-		percentageCellStyle.setDataFormat(workbook.createDataFormat().getFormat("#,##%"));
-
-		addInvoiceSummary(workbook, invoiceVoBuilder.buildInvoiceSummaryVo(invoice, invoicePeriod, buyer));
-		
-		if (invoice.getLeads() != null && !invoice.getLeads().isEmpty()) {
-			addInvoiceLeads(workbook, invoiceVoBuilder.buildLeadVo(invoice.getLeads()));	
-		}
-		
-		List<InvoiceLeadOrderItem> invoiceOrderItems = new ArrayList<InvoiceLeadOrderItem>();
-		for (InvoiceLead invoiceLead : invoice.getLeads()) {
-			invoiceOrderItems.addAll(invoiceLead.getOrderItems());
-		}
-		
-		if (!invoiceOrderItems.isEmpty()) {
-			addDeviceDetails(workbook, invoiceVoBuilder.buildInvoiceLeadOrderItemVo(invoiceOrderItems, buyer.getName()), isPowerBuyer);	
-		}
-		
-		if (invoice.getPostPayCustomerPayments() != null && !invoice.getPostPayCustomerPayments().isEmpty()) {
-			addPostPaidOrders(workbook, invoice.getPostPayCustomerPayments());	
-		}
-		
-		List<InvoiceKitVo> sentKitsVo = invoiceVoBuilder.buildSentKitsVo(invoice.getShippingKits());
-		if (sentKitsVo != null && !sentKitsVo.isEmpty()) {
-			addSentKitDetails(workbook, sentKitsVo);	
-		}
-		
-		List<InvoiceKitVo> resentKitsVo = invoiceVoBuilder.buildReshippedVo(invoice.getShippingKits());
-		if (resentKitsVo != null && !resentKitsVo.isEmpty()) {
-			addReshipKitDetails(workbook, resentKitsVo);	
+	/**
+	 * Exports like {@link #exportInvoiceToExcel(Invoice, InvoicePeriod, Buyer, Boolean, OutputStream)},
+	 * taking the device details of a list of order items from <code>deviceDetails</code>.
+	 *
+	 * @param deviceDetails null to build them with the {@link InvoiceVoBuilder}
+	 */
+	void exportInvoiceToExcel(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer, Boolean isPowerBuyer,
+			OutputStream out, Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails) throws Exception {
+
+		if (!metricsEnabled) {
+			try (InvoiceSections sections = buildSections(invoice, invoicePeriod, buyer, deviceDetails)) {
+				writeSections(sections, isPowerBuyer, out);
+			}
+			return;
 		}
 
-		if (invoice.getCheckRequests() != null && !invoice.getCheckRequests().isEmpty()) {
-			addInvoiceCheckRequests(workbook, invoice.getCheckRequests());	
+		long start = System.nanoTime();
+		try (InvoiceSections sections = buildSections(invoice, invoicePeriod, buyer, deviceDetails)) {
+			metricsListener.phaseCompleted(InvoiceExportPhase.VO_BUILD, null, System.nanoTime() - start);
+
+			CountingOutputStream countingOut = new CountingOutputStream(out);
+			writeSections(sections, isPowerBuyer, countingOut);
+			metricsListener.exportCompleted(countingOut.getCount(), System.nanoTime() - start);
 		}
-		
-		workbook.write(out);
-		out.flush();
-		out.close();
 	}
 
-	private void addPostPaidOrders(Workbook workBook,
-			List<PostPayCustomerPayment> postPayCustomerPayments) {
-
-		Sheet postPayOrderSheet = workBook.createSheet("Orders");
-		int rowIndex = 0;
-		Row topRow = postPayOrderSheet.createRow(rowIndex++);
-		populateHeaderRow(getStandardHeaderStyle(workBook), POST_PAY_ORDERS_HEADER_ROW, topRow);
-		
-		rowIndex = 1;
-		for (PostPayCustomerPayment payment : postPayCustomerPayments) {
-			int colIndex = 0;
-			Row dataRow = postPayOrderSheet.createRow(rowIndex);
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getOrderNumber());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getEmail());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getFirstName().concat(" ".concat(payment.getLastName())).toUpperCase());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(detailsDateFormat.format(payment.getOrderDate()));
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(detailsDateFormat.format(payment.getPaymentDate()));
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getProductName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getProductCategoryName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getProductConditionName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(payment.getOrderCommissionPercentage()+"%");
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(payment.getFinalBid());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(payment.getFinalOffer());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
+	/**
+	 * Builds the sections the way an export of this service does, with its summary index,
+	 * section executor and spill settings. The caller closes them.
+	 */
+	InvoiceSections buildSections(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer) {
+		return buildSections(invoice, invoicePeriod, buyer, null);
+	}
 
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(payment.getOrderCommission());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-			rowIndex++;
+	private InvoiceSections buildSections(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails) {
+		InvoiceSectionSpiller spiller = spillThresholdRows > 0
+				? new InvoiceSectionSpiller(spillDirectory, spillThresholdRows, spillChunkRows) : null;
+		InvoiceSummaryVo summary = summaryIndex == null
+				? null : summaryIndex.getSummary(invoicePeriod.getId().longValue(), buyer.getId().longValue());
+		if (sectionExecutor == null) {
+			return InvoiceSections.build(invoiceVoBuilder, invoice, invoicePeriod, buyer, summary, spiller, deviceDetails);
 		}
+		return InvoiceSections.build(invoiceVoBuilder, invoice, invoicePeriod, buyer, sectionExecutor, summary, spiller,
+				deviceDetails);
+	}
 
-		//AutoSize columns
-		for (int i=0; i < topRow.getLastCellNum(); i++){
-			postPayOrderSheet.autoSizeColumn(i);
+	/**
+	 * Renders an {@link InvoiceExportSnapshot} the way {@link #exportInvoiceToExcel} renders the
+	 * invoice it was written from. No value objects are built, the sheets read the snapshot.
+	 */
+	public void exportSnapshotToExcel(InvoiceExportSnapshot snapshot, Boolean isPowerBuyer, OutputStream out) throws Exception {
+		long start = metricsEnabled ? System.nanoTime() : 0;
+		OutputStream target = metricsEnabled ? new CountingOutputStream(out) : out;
+		InvoiceExportContext context = new InvoiceExportContext(createWorkbook());
+		try {
+			addSummarySheet(context, InvoiceSummaryModel.from(snapshot.getSummary()));
+			for (InvoiceExportSnapshot.Section section : InvoiceExportSnapshot.Section.values()) {
+				InvoiceExportSnapshot.SnapshotSection rows = snapshot.getSection(section);
+				if (rows != null) {
+					InvoiceSheetSpec<InvoiceExportSnapshot.Cursor> spec = rows.getSpec();
+					if (section == InvoiceExportSnapshot.Section.DEVICE_DETAILS) {
+						spec = InvoiceSheetSpecs.deviceDetails(spec, isPowerBuyer);
+					}
+					addSheet(context, spec, rows);
+				}
+			}
+			finishWorkbook(context, target);
+		} finally {
+			disposeWorkbook(context.getWorkbook());
+		}
+		if (metricsEnabled) {
+			metricsListener.exportCompleted(((CountingOutputStream) target).getCount(), System.nanoTime() - start);
 		}
 	}
 
-	private void addInvoiceCheckRequests(Workbook workBook,
-			List<InvoiceCheckRequest> checkRequests) {
+	void writeSections(InvoiceSections sections, Boolean isPowerBuyer, OutputStream out) throws Exception {
+		InvoiceExportContext context = new InvoiceExportContext(createWorkbook());
+		try {
+			addSummarySheet(context, sections.getSummaryModel());
 
-		if(checkRequests.size() < 1) {
-			return;
-		}
-
-		Sheet checkRequestSheet = workBook.createSheet("Check Processed");
-		int rowIndex = 0;
-		Row topRow = checkRequestSheet.createRow(rowIndex++);
-		populateHeaderRow(getStandardHeaderStyle(workBook), CHECK_PROCESSING_DETAILS_HEADER_ROW, topRow);
+			if (InvoiceSections.hasRows(sections.getLeads())) {
+				addSheet(context, InvoiceSheetSpecs.LEADS, sections.getLeads());
+			}
 
-		rowIndex = 1;
-		for (InvoiceCheckRequest request : checkRequests) {
-			int colIndex = 0;
-			Row dataRow = checkRequestSheet.createRow(rowIndex);
+			if (InvoiceSections.hasRows(sections.getDeviceDetails())) {
+				addSheet(context, InvoiceSheetSpecs.deviceDetails(isPowerBuyer), sections.getDeviceDetails());
+			} else if (InvoiceSections.hasRows(sections.getSpilledDeviceDetails())) {
+				addSheet(context, InvoiceSheetSpecs.deviceDetails(sections.getSpilledDeviceDetails().getSpec(), isPowerBuyer),
+						sections.getSpilledDeviceDetails());
+			}
 
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(request.getOrderUid());
+			if (InvoiceSections.hasRows(sections.getPostPayOrders())) {
+				addSheet(context, InvoiceSheetSpecs.POST_PAY_ORDERS, sections.getPostPayOrders());
+			}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(request.getCheckNumber());
+			if (InvoiceSections.hasRows(sections.getSentKits())) {
+				addSheet(context, InvoiceSheetSpecs.SENT_KITS, sections.getSentKits());
+			} else if (InvoiceSections.hasRows(sections.getSpilledSentKits())) {
+				addSheet(context, sections.getSpilledSentKits().getSpec(), sections.getSpilledSentKits());
+			}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(dateFormat.format(request.getCheckDate()));
+			if (InvoiceSections.hasRows(sections.getResentKits())) {
+				addSheet(context, InvoiceSheetSpecs.RESENT_KITS, sections.getResentKits());
+			} else if (InvoiceSections.hasRows(sections.getSpilledResentKits())) {
+				addSheet(context, sections.getSpilledResentKits().getSpec(), sections.getSpilledResentKits());
+			}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(request.getFirstName().concat(" ").concat(request.getLastName()));
+			if (InvoiceSections.hasRows(sections.getCheckRequests())) {
+				addSheet(context, InvoiceSheetSpecs.CHECK_REQUESTS, sections.getCheckRequests());
+			}
 
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(request.getCheckAmount());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-			rowIndex++;
+			finishWorkbook(context, out);
+		} finally {
+			disposeWorkbook(context.getWorkbook());
 		}
-		//AutoSize columns
-		for (int i=0; i < topRow.getLastCellNum(); i++){
-			checkRequestSheet.autoSizeColumn(i);
+	}
+
+	private void addSummarySheet(InvoiceExportContext context, InvoiceSummaryModel summary) {
+		long start = metricsEnabled ? System.nanoTime() : 0;
+		addInvoiceSummary(context, summary);
+		if (metricsEnabled) {
+			metricsListener.phaseCompleted(InvoiceExportPhase.RENDER, "Invoice Summary", System.nanoTime() - start);
 		}
+	}
 
+	private void finishWorkbook(InvoiceExportContext context, OutputStream out) throws Exception {
+		long start = metricsEnabled ? System.nanoTime() : 0;
+		writeWorkbook(context.getWorkbook(), out);
+		if (metricsEnabled) {
+			metricsListener.phaseCompleted(InvoiceExportPhase.SERIALIZATION, null, System.nanoTime() - start);
+		}
+		styleCacheHits.addAndGet(context.getStyleRegistry().getHits());
+		styleCacheMisses.addAndGet(context.getStyleRegistry().getMisses());
+		out.flush();
+		out.close();
 	}
 
-	private void addInvoiceSummary(Workbook workbook, InvoiceSummaryVo invoiceSummary){
-		Sheet summarySheet = workbook.createSheet("Invoice Summary");
+	private void addInvoiceSummary(InvoiceExportContext context, InvoiceSummaryModel invoiceSummary){
+		CellStyle cellStyle = context.getCellStyle();
+		Sheet summarySheet = createSheet(context.getWorkbook(), "Invoice Summary");
+		ColumnWidthEstimator columnWidths = new ColumnWidthEstimator(maxColumnWidth);
 		int rowIndex = 0;
 
-		Row topRow = summarySheet.createRow(rowIndex++);
+		Row topRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 
 		int colIndex = 0;
 		Cell dataCell = createNewCell(topRow, colIndex++, null);
@@ -221,7 +210,7 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell = createNewCell(topRow, colIndex++, null);
 		dataCell.setCellValue(invoiceSummary.getInvoiceNumber());
 
-		Row dataRow = summarySheet.createRow(rowIndex++);
+		Row dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 
 		colIndex = 0;
 		dataCell = createNewCell(dataRow, colIndex++, null);
@@ -230,7 +219,7 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue(invoiceSummary.getInvoicePeriodStartDate());
 
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 
 		colIndex = 0;
 		dataCell = createNewCell(dataRow, colIndex++, null);
@@ -239,7 +228,7 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue(invoiceSummary.getInvoicePeriodEndDate());
 
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 
 		colIndex = 0;
 		dataCell = createNewCell(dataRow, colIndex++, null);
@@ -249,12 +238,12 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell.setCellValue(invoiceSummary.getInvoiceDate());
 
 		rowIndex++;
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 		colIndex = 0;
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue("Charges for Post Pay Orders");
 
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 		colIndex = 1;
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue("Number of Orders");
@@ -262,7 +251,7 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue(invoiceSummary.getPostPayOrderCount());
 
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 		colIndex = 1;
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue("Net Amount Due");
@@ -272,107 +261,105 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
 
-		if (invoiceSummary.getShippingKitSummaryVo() != null) {
+		if (invoiceSummary.hasShippingKits()) {
 			rowIndex++;
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 0;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Charges for Shipping Kits");
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Date");
 
-			for (String category : invoiceSummary.getShippingKitSummaryVo().getProductCategories()) {
+			int categoryCount = invoiceSummary.getProductCategoryCount();
+			for (int category = 0; category < categoryCount; category++) {
 				dataCell = createNewCell(dataRow, colIndex++, null);
-				dataCell.setCellValue(category);
+				dataCell.setCellValue(invoiceSummary.getProductCategory(category));
 			}
 
-			for (String day : invoiceSummary.getShippingKitSummaryVo().getDays()) {
-				dataRow = summarySheet.createRow(rowIndex++);
+			for (int day = 0; day < invoiceSummary.getDayCount(); day++) {
+				dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 				colIndex = 1;
 				dataCell = createNewCell(dataRow, colIndex++, null);
-				dataCell.setCellValue(day);
+				dataCell.setCellValue(invoiceSummary.getDay(day));
 
-				for (String category : invoiceSummary.getShippingKitSummaryVo().getProductCategories()) {
-					ShippingKitSummaryVo.CategoryDay categoryDay = new ShippingKitSummaryVo.CategoryDay();
-					categoryDay.day = day;
-					categoryDay.productCategory = category;
+				for (int category = 0; category < categoryCount; category++) {
 					dataCell = createNewCell(dataRow, colIndex++, null);
-					dataCell.setCellValue(invoiceSummary.getShippingKitSummaryVo().getDailyCategoryCount().get(categoryDay));
+					dataCell.setCellValue(invoiceSummary.getDailyCategoryCount(day, category));
 				}
 			}
 
 			rowIndex++;
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Count");
 
-			for (String category : invoiceSummary.getShippingKitSummaryVo().getProductCategories()) {
+			for (int category = 0; category < categoryCount; category++) {
 				dataCell = createNewCell(dataRow, colIndex++, null);
-				dataCell.setCellValue(invoiceSummary.getShippingKitSummaryVo().getCategoryCount().get(category));
+				dataCell.setCellValue(invoiceSummary.getCategoryCount(category));
 			}
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Price Per Unit");
 
-			for (String category : invoiceSummary.getShippingKitSummaryVo().getProductCategories()) {
+			for (int category = 0; category < categoryCount; category++) {
 				dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-				dataCell.setCellValue(Double.parseDouble(invoiceSummary.getShippingKitSummaryVo().getCategoryPricePerUnit().get(category)));
+				dataCell.setCellValue(invoiceSummary.getCategoryPricePerUnit(category));
 				dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
 			}
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Amount Due");
 
-			for (String category : invoiceSummary.getShippingKitSummaryVo().getProductCategories()) {
+			for (int category = 0; category < categoryCount; category++) {
 				dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-				dataCell.setCellValue(Double.parseDouble(invoiceSummary.getShippingKitSummaryVo().getCategoryAmountDue().get(category)));
+				dataCell.setCellValue(invoiceSummary.getCategoryAmountDue(category));
 				dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
 			}
 
 			rowIndex++;
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Net Amount Due");
 
 			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(Double.parseDouble(invoiceSummary.getShippingKitSummaryVo().getAmountDue()));
+			dataCell.setCellValue(invoiceSummary.getShippingKitAmountDue());
 			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
 		}
 
 		if(invoiceSummary.getTotalCheckCount() > 0) {
 			rowIndex++;
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 0;
 			dataCell = createNewCell(dataRow, colIndex++, null);
 			dataCell.setCellValue("Charges for Check Processing");
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			colIndex = 1;
 			dataCell = createNewCell(dataRow, colIndex, null);
 			dataCell.setCellValue("Count");
 			dataCell = createNewCell(dataRow, colIndex + 1, null);
 			dataCell.setCellValue(invoiceSummary.getTotalCheckCount());
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			dataCell = createNewCell(dataRow, colIndex, null);
 			dataCell.setCellValue("Price Per Unit");
 			dataCell = createNewCell(dataRow, colIndex + 1, cellStyle);
 			dataCell.setCellValue(invoiceSummary.getCheckChargePerUnit());
 			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
-			dataRow = summarySheet.createRow(rowIndex++);
+			dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 			dataCell = createNewCell(dataRow, colIndex, null);
 			dataCell.setCellValue("Amount Due");
 			dataCell = createNewCell(dataRow, colIndex + 1, cellStyle);
@@ -381,172 +368,127 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		}
 
 		rowIndex++;
-		dataRow = summarySheet.createRow(rowIndex++);
+		dataRow = createSummaryRow(summarySheet, rowIndex++, columnWidths);
 		colIndex = 0;
 		dataCell = createNewCell(dataRow, colIndex++, null);
 		dataCell.setCellValue("TOTAL AMOUNT DUE");
 
 		dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-		dataCell.setCellValue(Double.parseDouble(invoiceSummary.getAmountDue()));
+		dataCell.setCellValue(invoiceSummary.getAmountDue());
 		dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
 
-		for (int i=0; i < topRow.getLastCellNum(); i++){
-			summarySheet.autoSizeColumn(i);
-		}
+		columnWidths.track(dataRow);
+		columnWidths.applyTo(summarySheet);
 
 	}
 
-
-	private void addDeviceDetails(Workbook workbook, List<InvoiceLeadOrderItemVo> deviceDetailsVos, Boolean isBuyer) {
-		Sheet deviceLevelDetails = workbook.createSheet("Prepaid Device Level Details");
-		Row headerRow = deviceLevelDetails.createRow(0);
-		populateDeviceDetailsHeaderRow(getStandardHeaderStyle(workbook), DEVICE_DETAILS_HEADER_ROW, headerRow, isBuyer);
-
-		int rowIndex = 1;
-		for(InvoiceLeadOrderItemVo deviceDetails : deviceDetailsVos){
-			int colIndex = 0;
-			Row dataRow = deviceLevelDetails.createRow(rowIndex);
-
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(deviceDetails.getUuid());
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(deviceDetails.getCustomerEmail());
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(deviceDetails.getCustomerFullName());
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			datviceDetails.getProductName());
-
-			}
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(deviceDetails.getPartnerName());
-
-			rowIndex++;
-		}
-
-		//AutoSize columns
-		for (int i=0; i < headerRow.getLastCellNum(); i++){
-			deviceLevelDetails.autoSizeColumn(i);
+	/**
+	 * Measures the row written last before creating the next one, while a streaming workbook
+	 * still holds it.
+	 */
+	private Row createSummaryRow(Sheet summarySheet, int rowIndex, ColumnWidthEstimator columnWidths) {
+		Row last = summarySheet.getRow(summarySheet.getLastRowNum());
+		if (last != null) {
+			columnWidths.track(last);
 		}
+		return summarySheet.createRow(rowIndex);
 	}
 
-	private void addInvoiceLeads(Workbook workbook, List<InvoiceLeadVo> invoiceLeads) {
-		Sheet leadsSheet = workbook.createSheet("Leads");
-		Row headerRow = leadsSheet.createRow(0);
-		populateHeaderRow(getStandardHeaderStyle(workbook), LEADS_HEADER_ROW, headerRow);
-		int rowIndex = 1;
-		for(InvoiceLeadVo lead : invoiceLeads){
-			int colIndex = 0;
-			Row dataRow = leadsSheet.createRow(rowIndex);
-
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCasdjaslkjdlkajsellValue(lead.getCustomerEmail());
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(lead.getPriorCommission());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(lead.getCurrentCommission());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(lead.getPriorFees());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-
-			dataCell = createNewCell(dataRow, colIndex++, cellStyle);
-			dataCell.setCellValue(lead.getCurrentFees());
-			dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(lead.getBillingInterval());
-			rowIndex++;
-		}
-
-		//AutoSize columns
-		for (int i=0; i < headerRow.getLastCellNum(); i++){
-			leadsSheet.autoSizeColumn(i);
+	private <T> void addSheet(InvoiceExportContext context, InvoiceSheetSpec<T> spec, Iterable<T> rows) {
+		long start = metricsEnabled ? System.nanoTime() : 0;
+		Sheet sheet = createSheet(context.getWorkbook(), spec.getSheetName());
+		Row headerRow = sheet.createRow(0);
+		populateHeaderRow(context.getHeaderStyle(), spec.getHeaders(), headerRow);
+		ColumnWidthEstimator columnWidths = new ColumnWidthEstimator(maxColumnWidth);
+		columnWidths.trackHeader(headerRow);
+
+		int columnCount = spec.getColumnCount();
+		CellStyle[] columnStyles = new CellStyle[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			if (spec.getColumn(i).getType() == InvoiceColumn.Type.MONEY) {
+				columnStyles[i] = context.getCellStyle();
+			} else if (spec.getColumn(i).getType() == InvoiceColumn.Type.PERCENTAGE) {
+				columnStyles[i] = context.getPercentageCellStyle();
+			}
 		}
-	}
 
-	private void addSentKitDetails(Workbook workbook,	List<InvoiceKitVo> invoiceReshippedKits) {
-		Sheet reshipSheet = workbook.createSheet("Kits Sent");
-		Row headerRow = reshipSheet.createRow(0);
-		populateHeaderRow(getStandardHeaderStyle(workbook), SENT_PACK_HEADER_ROW, headerRow);
 		int rowIndex = 1;
-		for(InvoiceKitVo invoiceReshippedKit : invoiceReshippedKits){
-			int colIndex = 0;
-			Row dataRow = reshipSheet.createRow(rowIndex);
-
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getOrderNumber());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getCustomerEmail());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getCustomerName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getShipDate());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getOrderDate());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getProductName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getProductCategoryName());
-			rowIndex++;
+		for (T row : rows) {
+			Row dataRow = sheet.createRow(rowIndex++);
+			for (int colIndex = 0; colIndex < columnCount; colIndex++) {
+				InvoiceColumn<T> column = spec.getColumn(colIndex);
+				Cell dataCell = createNewCell(dataRow, colIndex, columnStyles[colIndex]);
+				switch (column.getType()) {
+				case TEXT:
+					String text = column.text(row);
+					dataCell.setCellValue(text);
+					columnWidths.measureText(colIndex, text);
+					break;
+				case NAME:
+					String fullName = column.fullName(row);
+					dataCell.setCellValue(fullName);
+					columnWidths.measureText(colIndex, fullName);
+					break;
+				case DATE:
+				case DETAILS_DATE:
+					long millis = column.dateMillis(row);
+					if (millis != InvoiceColumn.NO_DATE) {
+						String date = column.getType() == InvoiceColumn.Type.DATE
+								? context.formatDate(millis) : context.formatDetailsDate(millis);
+						dataCell.setCellValue(date);
+						columnWidths.measureText(colIndex, date);
+					}
+					break;
+				case MONEY:
+					double amount = column.number(row);
+					if (!Double.isNaN(amount)) {
+						dataCell.setCellValue(amount);
+						dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
+						columnWidths.measureNumber(colIndex, amount);
+					}
+					break;
+				case PERCENTAGE:
+					double percentage = column.number(row);
+					if (!Double.isNaN(percentage)) {
+						dataCell.setCellValue(percentage / 100);
+						dataCell.setCellType(Cell.CELL_TYPE_NUMERIC);
+						columnWidths.measurePercentage(colIndex, percentage);
+					}
+					break;
+				}
+			}
 		}
 
-		//AutoSize columns
-		for (int i=0; i < headerRow.getLastCellNum(); i++){
-			reshipSheet.autoSizeColumn(i);
+		if (!metricsEnabled) {
+			columnWidths.applyTo(sheet);
+			return;
 		}
-	}
-
-	
-	private void addReshipKitDetails(Workbook workbook,	List<InvoiceKitVo> invoiceReshippedKits) {
-		Sheet reshipSheet = workbook.createSheet("Kits Resent");
-		Row headerRow = reshipSheet.createRow(0);
-		populateHeaderRow(getStandardHeaderStyle(workbook), RESENT_PACK_HEADER_ROW, headerRow);
-		int rowIndex = 1;
-		for(InvoiceKitVo invoiceReshippedKit : invoiceReshippedKits){
-			int colIndex = 0;
-			Row dataRow = reshipSheet.createRow(rowIndex);
-
-			Cell dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getOrderNumber());
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getCustomerEmail());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getCustomerName());
-
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getShipDate());
+		long autosizeStart = System.nanoTime();
+		columnWidths.applyTo(sheet);
+		long end = System.nanoTime();
+		metricsListener.phaseCompleted(InvoiceExportPhase.RENDER, spec.getSheetName(), autosizeStart - start);
+		metricsListener.phaseCompleted(InvoiceExportPhase.AUTOSIZE, spec.getSheetName(), end - autosizeStart);
+		metricsListener.sheetRendered(spec.getSheetName(), rowIndex - 1);
+	}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getOrderDate());
+	protected Workbook createWorkbook() {
+		return new HSSFWorkbook();
+	}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getProductName());
+	protected Sheet createSheet(Workbook workbook, String sheetName) {
+		return workbook.createSheet(sheetName);
+	}
 
-			dataCell = createNewCell(dataRow, colIndex++, null);
-			dataCell.setCellValue(invoiceReshippedKit.getProductCategoryName());
-			rowIndex++;
-		}
+	protected void writeWorkbook(Workbook workbook, OutputStream out) throws Exception {
+		workbook.write(out);
+	}
 
-		//AutoSize columns
-		for (int i=0; i < headerRow.getLastCellNum(); i++){
-			reshipSheet.autoSizeColumn(i);
-		}
+	/**
+	 * Frees what the workbook holds outside the heap. Called once the export is written or has
+	 * failed.
+	 */
+	protected void disposeWorkbook(Workbook workbook) {
 	}
 
 	private Cell createNewCell(Row row, int index, CellStyle cellStyle){
@@ -564,29 +506,84 @@ public class InvoiceExcelServiceImpl implements InvoiceExcelService {
 		}
 	}
 
-	private void populateDeviceDetailsHeaderRow(CellStyle style, String[] deviceDetailsHeader, Row row, Boolean isBuyer){
+	InvoiceVoBuilder getInvoiceVoBuilder() {
+		return invoiceVoBuilder;
+	}
 
-		for(int i=0,j=0; i<deviceDetailsHeader.length; i++,j++ ){
+	public void setInvoiceVoBuilder(InvoiceVoBuilder invoiceVoBuilder) {
+		this.invoiceVoBuilder = invoiceVoBuilder;
+	}
 
-			if(isBuyer && deviceDetailsHeader[i].equalsIgnoreCase("Partner Product Id")) {
-				j--;
-				continue;
-			}
+	/**
+	 * Where per-phase timings, rows per sheet and output sizes are reported. Nothing is
+	 * measured while the {@link NoOpInvoiceExportMetricsListener} default is set.
+	 */
+	public void setMetricsListener(InvoiceExportMetricsListener metricsListener) {
+		this.metricsListener = metricsListener == null ? NoOpInvoiceExportMetricsListener.INSTANCE : metricsListener;
+		this.metricsEnabled = this.metricsListener != NoOpInvoiceExportMetricsListener.INSTANCE;
+	}
 
-			Cell headerCell = createNewCell(row, j, style);
-			headerCell.setCellValue(deviceDetailsHeader[i]);
-		}
+	/**
+	 * Number of cell style lookups, over all exports, answered from a workbook's style registry.
+	 */
+	public long getStyleCacheHits() {
+		return styleCacheHits.get();
 	}
 
-	private CellStyle getStandardHeaderStyle(Workbook workBook){
-		Font font = workBook.createFont();
-		font.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
-		CellStyle cellStyle = workBook.createCellStyle();
-		cellStyle.setFont(font);
-		cellStyle.setAlignment(HSSFCellStyle.ALIGN_LEFT);
-		return cellStyle;
+	/**
+	 * Number of cell styles created, over all exports. Stays at a few per export when styles are shared.
+	 */
+	public long getStyleCacheMisses() {
+		return styleCacheMisses.get();
 	}
-	public void setInvoiceVoBuilder(InvoiceVoBuilder invoiceVoBuilder) {
-		this.invoiceVoBuilder = invoiceVoBuilder;
+
+	/**
+	 * Builds the value objects of the sections concurrently on the given executor, for example
+	 * <code>ForkJoinPool.commonPool()</code>. The sheets are still written one after another in
+	 * the usual order, so the output is the same. The {@link InvoiceVoBuilder} must be thread safe.
+	 * <code>null</code>, the default, builds the sections on the calling thread.
+	 */
+	public void setSectionExecutor(Executor sectionExecutor) {
+		this.sectionExecutor = sectionExecutor;
+	}
+
+	/**
+	 * Device details and kit sections built from more order items or kits than this are
+	 * written to a temporary file a chunk at a time and read back while rendering, so their
+	 * value objects are never all on the heap. 0, the default, keeps every section on the heap.
+	 */
+	public void setSpillThresholdRows(int spillThresholdRows) {
+		this.spillThresholdRows = spillThresholdRows;
+	}
+
+	/**
+	 * Order items or kits built into value objects at a time while spilling.
+	 */
+	public void setSpillChunkRows(int spillChunkRows) {
+		this.spillChunkRows = spillChunkRows;
+	}
+
+	/**
+	 * Where spilled sections are written, <code>java.io.tmpdir</code> by default. The files
+	 * are deleted once the export is written.
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Where the "Invoice Summary" sheet is read from when the index has complete totals for the
+	 * invoice period and buyer, see {@link InvoiceSummaryIndex#load}, instead of building the
+	 * summary from the invoice. <code>null</code>, the default, always builds it.
+	 */
+	public void setSummaryIndex(InvoiceSummaryIndex summaryIndex) {
+		this.summaryIndex = summaryIndex;
+	}
+
+	/**
+	 * Widest a column may grow, in characters. Values above the Excel limit of 255 are capped.
+	 */
+	public void setMaxColumnWidth(int maxColumnWidth) {
+		this.maxColumnWidth = maxColumnWidth;
 	}
 }
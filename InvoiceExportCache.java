@@ -0,0 +1,224 @@
+package com.usell.platform.web.billing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rendered invoice exports keyed by content digest, in two tiers. Small entries are kept in
+ * memory, every entry is kept as a file in a local directory. Both tiers are bounded by
+ * bytes and evict the least recently used entries first. Entries on disk are sent with
+ * {@link FileChannel#transferTo}, so the bytes don't pass through the heap.
+ * <p>
+ * The directory is indexed on construction, entries written by an earlier process are
+ * served after a restart.
+ */
+class InvoiceExportCache {
+
+	private static final String SUFFIX = ".export";
+
+	private final Path directory;
+
+	private final long maxMemoryBytes;
+
+	private final long maxDiskBytes;
+
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	private long memoryBytes;
+
+	private long diskBytes;
+
+	/**
+	 * An entry is kept in memory only if it takes at most an eighth of <code>maxMemoryBytes</code>,
+	 * so a few large exports can't flush out all the small ones.
+	 */
+	InvoiceExportCache(Path directory, long maxMemoryBytes, long maxDiskBytes) throws IOException {
+		this.directory = directory;
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		Files.createDirectories(directory);
+		indexDirectory();
+	}
+
+	/**
+	 * Writes the entry to <code>out</code>.
+	 *
+	 * @return false if there is no entry for the digest, nothing is written then
+	 */
+	boolean transferTo(String digest, OutputStream out) throws IOException {
+		byte[] bytes;
+		Long size;
+		synchronized (this) {
+			bytes = memory.get(digest);
+			size = bytes == null ? disk.get(digest) : null;
+		}
+		if (bytes != null) {
+			out.write(bytes);
+			return true;
+		}
+		if (size == null) {
+			return false;
+		}
+
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file(digest), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// deleted since the lookup
+			remove(digest);
+			return false;
+		}
+		try {
+			out.flush();
+			WritableByteChannel target = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+			long position = 0;
+			long length = channel.size();
+			while (position < length) {
+				position += channel.transferTo(position, length - position, target);
+			}
+		} finally {
+			channel.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Stores an entry in both tiers, evicting old entries to stay within the bounds.
+	 * An entry larger than the whole disk tier is not cached.
+	 */
+	void put(String digest, byte[] bytes) throws IOException {
+		if (bytes.length > maxDiskBytes) {
+			return;
+		}
+		Path target = file(digest);
+		Path tmp = Files.createTempFile(directory, digest, ".tmp");
+		try {
+			Files.write(tmp, bytes);
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		List<String> evicted = new ArrayList<String>();
+		synchronized (this) {
+			Long previous = disk.put(digest, Long.valueOf(bytes.length));
+			if (previous != null) {
+				diskBytes -= previous.longValue();
+			}
+			diskBytes += bytes.length;
+			evictDisk(digest, evicted);
+
+			if (bytes.length <= maxMemoryBytes / 8) {
+				byte[] previousBytes = memory.put(digest, bytes);
+				if (previousBytes != null) {
+					memoryBytes -= previousBytes.length;
+				}
+				memoryBytes += bytes.length;
+				evictMemory();
+			}
+		}
+		deleteFiles(evicted);
+	}
+
+	/**
+	 * Drops the entry from both tiers.
+	 */
+	void remove(String digest) throws IOException {
+		synchronized (this) {
+			byte[] bytes = memory.remove(digest);
+			if (bytes != null) {
+				memoryBytes -= bytes.length;
+			}
+			Long size = disk.remove(digest);
+			if (size == null) {
+				return;
+			}
+			diskBytes -= size.longValue();
+		}
+		Files.deleteIfExists(file(digest));
+	}
+
+	synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	private void evictMemory() {
+		Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+		while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+			memoryBytes -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	private void evictDisk(String keep, List<String> evicted) {
+		Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getKey().equals(keep)) {
+				continue;
+			}
+			diskBytes -= entry.getValue().longValue();
+			evicted.add(entry.getKey());
+			it.remove();
+			byte[] bytes = memory.remove(entry.getKey());
+			if (bytes != null) {
+				memoryBytes -= bytes.length;
+			}
+		}
+	}
+
+	private void deleteFiles(List<String> digests) throws IOException {
+		for (String digest : digests) {
+			Files.deleteIfExists(file(digest));
+		}
+	}
+
+	/** Oldest files first, so the access order starts out as the write order. */
+	private void indexDirectory() throws IOException {
+		File[] files = directory.toFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		List<String> evicted = new ArrayList<String>();
+		synchronized (this) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.endsWith(SUFFIX)) {
+					continue;
+				}
+				String digest = name.substring(0, name.length() - SUFFIX.length());
+				disk.put(digest, Long.valueOf(file.length()));
+				diskBytes += file.length();
+			}
+			evictDisk(null, evicted);
+		}
+		deleteFiles(evicted);
+	}
+
+	private Path file(String digest) {
+		return directory.resolve(digest + SUFFIX);
+	}
+}
@@ -0,0 +1,61 @@
+package com.usell.platform.web.billing;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * State of a single invoice export. A new context is created for every call to
+ * {@link InvoiceExcelService#exportInvoiceToExcel}, so concurrent exports never share
+ * a workbook or its styles. The date formatters are immutable and shared by all exports.
+ */
+class InvoiceExportContext {
+
+	private static final DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+
+	private static final DateTimeFormatter DETAILS_DATE_FORMAT =
+			DateTimeFormatter.ofPattern("MM/dd/yy").withZone(ZoneId.systemDefault());
+
+	private final Workbook workbook;
+
+	private final InvoiceStyleRegistry styleRegistry;
+
+	InvoiceExportContext(Workbook workbook) {
+		this.workbook = workbook;
+		this.styleRegistry = new InvoiceStyleRegistry(workbook);
+	}
+
+	Workbook getWorkbook() {
+		return workbook;
+	}
+
+	InvoiceStyleRegistry getStyleRegistry() {
+		return styleRegistry;
+	}
+
+	CellStyle getCellStyle() {
+		return styleRegistry.getStyle(InvoiceStyleRegistry.CURRENCY);
+	}
+
+	CellStyle getPercentageCellStyle() {
+		return styleRegistry.getStyle(InvoiceStyleRegistry.PERCENTAGE);
+	}
+
+	CellStyle getHeaderStyle() {
+		return styleRegistry.getStyle(InvoiceStyleRegistry.HEADER);
+	}
+
+	/** yyyy-MM-dd of the epoch millis. */
+	String formatDate(long millis) {
+		return DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+
+	/** MM/dd/yy of the epoch millis. */
+	String formatDetailsDate(long millis) {
+		return DETAILS_DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+}
@@ -0,0 +1,74 @@
+package com.usell.platform.web.billing;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.billing.InvoiceLead;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+
+/**
+ * Estimates the heap an export of an invoice takes from its row counts: the value objects
+ * built for each row and the workbook row written for it. The figures per row are rough
+ * defaults for an HSSF workbook, measure and set them for the deployed renderer.
+ */
+public class InvoiceExportCostEstimator {
+
+	private long baseBytes = 2 * 1024 * 1024;
+
+	private long bytesPerLead = 2 * 1024;
+
+	private long bytesPerOrderItem = 3 * 1024;
+
+	private long bytesPerPostPayOrder = 3 * 1024;
+
+	private long bytesPerShippingKit = 2 * 1024;
+
+	private long bytesPerCheckRequest = 1024;
+
+	public long estimateHeapBytes(Invoice invoice) {
+		long bytes = baseBytes;
+		List<InvoiceLead> leads = invoice.getLeads();
+		if (leads != null) {
+			bytes += leads.size() * bytesPerLead;
+			for (InvoiceLead lead : leads) {
+				List<InvoiceLeadOrderItem> orderItems = lead.getOrderItems();
+				bytes += size(orderItems) * bytesPerOrderItem;
+			}
+		}
+		bytes += size(invoice.getPostPayCustomerPayments()) * bytesPerPostPayOrder;
+		bytes += size(invoice.getShippingKits()) * bytesPerShippingKit;
+		bytes += size(invoice.getCheckRequests()) * bytesPerCheckRequest;
+		return bytes;
+	}
+
+	private static long size(Collection<?> rows) {
+		return rows == null ? 0 : rows.size();
+	}
+
+	/** Workbook, styles and summary sheet, whatever the size of the invoice. */
+	public void setBaseBytes(long baseBytes) {
+		this.baseBytes = baseBytes;
+	}
+
+	public void setBytesPerLead(long bytesPerLead) {
+		this.bytesPerLead = bytesPerLead;
+	}
+
+	public void setBytesPerOrderItem(long bytesPerOrderItem) {
+		this.bytesPerOrderItem = bytesPerOrderItem;
+	}
+
+	public void setBytesPerPostPayOrder(long bytesPerPostPayOrder) {
+		this.bytesPerPostPayOrder = bytesPerPostPayOrder;
+	}
+
+	/** A kit is on the sent or the resent sheet, or both. */
+	public void setBytesPerShippingKit(long bytesPerShippingKit) {
+		this.bytesPerShippingKit = bytesPerShippingKit;
+	}
+
+	public void setBytesPerCheckRequest(long bytesPerCheckRequest) {
+		this.bytesPerCheckRequest = bytesPerCheckRequest;
+	}
+}
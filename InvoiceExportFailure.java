@@ -0,0 +1,26 @@
+package com.usell.platform.web.billing;
+
+/**
+ * An invoice of a batch export that could not be rendered. The rest of the batch is not affected.
+ * The cause is whatever the render threw, an <code>Error</code> such as running out of heap
+ * on one large invoice included.
+ */
+public class InvoiceExportFailure {
+
+	private final InvoiceExportRequest request;
+
+	private final Throwable cause;
+
+	public InvoiceExportFailure(InvoiceExportRequest request, Throwable cause) {
+		this.request = request;
+		this.cause = cause;
+	}
+
+	public InvoiceExportRequest getRequest() {
+		return request;
+	}
+
+	public Throwable getCause() {
+		return cause;
+	}
+}
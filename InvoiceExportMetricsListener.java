@@ -0,0 +1,18 @@
+package com.usell.platform.web.billing;
+
+/**
+ * Receives timings and sizes of invoice exports. Called from the exporting thread, so
+ * implementations must be thread-safe and should return quickly.
+ */
+public interface InvoiceExportMetricsListener {
+
+	/**
+	 * @param sheetName the sheet of a {@link InvoiceExportPhase#RENDER} or {@link InvoiceExportPhase#AUTOSIZE}
+	 *                  phase, null for the phases of the whole export
+	 */
+	void phaseCompleted(InvoiceExportPhase phase, String sheetName, long nanos);
+
+	void sheetRendered(String sheetName, int rows);
+
+	void exportCompleted(long bytes, long nanos);
+}
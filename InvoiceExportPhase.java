@@ -0,0 +1,16 @@
+package com.usell.platform.web.billing;
+
+public enum InvoiceExportPhase {
+
+	/** Building the value objects of all sections through the InvoiceVoBuilder. */
+	VO_BUILD,
+
+	/** Writing the rows of one sheet. */
+	RENDER,
+
+	/** Applying the column widths of one sheet. */
+	AUTOSIZE,
+
+	/** Writing the finished workbook to the output stream. */
+	SERIALIZATION
+}
@@ -0,0 +1,13 @@
+package com.usell.platform.web.billing;
+
+/**
+ * The lane of {@link InvoiceExportScheduler} an export waits in.
+ */
+public enum InvoiceExportPriority {
+
+	/** A user waiting for a download. Always dispatched before batch exports. */
+	INTERACTIVE,
+
+	/** Bulk regeneration, run on the capacity interactive exports leave. */
+	BATCH
+}
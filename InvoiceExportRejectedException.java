@@ -0,0 +1,36 @@
+package com.usell.platform.web.billing;
+
+/**
+ * An export {@link InvoiceExportScheduler} refused or gave up on before it started.
+ */
+public class InvoiceExportRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Reason {
+		/** As many exports of the priority as allowed are already waiting. */
+		QUEUE_FULL,
+		/** The export waited longer than its priority allows. */
+		TIMED_OUT,
+		/** The scheduler was closed. */
+		SHUT_DOWN
+	}
+
+	private final InvoiceExportPriority priority;
+
+	private final Reason reason;
+
+	public InvoiceExportRejectedException(InvoiceExportPriority priority, Reason reason) {
+		super(priority + " export rejected: " + reason);
+		this.priority = priority;
+		this.reason = reason;
+	}
+
+	public InvoiceExportPriority getPriority() {
+		return priority;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+}
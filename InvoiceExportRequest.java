@@ -0,0 +1,44 @@
+package com.usell.platform.web.billing;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+
+/**
+ * One invoice of a batch export, together with the name of its file in the archive.
+ */
+public class InvoiceExportRequest {
+
+	private final String entryName;
+
+	private final Invoice invoice;
+
+	private final Buyer buyer;
+
+	private final Boolean isPowerBuyer;
+
+	public InvoiceExportRequest(String entryName, Invoice invoice, Buyer buyer, Boolean isPowerBuyer) {
+		if (entryName == null) {
+			throw new IllegalArgumentException("entryName is required");
+		}
+		this.entryName = entryName;
+		this.invoice = invoice;
+		this.buyer = buyer;
+		this.isPowerBuyer = isPowerBuyer;
+	}
+
+	public String getEntryName() {
+		return entryName;
+	}
+
+	public Invoice getInvoice() {
+		return invoice;
+	}
+
+	public Buyer getBuyer() {
+		return buyer;
+	}
+
+	public Boolean getIsPowerBuyer() {
+		return isPowerBuyer;
+	}
+}
@@ -0,0 +1,489 @@
+package com.usell.platform.web.billing;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Runs exports on a fixed number of workers in front of an {@link InvoiceExcelService}, with a
+ * lane per {@link InvoiceExportPriority} and a cap on the heap the running exports take.
+ * <p>
+ * Each export's heap is estimated up front by an {@link InvoiceExportCostEstimator}. An export
+ * starts when a worker is free and its estimate fits under <code>maxInFlightHeapBytes</code>
+ * with the running ones. Each lane is first in, first out, and interactive exports always go
+ * first: while one waits, no batch export is started.
+ * <p>
+ * Batch exports leave room for interactive ones. They use at most all workers but
+ * <code>reservedInteractiveWorkers</code>, and at most <code>batchHeapFraction</code> of the
+ * heap cap. A batch export bigger than that only starts when nothing else runs. An interactive
+ * export within the rest of the cap starts whenever no other interactive export runs, even if
+ * it doesn't fit beside an oversized batch export, so an interactive export waits for another
+ * interactive export, not for a month-end run. The cap is then exceeded by at most that rest.
+ * A bigger interactive export waits until it fits, or until nothing else runs.
+ * <p>
+ * A lane holds at most <code>maxQueueDepth</code> exports, and an export waiting longer than
+ * <code>maxWaitMillis</code> is dropped. Both are rejected with an
+ * {@link InvoiceExportRejectedException}. A listener that throws doesn't affect the exports.
+ */
+public class InvoiceExportScheduler implements Closeable {
+
+	private static final InvoiceExportPriority[] PRIORITIES = InvoiceExportPriority.values();
+
+	private final InvoiceExcelService invoiceExcelService;
+
+	private final int workerCount;
+
+	private final long maxInFlightHeapBytes;
+
+	private final ExecutorService workers;
+
+	private final ScheduledExecutorService timeouts;
+
+	private final Map<InvoiceExportPriority, Lane> lanes = new EnumMap<InvoiceExportPriority, Lane>(InvoiceExportPriority.class);
+
+	private InvoiceExportCostEstimator costEstimator = new InvoiceExportCostEstimator();
+
+	private volatile InvoiceExportSchedulerListener listener = new InvoiceExportSchedulerListener() {
+	};
+
+	/** Guarded by this, as are the lanes. */
+	private long inFlightHeapBytes;
+
+	private int reservedInteractiveWorkers = 1;
+
+	private double batchHeapFraction = 0.75;
+
+	private boolean closed;
+
+	private final AtomicLongArray admitted = new AtomicLongArray(PRIORITIES.length);
+
+	private final AtomicLongArray rejected = new AtomicLongArray(PRIORITIES.length);
+
+	private final AtomicLongArray waitNanos = new AtomicLongArray(PRIORITIES.length);
+
+	public InvoiceExportScheduler(InvoiceExcelService invoiceExcelService, int workerCount, long maxInFlightHeapBytes) {
+		this.invoiceExcelService = invoiceExcelService;
+		this.workerCount = workerCount;
+		this.maxInFlightHeapBytes = maxInFlightHeapBytes;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "invoice-export-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "invoice-export-timeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lanes.put(InvoiceExportPriority.INTERACTIVE, new Lane(100, TimeUnit.SECONDS.toMillis(30)));
+		lanes.put(InvoiceExportPriority.BATCH, new Lane(Integer.MAX_VALUE, 0));
+	}
+
+	/**
+	 * Queues an export. The future completes once the export is written to <code>out</code>,
+	 * or exceptionally with the exception of the export or an {@link InvoiceExportRejectedException}.
+	 */
+	public CompletableFuture<Void> submit(InvoiceExportPriority priority, Invoice invoice, InvoicePeriod invoicePeriod,
+			Buyer buyer, Boolean isPowerBuyer, OutputStream out) {
+		Job job = new Job(priority, invoice, invoicePeriod, buyer, isPowerBuyer, out, costEstimator.estimateHeapBytes(invoice));
+		Lane lane = lanes.get(priority);
+		int queueDepth;
+		InvoiceExportRejectedException.Reason rejection = null;
+		synchronized (this) {
+			if (closed) {
+				rejection = InvoiceExportRejectedException.Reason.SHUT_DOWN;
+			} else if (lane.queue.size() >= lane.maxQueueDepth) {
+				rejection = InvoiceExportRejectedException.Reason.QUEUE_FULL;
+			} else {
+				lane.queue.addLast(job);
+				if (lane.maxWaitMillis > 0) {
+					job.timeout = timeouts.schedule(() -> expire(job), lane.maxWaitMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			queueDepth = lane.queue.size();
+		}
+		if (rejection != null) {
+			reject(job, rejection);
+			return job.result;
+		}
+		final int depth = queueDepth;
+		notifyListener(() -> listener.exportQueued(priority, depth));
+		start(dispatch());
+		return job.result;
+	}
+
+	/**
+	 * The scheduler as an {@link InvoiceExcelService} for callers of one priority. Each call
+	 * waits for its export and throws what the export threw.
+	 */
+	public InvoiceExcelService forPriority(final InvoiceExportPriority priority) {
+		return (invoice, invoicePeriod, buyer, isPowerBuyer, out) -> {
+			CompletableFuture<Void> result = submit(priority, invoice, invoicePeriod, buyer, isPowerBuyer, out);
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						result.get();
+						return;
+					} catch (InterruptedException e) {
+						interrupted = true;
+						// the export writes to out, so it must not go on after the caller returned
+						if (cancel(result)) {
+							throw e;
+						}
+					}
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw e;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Starts the exports that may start now, head of each lane first.
+	 *
+	 * @return the jobs to start, outside the lock
+	 */
+	private synchronized List<Job> dispatch() {
+		List<Job> started = new ArrayList<Job>();
+		Lane interactive = lanes.get(InvoiceExportPriority.INTERACTIVE);
+		Lane batch = lanes.get(InvoiceExportPriority.BATCH);
+		while (!closed) {
+			Job job = interactive.queue.peekFirst();
+			if (job != null) {
+				if (!fitsInteractive(job, interactive)) {
+					break;
+				}
+			} else {
+				job = batch.queue.peekFirst();
+				if (job == null || !fitsBatch(job, batch)) {
+					break;
+				}
+			}
+			Lane lane = lanes.get(job.priority);
+			lane.queue.removeFirst();
+			lane.running++;
+			lane.inFlightHeapBytes += job.estimatedHeapBytes;
+			inFlightHeapBytes += job.estimatedHeapBytes;
+			started.add(job);
+		}
+		return started;
+	}
+
+	/**
+	 * Whether a worker is free and the job fits under the heap cap, or within the share batch
+	 * exports leave while no other interactive export runs, or nothing else runs.
+	 */
+	private boolean fitsInteractive(Job job, Lane interactive) {
+		int running = runningCount();
+		if (running >= workerCount) {
+			return false;
+		}
+		return running == 0 || inFlightHeapBytes + job.estimatedHeapBytes <= maxInFlightHeapBytes
+				|| (interactive.running == 0
+						&& job.estimatedHeapBytes <= maxInFlightHeapBytes - (long) (maxInFlightHeapBytes * batchHeapFraction));
+	}
+
+	/**
+	 * Whether a batch worker is free and the job fits under the batch share of the heap cap,
+	 * or nothing else runs.
+	 */
+	private boolean fitsBatch(Job job, Lane batch) {
+		int running = runningCount();
+		if (running >= workerCount || batch.running >= Math.max(1, workerCount - reservedInteractiveWorkers)) {
+			return false;
+		}
+		return running == 0 || (batch.inFlightHeapBytes + job.estimatedHeapBytes <= (long) (maxInFlightHeapBytes * batchHeapFraction)
+				&& inFlightHeapBytes + job.estimatedHeapBytes <= maxInFlightHeapBytes);
+	}
+
+	private int runningCount() {
+		int running = 0;
+		for (Lane lane : lanes.values()) {
+			running += lane.running;
+		}
+		return running;
+	}
+
+	private void start(List<Job> jobs) {
+		for (Job job : jobs) {
+			if (job.timeout != null) {
+				job.timeout.cancel(false);
+			}
+			long waited = System.nanoTime() - job.submittedNanos;
+			admitted.incrementAndGet(job.priority.ordinal());
+			waitNanos.addAndGet(job.priority.ordinal(), waited);
+			notifyListener(() -> listener.exportStarted(job.priority, waited, job.estimatedHeapBytes));
+			try {
+				workers.execute(() -> run(job));
+			} catch (RejectedExecutionException e) {
+				// closed after the job was dispatched
+				release(job);
+				reject(job, InvoiceExportRejectedException.Reason.SHUT_DOWN);
+			}
+		}
+	}
+
+	private void run(Job job) {
+		long start = System.nanoTime();
+		Throwable failure = null;
+		try {
+			invoiceExcelService.exportInvoiceToExcel(job.invoice, job.invoicePeriod, job.buyer, job.isPowerBuyer, job.out);
+		} catch (Exception | Error e) {
+			failure = e;
+		}
+		release(job);
+		long nanos = System.nanoTime() - start;
+		Throwable exportFailure = failure;
+		notifyListener(() -> listener.exportCompleted(job.priority, nanos, exportFailure));
+		if (failure == null) {
+			job.result.complete(null);
+		} else {
+			job.result.completeExceptionally(failure);
+		}
+		start(dispatch());
+	}
+
+	private synchronized void release(Job job) {
+		Lane lane = lanes.get(job.priority);
+		lane.running--;
+		lane.inFlightHeapBytes -= job.estimatedHeapBytes;
+		inFlightHeapBytes -= job.estimatedHeapBytes;
+	}
+
+	private void expire(Job job) {
+		if (remove(job)) {
+			reject(job, InvoiceExportRejectedException.Reason.TIMED_OUT);
+			// an expired head may have held back batch exports
+			start(dispatch());
+		}
+	}
+
+	/**
+	 * Takes a queued export out of its lane.
+	 *
+	 * @return false if it already started
+	 */
+	private boolean cancel(CompletableFuture<Void> result) {
+		Job cancelled = null;
+		synchronized (this) {
+			for (Lane lane : lanes.values()) {
+				for (Job job : lane.queue) {
+					if (job.result == result) {
+						cancelled = job;
+					}
+				}
+			}
+		}
+		if (cancelled == null || !remove(cancelled)) {
+			return false;
+		}
+		if (cancelled.timeout != null) {
+			cancelled.timeout.cancel(false);
+		}
+		cancelled.result.cancel(false);
+		start(dispatch());
+		return true;
+	}
+
+	private synchronized boolean remove(Job job) {
+		return lanes.get(job.priority).queue.remove(job);
+	}
+
+	private void reject(Job job, InvoiceExportRejectedException.Reason reason) {
+		rejected.incrementAndGet(job.priority.ordinal());
+		notifyListener(() -> listener.exportRejected(job.priority, reason));
+		job.result.completeExceptionally(new InvoiceExportRejectedException(job.priority, reason));
+	}
+
+	/**
+	 * Tells the listener, ignoring what it throws: the slot of an export must still be released
+	 * and its result completed.
+	 */
+	private static void notifyListener(Runnable notification) {
+		try {
+			notification.run();
+		} catch (RuntimeException e) {
+			// the listener missed an event, the export goes on
+		}
+	}
+
+	/**
+	 * Rejects the queued exports and waits up to a minute for the running ones.
+	 */
+	@Override
+	public void close() {
+		List<Job> queued = new ArrayList<Job>();
+		synchronized (this) {
+			closed = true;
+			for (Lane lane : lanes.values()) {
+				queued.addAll(lane.queue);
+				lane.queue.clear();
+			}
+		}
+		for (Job job : queued) {
+			if (job.timeout != null) {
+				job.timeout.cancel(false);
+			}
+			reject(job, InvoiceExportRejectedException.Reason.SHUT_DOWN);
+		}
+		timeouts.shutdownNow();
+		workers.shutdown();
+		try {
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized int getQueueDepth(InvoiceExportPriority priority) {
+		return lanes.get(priority).queue.size();
+	}
+
+	public synchronized int getRunningCount(InvoiceExportPriority priority) {
+		return lanes.get(priority).running;
+	}
+
+	/**
+	 * @return the estimated heap of the running exports
+	 */
+	public synchronized long getInFlightHeapBytes() {
+		return inFlightHeapBytes;
+	}
+
+	public long getAdmittedCount(InvoiceExportPriority priority) {
+		return admitted.get(priority.ordinal());
+	}
+
+	public long getRejectedCount(InvoiceExportPriority priority) {
+		return rejected.get(priority.ordinal());
+	}
+
+	/**
+	 * @return the time the started exports of the priority waited, over all of them
+	 */
+	public long getTotalWaitNanos(InvoiceExportPriority priority) {
+		return waitNanos.get(priority.ordinal());
+	}
+
+	public void setCostEstimator(InvoiceExportCostEstimator costEstimator) {
+		this.costEstimator = costEstimator;
+	}
+
+	public void setListener(InvoiceExportSchedulerListener listener) {
+		this.listener = listener == null ? new InvoiceExportSchedulerListener() {
+		} : listener;
+	}
+
+	/**
+	 * Exports of the priority allowed to wait, 100 interactive and no limit for batch by default.
+	 */
+	public synchronized void setMaxQueueDepth(InvoiceExportPriority priority, int maxQueueDepth) {
+		lanes.get(priority).maxQueueDepth = maxQueueDepth;
+	}
+
+	/**
+	 * How long an export of the priority may wait to start, 0 for no limit. 30 seconds for
+	 * interactive and no limit for batch by default. Applies to exports submitted afterwards.
+	 */
+	public synchronized void setMaxWaitMillis(InvoiceExportPriority priority, long maxWaitMillis) {
+		lanes.get(priority).maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Workers batch exports leave to interactive ones, 1 by default. Batch exports get at
+	 * least one worker.
+	 */
+	public synchronized void setReservedInteractiveWorkers(int reservedInteractiveWorkers) {
+		this.reservedInteractiveWorkers = reservedInteractiveWorkers;
+	}
+
+	/**
+	 * Share of the heap cap batch exports may take together, 0.75 by default.
+	 */
+	public synchronized void setBatchHeapFraction(double batchHeapFraction) {
+		this.batchHeapFraction = batchHeapFraction;
+	}
+
+	private static final class Lane {
+
+		private final ArrayDeque<Job> queue = new ArrayDeque<Job>();
+
+		private int maxQueueDepth;
+
+		private long maxWaitMillis;
+
+		private int running;
+
+		private long inFlightHeapBytes;
+
+		Lane(int maxQueueDepth, long maxWaitMillis) {
+			this.maxQueueDepth = maxQueueDepth;
+			this.maxWaitMillis = maxWaitMillis;
+		}
+	}
+
+	private static final class Job {
+
+		private final InvoiceExportPriority priority;
+
+		private final Invoice invoice;
+
+		private final InvoicePeriod invoicePeriod;
+
+		private final Buyer buyer;
+
+		private final Boolean isPowerBuyer;
+
+		private final OutputStream out;
+
+		private final long estimatedHeapBytes;
+
+		private final long submittedNanos = System.nanoTime();
+
+		private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+		private ScheduledFuture<?> timeout;
+
+		Job(InvoiceExportPriority priority, Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer, Boolean isPowerBuyer,
+				OutputStream out, long estimatedHeapBytes) {
+			this.priority = priority;
+			this.invoice = invoice;
+			this.invoicePeriod = invoicePeriod;
+			this.buyer = buyer;
+			this.isPowerBuyer = isPowerBuyer;
+			this.out = out;
+			this.estimatedHeapBytes = estimatedHeapBytes;
+		}
+	}
+}
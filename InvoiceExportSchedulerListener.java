@@ -0,0 +1,30 @@
+package com.usell.platform.web.billing;
+
+/**
+ * Told about the exports passing through an {@link InvoiceExportScheduler}. Called outside the
+ * scheduler's lock, from the submitting or the exporting thread, so implementations must be
+ * thread-safe. All methods do nothing by default.
+ */
+public interface InvoiceExportSchedulerListener {
+
+	/**
+	 * @param queueDepth exports of the priority waiting, this one included
+	 */
+	default void exportQueued(InvoiceExportPriority priority, int queueDepth) {
+	}
+
+	/**
+	 * @param waitNanos time from submission to the start of the export
+	 */
+	default void exportStarted(InvoiceExportPriority priority, long waitNanos, long estimatedHeapBytes) {
+	}
+
+	default void exportRejected(InvoiceExportPriority priority, InvoiceExportRejectedException.Reason reason) {
+	}
+
+	/**
+	 * @param failure the exception of the export, null if it succeeded
+	 */
+	default void exportCompleted(InvoiceExportPriority priority, long nanos, Throwable failure) {
+	}
+}
@@ -0,0 +1,502 @@
+package com.usell.platform.web.billing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A closed invoice as written by {@link InvoiceExportSnapshotWriter}, read in place from a
+ * <code>ByteBuffer</code>. {@link InvoiceExcelServiceImpl#exportSnapshotToExcel} and
+ * {@link InvoiceDelimitedExportServiceImpl#exportSnapshot} render it without the invoice's
+ * object graph.
+ * <p>
+ * The format, big-endian throughout:
+ * <pre>
+ * snapshot: magic "USIS", version short, blocks up to the end of the buffer
+ * block:    id byte, length int, payload
+ * summary:  block 0, the invoice summary field by field
+ * section:  block 1.., row count int, column count int, columns
+ * column:   type byte, header (length int, UTF-8 bytes), length int, then longs (dates),
+ *           doubles (numbers), one text vector (text) or two (first and last name)
+ * text:     0, null bitmap, offsets int[rows + 1], UTF-8 bytes
+ *           1, dictionary size int, offsets int[size + 1], UTF-8 bytes, ids int[rows], -1 for null
+ * </pre>
+ * Readers skip blocks they don't know, so later versions can add sections. A version with
+ * a different major number is refused. Columns are matched to the current sheet specs by
+ * their header, so a spec that reorders its columns still reads an older snapshot; one
+ * that adds a column or changes a column's type refuses it.
+ * <p>
+ * Values are decoded only as a row is rendered, strings straight from the buffer's array
+ * when it has one. Dictionary strings are decoded once per snapshot. The buffer must not
+ * change while the snapshot is in use, safe to read from several threads.
+ */
+public final class InvoiceExportSnapshot {
+
+	static final int MAGIC = 0x55534953;
+
+	static final short VERSION = 0x0200;
+
+	static final byte SUMMARY = 0;
+
+	static final byte PLAIN = 0;
+
+	static final byte DICTIONARY = 1;
+
+	/**
+	 * The sections in the order of their block ids, starting at 1.
+	 */
+	enum Section {
+		LEADS(InvoiceSheetSpecs.LEADS),
+		DEVICE_DETAILS(InvoiceSheetSpecs.DEVICE_DETAILS),
+		POST_PAY_ORDERS(InvoiceSheetSpecs.POST_PAY_ORDERS),
+		SENT_KITS(InvoiceSheetSpecs.SENT_KITS),
+		RESENT_KITS(InvoiceSheetSpecs.RESENT_KITS),
+		CHECK_REQUESTS(InvoiceSheetSpecs.CHECK_REQUESTS);
+
+		private final InvoiceSheetSpec<?> spec;
+
+		Section(InvoiceSheetSpec<?> spec) {
+			this.spec = spec;
+		}
+
+		byte blockId() {
+			return (byte) (ordinal() + 1);
+		}
+
+		InvoiceSheetSpec<?> getSpec() {
+			return spec;
+		}
+	}
+
+	private final ByteBuffer buffer;
+
+	private final short version;
+
+	private final int summaryPosition;
+
+	private final Map<Section, SnapshotSection> sections = new LinkedHashMap<Section, SnapshotSection>();
+
+	private InvoiceExportSnapshot(ByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.remaining() < 6 || buffer.getInt(buffer.position()) != MAGIC) {
+			throw new IllegalArgumentException("Not an invoice export snapshot");
+		}
+		version = buffer.getShort(buffer.position() + 4);
+		if ((version >>> 8) != (VERSION >>> 8)) {
+			throw new IllegalArgumentException("Unsupported invoice export snapshot version " + Integer.toHexString(version));
+		}
+
+		int summary = -1;
+		Section[] known = Section.values();
+		int position = buffer.position() + 6;
+		while (position < buffer.limit()) {
+			byte id = buffer.get(position);
+			int length = buffer.getInt(position + 1);
+			int payload = position + 5;
+			if (length < 0 || payload + length > buffer.limit()) {
+				throw new IllegalArgumentException("Truncated invoice export snapshot block " + id);
+			}
+			if (id == SUMMARY) {
+				summary = payload;
+			} else if (id > 0 && id <= known.length) {
+				Section section = known[id - 1];
+				sections.put(section, new SnapshotSection(section, payload));
+			}
+			position = payload + length;
+		}
+		if (summary < 0) {
+			throw new IllegalArgumentException("Invoice export snapshot without a summary");
+		}
+		summaryPosition = summary;
+	}
+
+	/**
+	 * Checks the header and indexes the blocks. Nothing is copied, the snapshot reads from
+	 * the buffer's remaining bytes as they are.
+	 *
+	 * @throws IllegalArgumentException if the buffer holds no snapshot this version can read
+	 */
+	public static InvoiceExportSnapshot read(ByteBuffer buffer) {
+		return new InvoiceExportSnapshot(buffer.duplicate());
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * The summary as it was built when the snapshot was written. A new value object on every call.
+	 */
+	public InvoiceSummaryVo getSummary() {
+		Decoder decoder = new Decoder(summaryPosition);
+		InvoiceSummaryVo summary = new InvoiceSummaryVo();
+		summary.setBuyer(decoder.string());
+		summary.setInvoiceNumber(decoder.string());
+		summary.setInvoicePeriodStartDate(decoder.string());
+		summary.setInvoicePeriodEndDate(decoder.string());
+		summary.setInvoiceDate(decoder.string());
+		summary.setPostPayOrderCount(decoder.integer());
+		summary.setTotalPostPayOrderCommission(decoder.number());
+		summary.setTotalCheckCount(decoder.nextInt());
+		summary.setCheckChargePerUnit(decoder.number());
+		summary.setTotalCheckAmountDue(decoder.number());
+		summary.setAmountDue(decoder.string());
+		if (decoder.nextByte() != 0) {
+			summary.setShippingKitSummaryVo(decodeShippingKits(decoder));
+		}
+		return summary;
+	}
+
+	private static ShippingKitSummaryVo decodeShippingKits(Decoder decoder) {
+		List<String> days = decoder.strings();
+		List<String> categories = decoder.strings();
+		Map<ShippingKitSummaryVo.CategoryDay, Integer> dailyCounts = new HashMap<ShippingKitSummaryVo.CategoryDay, Integer>();
+		for (String day : days) {
+			for (String category : categories) {
+				int count = decoder.nextInt();
+				if (count >= 0) {
+					ShippingKitSummaryVo.CategoryDay categoryDay = new ShippingKitSummaryVo.CategoryDay();
+					categoryDay.day = day;
+					categoryDay.productCategory = category;
+					dailyCounts.put(categoryDay, Integer.valueOf(count));
+				}
+			}
+		}
+		Map<String, Integer> categoryCounts = new LinkedHashMap<String, Integer>();
+		Map<String, String> pricesPerUnit = new LinkedHashMap<String, String>();
+		Map<String, String> amountsDue = new LinkedHashMap<String, String>();
+		for (String category : categories) {
+			categoryCounts.put(category, decoder.integer());
+			pricesPerUnit.put(category, decoder.string());
+			amountsDue.put(category, decoder.string());
+		}
+
+		ShippingKitSummaryVo kits = new ShippingKitSummaryVo();
+		kits.setDays(days);
+		kits.setProductCategories(categories);
+		kits.setDailyCategoryCount(dailyCounts);
+		kits.setCategoryCount(categoryCounts);
+		kits.setCategoryPricePerUnit(pricesPerUnit);
+		kits.setCategoryAmountDue(amountsDue);
+		kits.setAmountDue(decoder.string());
+		return kits;
+	}
+
+	/**
+	 * @return null if the snapshot has no rows for the section
+	 */
+	SnapshotSection getSection(Section section) {
+		return sections.get(section);
+	}
+
+	/**
+	 * @return the number of rows of the section, 0 if it isn't in the snapshot
+	 */
+	int getRowCount(Section section) {
+		SnapshotSection snapshotSection = sections.get(section);
+		return snapshotSection == null ? 0 : snapshotSection.getRowCount();
+	}
+
+	private static String decode(ByteBuffer buffer, int position, int length, byte[][] scratch) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+		}
+		if (scratch[0].length < length) {
+			scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+		}
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.position(position);
+		bytes.get(scratch[0], 0, length);
+		return new String(scratch[0], 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The rows of one section. Each column is found by its position in the buffer, and a
+	 * {@link Cursor} reads the values of one row from there. Columns are indexed in the
+	 * order they were written, which need not be the current spec's.
+	 */
+	final class SnapshotSection implements Iterable<Cursor> {
+
+		private final int rowCount;
+
+		private final InvoiceColumn.Type[] types;
+
+		/** Start of the column's payload, the first name's vector for a NAME column. */
+		private final int[] positions;
+
+		private final TextVector[] texts;
+
+		private final TextVector[] lastNames;
+
+		private final InvoiceSheetSpec<Cursor> spec;
+
+		SnapshotSection(Section section, int position) {
+			rowCount = buffer.getInt(position);
+			int columnCount = buffer.getInt(position + 4);
+			types = new InvoiceColumn.Type[columnCount];
+			positions = new int[columnCount];
+			texts = new TextVector[columnCount];
+			lastNames = new TextVector[columnCount];
+
+			InvoiceColumn.Type[] knownTypes = InvoiceColumn.Type.values();
+			Map<String, Integer> columnsByHeader = new HashMap<String, Integer>(columnCount * 2);
+			byte[][] scratch = {new byte[64]};
+			int columnPosition = position + 8;
+			for (int i = 0; i < columnCount; i++) {
+				int type = buffer.get(columnPosition);
+				if (type < 0 || type >= knownTypes.length) {
+					throw new IllegalArgumentException("Unknown snapshot column type " + type + " in sheet "
+							+ section.getSpec().getSheetName());
+				}
+				types[i] = knownTypes[type];
+				int headerLength = buffer.getInt(columnPosition + 1);
+				columnsByHeader.put(decode(buffer, columnPosition + 5, headerLength, scratch), Integer.valueOf(i));
+				columnPosition += 5 + headerLength;
+				int length = buffer.getInt(columnPosition);
+				positions[i] = columnPosition + 4;
+				if (types[i] == InvoiceColumn.Type.TEXT || types[i] == InvoiceColumn.Type.NAME) {
+					texts[i] = new TextVector(positions[i], rowCount);
+					if (types[i] == InvoiceColumn.Type.NAME) {
+						lastNames[i] = new TextVector(texts[i].end, rowCount);
+					}
+				}
+				columnPosition = positions[i] + length;
+			}
+			spec = cursorSpec(section.getSpec(), columnsByHeader);
+		}
+
+		/**
+		 * The current spec of the section, each column reading the snapshot column written
+		 * under the same header.
+		 */
+		private InvoiceSheetSpec<Cursor> cursorSpec(InvoiceSheetSpec<?> sourceSpec, Map<String, Integer> columnsByHeader) {
+			String[] headers = sourceSpec.getHeaders();
+			InvoiceSheetSpec<Cursor> cursorSpec = new InvoiceSheetSpec<Cursor>(sourceSpec.getSheetName(), headers);
+			for (int i = 0; i < headers.length; i++) {
+				Integer snapshotColumn = columnsByHeader.get(headers[i]);
+				if (snapshotColumn == null) {
+					throw new IllegalArgumentException("Snapshot has no column " + headers[i].trim() + " for sheet "
+							+ sourceSpec.getSheetName());
+				}
+				final int index = snapshotColumn.intValue();
+				InvoiceColumn.Type type = sourceSpec.getColumn(i).getType();
+				if (types[index] != type) {
+					throw new IllegalArgumentException("Snapshot column " + headers[i].trim() + " of sheet "
+							+ sourceSpec.getSheetName() + " is not of type " + type);
+				}
+				switch (type) {
+				case TEXT:
+					cursorSpec.column(InvoiceColumn.<Cursor>text(cursor -> cursor.text(index)));
+					break;
+				case NAME:
+					cursorSpec.column(InvoiceColumn.<Cursor>name(cursor -> cursor.text(index), cursor -> cursor.lastName(index),
+							sourceSpec.getColumn(i).isUpperCase()));
+					break;
+				case DATE:
+				case DETAILS_DATE:
+					cursorSpec.column(InvoiceColumn.<Cursor>dateMillis(type, cursor -> cursor.dateMillis(index)));
+					break;
+				case MONEY:
+				case PERCENTAGE:
+					cursorSpec.column(InvoiceColumn.<Cursor>numberValue(type, cursor -> cursor.number(index)));
+					break;
+				}
+			}
+			return cursorSpec;
+		}
+
+		int getRowCount() {
+			return rowCount;
+		}
+
+		/**
+		 * The section's spec over the snapshot's rows: the same sheet name, headers and columns.
+		 */
+		InvoiceSheetSpec<Cursor> getSpec() {
+			return spec;
+		}
+
+		/**
+		 * Walks the rows with one reused {@link Cursor}.
+		 */
+		@Override
+		public Iterator<Cursor> iterator() {
+			final Cursor cursor = new Cursor(this);
+			return new Iterator<Cursor>() {
+
+				@Override
+				public boolean hasNext() {
+					return cursor.row + 1 < rowCount;
+				}
+
+				@Override
+				public Cursor next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					cursor.row++;
+					return cursor;
+				}
+			};
+		}
+	}
+
+	/**
+	 * A row of a section. Values are read from the buffer as they are asked for.
+	 */
+	final class Cursor {
+
+		private final SnapshotSection section;
+
+		private final byte[][] scratch = {new byte[64]};
+
+		private int row = -1;
+
+		private Cursor(SnapshotSection section) {
+			this.section = section;
+		}
+
+		/** Value of a TEXT column, the first name of a NAME column. */
+		String text(int column) {
+			return section.texts[column].get(row, scratch);
+		}
+
+		String lastName(int column) {
+			return section.lastNames[column].get(row, scratch);
+		}
+
+		long dateMillis(int column) {
+			return buffer.getLong(section.positions[column] + row * 8);
+		}
+
+		double number(int column) {
+			return buffer.getDouble(section.positions[column] + row * 8);
+		}
+	}
+
+	/**
+	 * One text vector in either encoding.
+	 */
+	private final class TextVector {
+
+		private final boolean dictionary;
+
+		private final int nulls;
+
+		private final int offsets;
+
+		private final int bytes;
+
+		private final int ids;
+
+		private final String[] decoded;
+
+		/** First byte after the vector. */
+		private final int end;
+
+		TextVector(int position, int rowCount) {
+			dictionary = buffer.get(position) == DICTIONARY;
+			if (dictionary) {
+				int size = buffer.getInt(position + 1);
+				nulls = -1;
+				offsets = position + 5;
+				bytes = offsets + (size + 1) * 4;
+				ids = bytes + buffer.getInt(offsets + size * 4);
+				decoded = new String[size];
+				end = ids + rowCount * 4;
+			} else {
+				nulls = position + 1;
+				offsets = nulls + (rowCount + 7) / 8;
+				bytes = offsets + (rowCount + 1) * 4;
+				ids = -1;
+				decoded = null;
+				end = bytes + buffer.getInt(offsets + rowCount * 4);
+			}
+		}
+
+		String get(int row, byte[][] scratch) {
+			if (dictionary) {
+				int id = buffer.getInt(ids + row * 4);
+				if (id < 0) {
+					return null;
+				}
+				String value = decoded[id];
+				if (value == null) {
+					value = string(id, scratch);
+					decoded[id] = value;
+				}
+				return value;
+			}
+			if ((buffer.get(nulls + (row >>> 3)) & (1 << (row & 7))) != 0) {
+				return null;
+			}
+			return string(row, scratch);
+		}
+
+		private String string(int index, byte[][] scratch) {
+			int start = buffer.getInt(offsets + index * 4);
+			int length = buffer.getInt(offsets + index * 4 + 4) - start;
+			return decode(buffer, bytes + start, length, scratch);
+		}
+	}
+
+	/**
+	 * Reads the summary block front to back.
+	 */
+	private final class Decoder {
+
+		private int position;
+
+		private final byte[][] scratch = {new byte[64]};
+
+		Decoder(int position) {
+			this.position = position;
+		}
+
+		byte nextByte() {
+			return buffer.get(position++);
+		}
+
+		int nextInt() {
+			int value = buffer.getInt(position);
+			position += 4;
+			return value;
+		}
+
+		String string() {
+			int length = nextInt();
+			if (length < 0) {
+				return null;
+			}
+			String value = decode(buffer, position, length, scratch);
+			position += length;
+			return value;
+		}
+
+		List<String> strings() {
+			int count = nextInt();
+			List<String> values = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				values.add(string());
+			}
+			return values;
+		}
+
+		Integer integer() {
+			int value = nextInt();
+			return nextByte() == 0 ? null : Integer.valueOf(value);
+		}
+
+		Double number() {
+			double value = buffer.getDouble(position);
+			position += 8;
+			return nextByte() == 0 ? null : Double.valueOf(value);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.usell.platform.web.billing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Writes a closed invoice as an {@link InvoiceExportSnapshot}: the summary and every section
+ * an export would show, column by column. Device details are written with the partner
+ * product ids, the renderer leaves them out for power buyers.
+ * <p>
+ * A text column whose rows repeat a few values, like the product category or the partner
+ * name, is written as a dictionary and an id per row.
+ */
+public class InvoiceExportSnapshotWriter {
+
+	private InvoiceVoBuilder invoiceVoBuilder;
+
+	public void writeSnapshot(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer, OutputStream out) throws IOException {
+		InvoiceSections sections = InvoiceSections.build(invoiceVoBuilder, invoice, invoicePeriod, buyer);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		data.writeInt(InvoiceExportSnapshot.MAGIC);
+		data.writeShort(InvoiceExportSnapshot.VERSION);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream(1024);
+		writeSummary(new DataOutputStream(block), sections.getSummary());
+		writeBlock(data, InvoiceExportSnapshot.SUMMARY, block);
+
+		writeSection(data, block, InvoiceExportSnapshot.Section.LEADS, InvoiceSheetSpecs.LEADS, sections.getLeads());
+		writeSection(data, block, InvoiceExportSnapshot.Section.DEVICE_DETAILS, InvoiceSheetSpecs.DEVICE_DETAILS,
+				sections.getDeviceDetails());
+		writeSection(data, block, InvoiceExportSnapshot.Section.POST_PAY_ORDERS, InvoiceSheetSpecs.POST_PAY_ORDERS,
+				sections.getPostPayOrders());
+		writeSection(data, block, InvoiceExportSnapshot.Section.SENT_KITS, InvoiceSheetSpecs.SENT_KITS, sections.getSentKits());
+		writeSection(data, block, InvoiceExportSnapshot.Section.RESENT_KITS, InvoiceSheetSpecs.RESENT_KITS,
+				sections.getResentKits());
+		writeSection(data, block, InvoiceExportSnapshot.Section.CHECK_REQUESTS, InvoiceSheetSpecs.CHECK_REQUESTS,
+				sections.getCheckRequests());
+		data.flush();
+	}
+
+	private static void writeBlock(DataOutputStream data, byte id, ByteArrayOutputStream block) throws IOException {
+		data.writeByte(id);
+		data.writeInt(block.size());
+		block.writeTo(data);
+		block.reset();
+	}
+
+	private static void writeSummary(DataOutputStream data, InvoiceSummaryVo summary) throws IOException {
+		writeString(data, summary.getBuyer());
+		writeString(data, summary.getInvoiceNumber());
+		writeString(data, summary.getInvoicePeriodStartDate());
+		writeString(data, summary.getInvoicePeriodEndDate());
+		writeString(data, summary.getInvoiceDate());
+		writeInteger(data, summary.getPostPayOrderCount());
+		writeNumber(data, summary.getTotalPostPayOrderCommission());
+		data.writeInt(summary.getTotalCheckCount());
+		writeNumber(data, summary.getCheckChargePerUnit());
+		writeNumber(data, summary.getTotalCheckAmountDue());
+		writeString(data, summary.getAmountDue());
+
+		ShippingKitSummaryVo kits = summary.getShippingKitSummaryVo();
+		data.writeByte(kits == null ? 0 : 1);
+		if (kits != null) {
+			writeShippingKits(data, kits);
+		}
+	}
+
+	private static void writeShippingKits(DataOutputStream data, ShippingKitSummaryVo kits) throws IOException {
+		List<String> days = kits.getDays();
+		List<String> categories = kits.getProductCategories();
+		writeStrings(data, days);
+		writeStrings(data, categories);
+
+		Map<String, Integer> dayIndexes = indexes(days);
+		Map<String, Integer> categoryIndexes = indexes(categories);
+		int[] dailyCounts = new int[days.size() * categories.size()];
+		Arrays.fill(dailyCounts, -1);
+		for (Map.Entry<ShippingKitSummaryVo.CategoryDay, Integer> entry : kits.getDailyCategoryCount().entrySet()) {
+			Integer day = dayIndexes.get(entry.getKey().day);
+			Integer category = categoryIndexes.get(entry.getKey().productCategory);
+			if (day != null && category != null && entry.getValue() != null) {
+				dailyCounts[day.intValue() * categories.size() + category.intValue()] = entry.getValue().intValue();
+			}
+		}
+		for (int count : dailyCounts) {
+			data.writeInt(count);
+		}
+		for (String category : categories) {
+			writeInteger(data, kits.getCategoryCount().get(category));
+			writeString(data, kits.getCategoryPricePerUnit().get(category));
+			writeString(data, kits.getCategoryAmountDue().get(category));
+		}
+		writeString(data, kits.getAmountDue());
+	}
+
+	/**
+	 * Writes the section's block, nothing if it has no rows.
+	 */
+	private static <T> void writeSection(DataOutputStream data, ByteArrayOutputStream block, InvoiceExportSnapshot.Section section,
+			InvoiceSheetSpec<T> spec, List<T> rows) throws IOException {
+		if (!InvoiceSections.hasRows(rows)) {
+			return;
+		}
+		DataOutputStream sectionData = new DataOutputStream(block);
+		sectionData.writeInt(rows.size());
+		sectionData.writeInt(spec.getColumnCount());
+		ByteArrayOutputStream column = new ByteArrayOutputStream(rows.size() * 8);
+		DataOutputStream columnData = new DataOutputStream(column);
+		for (int i = 0; i < spec.getColumnCount(); i++) {
+			InvoiceColumn<T> specColumn = spec.getColumn(i);
+			switch (specColumn.getType()) {
+			case TEXT:
+				writeTexts(columnData, rows, specColumn, false);
+				break;
+			case NAME:
+				writeTexts(columnData, rows, specColumn, false);
+				writeTexts(columnData, rows, specColumn, true);
+				break;
+			case DATE:
+			case DETAILS_DATE:
+				for (T row : rows) {
+					columnData.writeLong(specColumn.dateMillis(row));
+				}
+				break;
+			case MONEY:
+			case PERCENTAGE:
+				for (T row : rows) {
+					columnData.writeDouble(specColumn.number(row));
+				}
+				break;
+			}
+			sectionData.writeByte(specColumn.getType().ordinal());
+			writeString(sectionData, spec.getHeaders()[i]);
+			sectionData.writeInt(column.size());
+			column.writeTo(sectionData);
+			column.reset();
+		}
+		writeBlock(data, section.blockId(), block);
+	}
+
+	/**
+	 * Writes one text vector, as a dictionary if there are at most a quarter as many
+	 * distinct values as rows.
+	 */
+	private static <T> void writeTexts(DataOutputStream data, List<T> rows, InvoiceColumn<T> column, boolean lastName)
+			throws IOException {
+		int rowCount = rows.size();
+		String[] values = new String[rowCount];
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> dictionary = new ArrayList<String>();
+		int index = 0;
+		for (T row : rows) {
+			String value = lastName ? column.lastName(row) : column.text(row);
+			values[index++] = value;
+			if (value != null && dictionary.size() * 4 <= rowCount && !ids.containsKey(value)) {
+				ids.put(value, Integer.valueOf(dictionary.size()));
+				dictionary.add(value);
+			}
+		}
+
+		if (dictionary.size() * 4 <= rowCount) {
+			data.writeByte(InvoiceExportSnapshot.DICTIONARY);
+			data.writeInt(dictionary.size());
+			writeOffsetsAndBytes(data, dictionary.toArray(new String[dictionary.size()]));
+			for (String value : values) {
+				data.writeInt(value == null ? -1 : ids.get(value).intValue());
+			}
+			return;
+		}
+
+		data.writeByte(InvoiceExportSnapshot.PLAIN);
+		byte[] nulls = new byte[(rowCount + 7) / 8];
+		for (int i = 0; i < rowCount; i++) {
+			if (values[i] == null) {
+				nulls[i >>> 3] |= 1 << (i & 7);
+			}
+		}
+		data.write(nulls);
+		writeOffsetsAndBytes(data, values);
+	}
+
+	/**
+	 * Writes the end offset of every value after a leading 0, then the values' UTF-8 bytes.
+	 * A null is written as an empty value.
+	 */
+	private static void writeOffsetsAndBytes(DataOutputStream data, String[] values) throws IOException {
+		byte[][] bytes = new byte[values.length][];
+		int offset = 0;
+		data.writeInt(0);
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = values[i] == null ? new byte[0] : values[i].getBytes(StandardCharsets.UTF_8);
+			offset += bytes[i].length;
+			data.writeInt(offset);
+		}
+		for (byte[] value : bytes) {
+			data.write(value);
+		}
+	}
+
+	private static Map<String, Integer> indexes(List<String> values) {
+		Map<String, Integer> indexes = new HashMap<String, Integer>(values.size() * 2);
+		for (int i = 0; i < values.size(); i++) {
+			indexes.put(values.get(i), Integer.valueOf(i));
+		}
+		return indexes;
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		if (value == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static void writeStrings(DataOutputStream data, List<String> values) throws IOException {
+		data.writeInt(values.size());
+		for (String value : values) {
+			writeString(data, value);
+		}
+	}
+
+	/** The value, 0 if null, then whether it is set. */
+	private static void writeInteger(DataOutputStream data, Integer value) throws IOException {
+		data.writeInt(value == null ? 0 : value.intValue());
+		data.writeByte(value == null ? 0 : 1);
+	}
+
+	/** The value, 0 if null, then whether it is set. */
+	private static void writeNumber(DataOutputStream data, Double value) throws IOException {
+		data.writeDouble(value == null ? 0 : value.doubleValue());
+		data.writeByte(value == null ? 0 : 1);
+	}
+
+	public void setInvoiceVoBuilder(InvoiceVoBuilder invoiceVoBuilder) {
+		this.invoiceVoBuilder = invoiceVoBuilder;
+	}
+}
@@ -0,0 +1,60 @@
+package com.usell.platform.web.billing;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.usell.platform.billing.InvoiceLead;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+
+/**
+ * The order items of all leads as one read-only list, in lead order. A snapshot: the item
+ * references are copied into one array when the list is made, later changes to the leads'
+ * lists don't show. The items themselves are shared, not copied.
+ * <p>
+ * The leads' lists are walked once with their iterators, so linked lists cost no more than
+ * array lists, and {@link #get} is an array read after that.
+ */
+final class InvoiceLeadOrderItems extends AbstractList<InvoiceLeadOrderItem> implements RandomAccess {
+
+	private final InvoiceLeadOrderItem[] items;
+
+	private InvoiceLeadOrderItems(List<InvoiceLead> leads) {
+		int total = 0;
+		for (InvoiceLead lead : leads) {
+			List<InvoiceLeadOrderItem> orderItems = lead.getOrderItems();
+			if (orderItems != null) {
+				total += orderItems.size();
+			}
+		}
+		InvoiceLeadOrderItem[] copied = new InvoiceLeadOrderItem[total];
+		int index = 0;
+		for (InvoiceLead lead : leads) {
+			List<InvoiceLeadOrderItem> orderItems = lead.getOrderItems();
+			if (orderItems != null) {
+				for (InvoiceLeadOrderItem orderItem : orderItems) {
+					copied[index++] = orderItem;
+				}
+			}
+		}
+		items = copied;
+	}
+
+	static List<InvoiceLeadOrderItem> of(List<InvoiceLead> leads) {
+		if (leads == null || leads.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return new InvoiceLeadOrderItems(leads);
+	}
+
+	@Override
+	public InvoiceLeadOrderItem get(int index) {
+		return items[index];
+	}
+
+	@Override
+	public int size() {
+		return items.length;
+	}
+}
@@ -0,0 +1,382 @@
+package com.usell.platform.web.billing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The rows of a section written to a temporary file instead of being kept as value objects,
+ * and read back through a memory-mapped window.
+ * <p>
+ * Each row is one record of its column values, read through the section's spec: dates as
+ * epoch millis, numbers as doubles, text as a dictionary id or, once a column has seen
+ * {@link #MAX_DICTIONARY_SIZE} distinct values, as UTF-8 bytes. Repeated values like the
+ * product category or the partner name are decoded to the same string each time.
+ * {@link #getSpec} renders the {@link Row}s the same way the original spec renders the
+ * value objects. Rows are read sequentially, one reused {@link Row} per iteration.
+ */
+final class InvoiceSectionSpill<T> implements Closeable, Iterable<InvoiceSectionSpill.Row> {
+
+	static final int MAX_DICTIONARY_SIZE = 4096;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private static final byte NULL = 0;
+
+	private static final byte DICTIONARY = 1;
+
+	private static final byte INLINE = 2;
+
+	private final InvoiceSheetSpec<T> source;
+
+	private final InvoiceSheetSpec<Row> spec;
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final List<Map<String, Integer>> dictionaryIds;
+
+	private final List<List<String>> dictionaries;
+
+	private ByteBuffer record = ByteBuffer.allocate(1024);
+
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	private long size;
+
+	private int rowCount;
+
+	private boolean finished;
+
+	InvoiceSectionSpill(InvoiceSheetSpec<T> source, File directory) throws IOException {
+		this.source = source;
+		int columnCount = source.getColumnCount();
+		dictionaryIds = new ArrayList<Map<String, Integer>>(columnCount);
+		dictionaries = new ArrayList<List<String>>(columnCount);
+		for (int i = 0; i < columnCount; i++) {
+			dictionaryIds.add(new HashMap<String, Integer>());
+			dictionaries.add(new ArrayList<String>());
+		}
+		spec = rowSpec(source);
+		file = Files.createTempFile(directory.toPath(), "invoice-section-", ".spill");
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the rows after the ones already written.
+	 */
+	void append(List<T> rows) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Spill of sheet " + source.getSheetName() + " is already finished");
+		}
+		for (T row : rows) {
+			record.clear();
+			record.putInt(0);
+			for (int i = 0; i < source.getColumnCount(); i++) {
+				InvoiceColumn<T> column = source.getColumn(i);
+				switch (column.getType()) {
+				case TEXT:
+					putText(i, column.text(row));
+					break;
+				case NAME:
+					putText(i, column.text(row));
+					putText(i, column.lastName(row));
+					break;
+				case DATE:
+				case DETAILS_DATE:
+					ensureRecordCapacity(8);
+					record.putLong(column.dateMillis(row));
+					break;
+				case MONEY:
+				case PERCENTAGE:
+					ensureRecordCapacity(8);
+					record.putDouble(column.number(row));
+					break;
+				}
+			}
+			record.putInt(0, record.position() - 4);
+			record.flip();
+			write(record);
+			rowCount++;
+		}
+	}
+
+	/**
+	 * Writes out what is buffered. Rows can be read after this, and no more appended.
+	 */
+	void finish() throws IOException {
+		if (!finished) {
+			writeBuffer.flip();
+			drain(writeBuffer);
+			finished = true;
+			record = null;
+		}
+	}
+
+	int getRowCount() {
+		return rowCount;
+	}
+
+	/** Bytes written to the file. */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * The source spec's sheet, headers and columns over the spilled rows.
+	 */
+	InvoiceSheetSpec<Row> getSpec() {
+		return spec;
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		if (!finished) {
+			throw new IllegalStateException("Spill of sheet " + source.getSheetName() + " is not finished");
+		}
+		return new RowIterator();
+	}
+
+	/**
+	 * Deletes the file. The mapped windows of iterators still in use stay readable until
+	 * they are collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			file.toFile().deleteOnExit();
+		}
+	}
+
+	private void putText(int columnIndex, String value) {
+		if (value == null) {
+			ensureRecordCapacity(1);
+			record.put(NULL);
+			return;
+		}
+		Map<String, Integer> ids = dictionaryIds.get(columnIndex);
+		Integer id = ids.get(value);
+		if (id == null && ids.size() < MAX_DICTIONARY_SIZE) {
+			List<String> dictionary = dictionaries.get(columnIndex);
+			id = Integer.valueOf(dictionary.size());
+			dictionary.add(value);
+			ids.put(value, id);
+		}
+		if (id != null) {
+			ensureRecordCapacity(5);
+			record.put(DICTIONARY);
+			record.putInt(id.intValue());
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ensureRecordCapacity(5 + bytes.length);
+		record.put(INLINE);
+		record.putInt(bytes.length);
+		record.put(bytes);
+	}
+
+	private void ensureRecordCapacity(int bytes) {
+		if (record.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+			record.flip();
+			larger.put(record);
+			record = larger;
+		}
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		if (bytes.remaining() > writeBuffer.remaining()) {
+			writeBuffer.flip();
+			drain(writeBuffer);
+			writeBuffer.clear();
+			if (bytes.remaining() > writeBuffer.remaining()) {
+				drain(bytes);
+				return;
+			}
+		}
+		writeBuffer.put(bytes);
+	}
+
+	private void drain(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			size += channel.write(bytes, size);
+		}
+	}
+
+	private InvoiceSheetSpec<Row> rowSpec(InvoiceSheetSpec<T> source) {
+		InvoiceSheetSpec<Row> rowSpec = new InvoiceSheetSpec<Row>(source.getSheetName(), source.getHeaders());
+		for (int i = 0; i < source.getColumnCount(); i++) {
+			final int index = i;
+			InvoiceColumn<T> column = source.getColumn(i);
+			switch (column.getType()) {
+			case TEXT:
+				rowSpec.column(InvoiceColumn.<Row>text(row -> row.texts[index]));
+				break;
+			case NAME:
+				rowSpec.column(InvoiceColumn.<Row>name(row -> row.texts[index], row -> row.lastNames[index], column.isUpperCase()));
+				break;
+			case DATE:
+			case DETAILS_DATE:
+				rowSpec.column(InvoiceColumn.<Row>dateMillis(column.getType(), row -> row.dates[index]));
+				break;
+			case MONEY:
+			case PERCENTAGE:
+				rowSpec.column(InvoiceColumn.<Row>numberValue(column.getType(), row -> row.numbers[index]));
+				break;
+			}
+		}
+		return rowSpec;
+	}
+
+	/**
+	 * The values of the current row, by column index. Only the array matching a column's
+	 * type holds its value.
+	 */
+	static final class Row {
+
+		private final String[] texts;
+
+		private final String[] lastNames;
+
+		private final long[] dates;
+
+		private final double[] numbers;
+
+		private Row(int columnCount) {
+			texts = new String[columnCount];
+			lastNames = new String[columnCount];
+			dates = new long[columnCount];
+			numbers = new double[columnCount];
+		}
+	}
+
+	private final class RowIterator implements Iterator<Row> {
+
+		private final Row row = new Row(source.getColumnCount());
+
+		private final String[][] decodedDictionaries = new String[dictionaries.size()][];
+
+		private MappedByteBuffer window;
+
+		private long windowStart;
+
+		private long position;
+
+		private byte[] bytes = new byte[256];
+
+		RowIterator() {
+			for (int i = 0; i < decodedDictionaries.length; i++) {
+				List<String> dictionary = dictionaries.get(i);
+				decodedDictionaries[i] = dictionary.toArray(new String[dictionary.size()]);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < size;
+		}
+
+		@Override
+		public Row next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				int length = recordLength();
+				ByteBuffer data = window;
+				data.position((int) (position - windowStart) + 4);
+				for (int i = 0; i < row.texts.length; i++) {
+					switch (source.getColumn(i).getType()) {
+					case TEXT:
+						row.texts[i] = getText(data, i);
+						break;
+					case NAME:
+						row.texts[i] = getText(data, i);
+						row.lastNames[i] = getText(data, i);
+						break;
+					case DATE:
+					case DETAILS_DATE:
+						row.dates[i] = data.getLong();
+						break;
+					case MONEY:
+					case PERCENTAGE:
+						row.numbers[i] = data.getDouble();
+						break;
+					}
+				}
+				position += 4 + length;
+				return row;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not read spill of sheet " + source.getSheetName(), e);
+			}
+		}
+
+		/**
+		 * Maps the window so it holds the whole record at the position.
+		 */
+		private int recordLength() throws IOException {
+			if (window == null || position + 4 > windowStart + window.limit()) {
+				map(4);
+			}
+			int length = window.getInt((int) (position - windowStart));
+			if (position + 4 + length > windowStart + window.limit()) {
+				map(4 + length);
+			}
+			return length;
+		}
+
+		private void map(int atLeast) throws IOException {
+			windowStart = position;
+			long length = Math.min(Math.max(MAP_WINDOW_SIZE, atLeast), size - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+		}
+
+		private String getText(ByteBuffer data, int columnIndex) {
+			switch (data.get()) {
+			case DICTIONARY:
+				return decodedDictionaries[columnIndex][data.getInt()];
+			case INLINE:
+				int length = data.getInt();
+				if (bytes.length < length) {
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				}
+				data.get(bytes, 0, length);
+				return new String(bytes, 0, length, StandardCharsets.UTF_8);
+			default:
+				return null;
+			}
+		}
+	}
+}
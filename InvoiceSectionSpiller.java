@@ -0,0 +1,64 @@
+package com.usell.platform.web.billing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Decides which sections are spilled to disk and builds them chunk by chunk, so only one
+ * chunk of value objects is on the heap at a time.
+ */
+final class InvoiceSectionSpiller {
+
+	private final File directory;
+
+	private final int thresholdRows;
+
+	private final int chunkRows;
+
+	/**
+	 * @param thresholdRows sections built from more source items than this are spilled
+	 * @param chunkRows source items built into value objects at a time
+	 */
+	InvoiceSectionSpiller(File directory, int thresholdRows, int chunkRows) {
+		this.directory = directory;
+		this.thresholdRows = thresholdRows;
+		this.chunkRows = Math.max(1, chunkRows);
+	}
+
+	/**
+	 * Builds the value objects of <code>items</code> a chunk at a time and spills them. The
+	 * builder must map each chunk on its own, as <code>InvoiceVoBuilder</code> does.
+	 *
+	 * @return null if there are too few items to spill, the caller builds the list as usual
+	 */
+	<S, T> InvoiceSectionSpill<T> spill(InvoiceSheetSpec<T> spec, List<S> items, Function<List<S>, List<T>> builder) {
+		if (items == null || items.size() <= thresholdRows) {
+			return null;
+		}
+		InvoiceSectionSpill<T> spill = null;
+		try {
+			spill = new InvoiceSectionSpill<T>(spec, directory);
+			for (int from = 0; from < items.size(); from += chunkRows) {
+				List<T> rows = builder.apply(items.subList(from, Math.min(items.size(), from + chunkRows)));
+				if (rows != null) {
+					spill.append(rows);
+				}
+			}
+			spill.finish();
+			return spill;
+		} catch (IOException e) {
+			if (spill != null) {
+				spill.closeQuietly();
+			}
+			throw new UncheckedIOException("Could not spill sheet " + spec.getSheetName() + " to " + directory, e);
+		} catch (RuntimeException | Error e) {
+			if (spill != null) {
+				spill.closeQuietly();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package com.usell.platform.web.billing;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.billing.InvoiceCheckRequest;
+import com.usell.platform.billing.InvoiceLead;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+import com.usell.platform.billing.ShippingKit;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+import com.usell.platform.domain.PostPayCustomerPayment;
+
+/**
+ * The value objects of every section of an invoice export, built before any sheet is
+ * rendered. A section without rows is left out of the export.
+ * <p>
+ * Built with an {@link InvoiceSectionSpiller}, the device details and kit sections over its
+ * threshold are spilled to disk instead, their lists are null then. {@link #close} deletes
+ * the spilled files.
+ */
+class InvoiceSections implements Closeable {
+
+	private InvoiceSummaryVo summary;
+
+	private InvoiceSummaryModel summaryModel;
+
+	private List<InvoiceLeadVo> leads;
+
+	private List<InvoiceLeadOrderItemVo> deviceDetails;
+
+	private List<PostPayCustomerPayment> postPayOrders;
+
+	private List<InvoiceKitVo> sentKits;
+
+	private List<InvoiceKitVo> resentKits;
+
+	private List<InvoiceCheckRequest> checkRequests;
+
+	private InvoiceSectionSpill<InvoiceLeadOrderItemVo> spilledDeviceDetails;
+
+	private InvoiceSectionSpill<InvoiceKitVo> spilledSentKits;
+
+	private InvoiceSectionSpill<InvoiceKitVo> spilledResentKits;
+
+	static InvoiceSections build(InvoiceVoBuilder invoiceVoBuilder, Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer) {
+		return build(invoiceVoBuilder, invoice, invoicePeriod, buyer, null, (InvoiceSectionSpiller) null, null);
+	}
+
+	/**
+	 * @param summary the summary kept by an {@link InvoiceSummaryIndex}, null to build it
+	 * @param spiller null to keep every section on the heap
+	 * @param deviceDetails the device details of a list of order items, null to build them with
+	 * the <code>invoiceVoBuilder</code>
+	 */
+	static InvoiceSections build(InvoiceVoBuilder invoiceVoBuilder, Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			InvoiceSummaryVo summary, InvoiceSectionSpiller spiller,
+			Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails) {
+		Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetailsBuilder =
+				deviceDetailsBuilder(invoiceVoBuilder, buyer, deviceDetails);
+		InvoiceSections sections = new InvoiceSections();
+		sections.summary = summary != null ? summary : invoiceVoBuilder.buildInvoiceSummaryVo(invoice, invoicePeriod, buyer);
+
+		try {
+			if (invoice.getLeads() != null && !invoice.getLeads().isEmpty()) {
+				sections.leads = invoiceVoBuilder.buildLeadVo(invoice.getLeads());
+				sections.spilledDeviceDetails = spillDeviceDetails(spiller, deviceDetailsBuilder, invoice);
+				if (sections.spilledDeviceDetails == null) {
+					sections.deviceDetails = buildDeviceDetails(deviceDetailsBuilder, invoice);
+				}
+			}
+
+			sections.postPayOrders = invoice.getPostPayCustomerPayments();
+			sections.spilledSentKits = spillKits(spiller, InvoiceSheetSpecs.SENT_KITS, invoice, invoiceVoBuilder::buildSentKitsVo);
+			if (sections.spilledSentKits == null) {
+				sections.sentKits = invoiceVoBuilder.buildSentKitsVo(invoice.getShippingKits());
+			}
+			sections.spilledResentKits = spillKits(spiller, InvoiceSheetSpecs.RESENT_KITS, invoice, invoiceVoBuilder::buildReshippedVo);
+			if (sections.spilledResentKits == null) {
+				sections.resentKits = invoiceVoBuilder.buildReshippedVo(invoice.getShippingKits());
+			}
+			sections.checkRequests = invoice.getCheckRequests();
+		} catch (RuntimeException | Error e) {
+			sections.close();
+			throw e;
+		}
+		return sections;
+	}
+
+	/**
+	 * Builds each section as a separate task on the executor. The result is the same as
+	 * {@link #build}, the {@link InvoiceVoBuilder} must be safe to call from several threads.
+	 * <p>
+	 * The invoice's collections are loaded on the calling thread first, see
+	 * {@link #loadCollections}. Anything the builder reads beyond them must not need the
+	 * caller's ORM session either: pool threads don't have it.
+	 */
+	static InvoiceSections build(InvoiceVoBuilder invoiceVoBuilder, Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Executor executor) {
+		return build(invoiceVoBuilder, invoice, invoicePeriod, buyer, executor, null, null, null);
+	}
+
+	/**
+	 * {@link #build(InvoiceVoBuilder, Invoice, InvoicePeriod, Buyer, Executor)} taking the summary,
+	 * spilling and taking the device details like
+	 * {@link #build(InvoiceVoBuilder, Invoice, InvoicePeriod, Buyer, InvoiceSummaryVo, InvoiceSectionSpiller, Function)}.
+	 */
+	static InvoiceSections build(InvoiceVoBuilder invoiceVoBuilder, Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer,
+			Executor executor, InvoiceSummaryVo indexedSummary, InvoiceSectionSpiller spiller,
+			Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails) {
+		loadCollections(invoice);
+		Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetailsBuilder =
+				deviceDetailsBuilder(invoiceVoBuilder, buyer, deviceDetails);
+		CompletableFuture<InvoiceSummaryVo> summary = indexedSummary != null
+				? CompletableFuture.completedFuture(indexedSummary)
+				: CompletableFuture.supplyAsync(() -> invoiceVoBuilder.buildInvoiceSummaryVo(invoice, invoicePeriod, buyer), executor);
+		CompletableFuture<List<InvoiceLeadVo>> leads = CompletableFuture.completedFuture(null);
+		CompletableFuture<InvoiceSectionSpill<InvoiceLeadOrderItemVo>> spilledDeviceDetails = CompletableFuture.completedFuture(null);
+		CompletableFuture<List<InvoiceLeadOrderItemVo>> builtDeviceDetails = CompletableFuture.completedFuture(null);
+		if (invoice.getLeads() != null && !invoice.getLeads().isEmpty()) {
+			leads = CompletableFuture.supplyAsync(() -> invoiceVoBuilder.buildLeadVo(invoice.getLeads()), executor);
+			spilledDeviceDetails = CompletableFuture.supplyAsync(
+					() -> spillDeviceDetails(spiller, deviceDetailsBuilder, invoice), executor);
+			builtDeviceDetails = spilledDeviceDetails.thenApply(
+					spill -> spill == null ? buildDeviceDetails(deviceDetailsBuilder, invoice) : null);
+		}
+		CompletableFuture<InvoiceSectionSpill<InvoiceKitVo>> spilledSentKits = CompletableFuture.supplyAsync(
+				() -> spillKits(spiller, InvoiceSheetSpecs.SENT_KITS, invoice, invoiceVoBuilder::buildSentKitsVo), executor);
+		CompletableFuture<List<InvoiceKitVo>> sentKits = spilledSentKits.thenApply(
+				spill -> spill == null ? invoiceVoBuilder.buildSentKitsVo(invoice.getShippingKits()) : null);
+		CompletableFuture<InvoiceSectionSpill<InvoiceKitVo>> spilledResentKits = CompletableFuture.supplyAsync(
+				() -> spillKits(spiller, InvoiceSheetSpecs.RESENT_KITS, invoice, invoiceVoBuilder::buildReshippedVo), executor);
+		CompletableFuture<List<InvoiceKitVo>> resentKits = spilledResentKits.thenApply(
+				spill -> spill == null ? invoiceVoBuilder.buildReshippedVo(invoice.getShippingKits()) : null);
+
+		InvoiceSections sections = new InvoiceSections();
+		try {
+			sections.summary = summary.join();
+			sections.leads = leads.join();
+			sections.spilledDeviceDetails = spilledDeviceDetails.join();
+			sections.deviceDetails = builtDeviceDetails.join();
+			sections.spilledSentKits = spilledSentKits.join();
+			sections.sentKits = sentKits.join();
+			sections.spilledResentKits = spilledResentKits.join();
+			sections.resentKits = resentKits.join();
+		} catch (CompletionException e) {
+			// spills finishing after the failure are deleted as they complete
+			closeWhenDone(spilledDeviceDetails);
+			closeWhenDone(spilledSentKits);
+			closeWhenDone(spilledResentKits);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		sections.postPayOrders = invoice.getPostPayCustomerPayments();
+		sections.checkRequests = invoice.getCheckRequests();
+		return sections;
+	}
+
+	/**
+	 * Loads the collections the section tasks walk while still on the thread holding the
+	 * invoice's session. A lazy collection first touched on a pool thread would fail without
+	 * the session, or load through it from several threads at once.
+	 */
+	private static void loadCollections(Invoice invoice) {
+		List<InvoiceLead> leads = invoice.getLeads();
+		if (leads != null) {
+			for (InvoiceLead lead : leads) {
+				initialize(lead.getOrderItems());
+			}
+		}
+		initialize(invoice.getShippingKits());
+		initialize(invoice.getPostPayCustomerPayments());
+		initialize(invoice.getCheckRequests());
+	}
+
+	/** Through the iterator, an extra-lazy collection answers <code>size()</code> with a count query. */
+	private static void initialize(List<?> collection) {
+		if (collection != null) {
+			collection.iterator().hasNext();
+		}
+	}
+
+	private static Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetailsBuilder(
+			InvoiceVoBuilder invoiceVoBuilder, Buyer buyer, Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails) {
+		if (deviceDetails != null) {
+			return deviceDetails;
+		}
+		return orderItems -> invoiceVoBuilder.buildInvoiceLeadOrderItemVo(orderItems, buyer.getName());
+	}
+
+	private static InvoiceSectionSpill<InvoiceLeadOrderItemVo> spillDeviceDetails(InvoiceSectionSpiller spiller,
+			Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetailsBuilder, Invoice invoice) {
+		if (spiller == null) {
+			return null;
+		}
+		return spiller.spill(InvoiceSheetSpecs.DEVICE_DETAILS, InvoiceLeadOrderItems.of(invoice.getLeads()), deviceDetailsBuilder);
+	}
+
+	private static InvoiceSectionSpill<InvoiceKitVo> spillKits(InvoiceSectionSpiller spiller, InvoiceSheetSpec<InvoiceKitVo> spec,
+			Invoice invoice, Function<List<ShippingKit>, List<InvoiceKitVo>> builder) {
+		if (spiller == null) {
+			return null;
+		}
+		return spiller.spill(spec, invoice.getShippingKits(), builder);
+	}
+
+	private static void closeWhenDone(CompletableFuture<? extends InvoiceSectionSpill<?>> spill) {
+		spill.thenAccept(done -> {
+			if (done != null) {
+				done.closeQuietly();
+			}
+		});
+	}
+
+	private static List<InvoiceLeadOrderItemVo> buildDeviceDetails(
+			Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetailsBuilder, Invoice invoice) {
+		List<InvoiceLeadOrderItem> invoiceOrderItems = InvoiceLeadOrderItems.of(invoice.getLeads());
+		if (invoiceOrderItems.isEmpty()) {
+			return null;
+		}
+		return deviceDetailsBuilder.apply(invoiceOrderItems);
+	}
+
+	/**
+	 * Sections built elsewhere, for example kept from an earlier export.
+	 */
+	static InvoiceSections of(InvoiceSummaryVo summary, List<InvoiceLeadVo> leads, List<InvoiceLeadOrderItemVo> deviceDetails,
+			List<PostPayCustomerPayment> postPayOrders, List<InvoiceKitVo> sentKits, List<InvoiceKitVo> resentKits,
+			List<InvoiceCheckRequest> checkRequests) {
+		InvoiceSections sections = new InvoiceSections();
+		sections.summary = summary;
+		sections.leads = leads;
+		sections.deviceDetails = deviceDetails;
+		sections.postPayOrders = postPayOrders;
+		sections.sentKits = sentKits;
+		sections.resentKits = resentKits;
+		sections.checkRequests = checkRequests;
+		return sections;
+	}
+
+	static boolean hasRows(List<?> rows) {
+		return rows != null && !rows.isEmpty();
+	}
+
+	static boolean hasRows(InvoiceSectionSpill<?> rows) {
+		return rows != null && rows.getRowCount() > 0;
+	}
+
+	InvoiceSummaryVo getSummary() {
+		return summary;
+	}
+
+	/**
+	 * The summary indexed for rendering, built on first use.
+	 */
+	InvoiceSummaryModel getSummaryModel() {
+		if (summaryModel == null) {
+			summaryModel = InvoiceSummaryModel.from(summary);
+		}
+		return summaryModel;
+	}
+
+	List<InvoiceLeadVo> getLeads() {
+		return leads;
+	}
+
+	List<InvoiceLeadOrderItemVo> getDeviceDetails() {
+		return deviceDetails;
+	}
+
+	List<PostPayCustomerPayment> getPostPayOrders() {
+		return postPayOrders;
+	}
+
+	List<InvoiceKitVo> getSentKits() {
+		return sentKits;
+	}
+
+	List<InvoiceKitVo> getResentKits() {
+		return resentKits;
+	}
+
+	List<InvoiceCheckRequest> getCheckRequests() {
+		return checkRequests;
+	}
+
+	InvoiceSectionSpill<InvoiceLeadOrderItemVo> getSpilledDeviceDetails() {
+		return spilledDeviceDetails;
+	}
+
+	InvoiceSectionSpill<InvoiceKitVo> getSpilledSentKits() {
+		return spilledSentKits;
+	}
+
+	InvoiceSectionSpill<InvoiceKitVo> getSpilledResentKits() {
+		return spilledResentKits;
+	}
+
+	/**
+	 * Deletes the spilled sections, if any.
+	 */
+	@Override
+	public void close() {
+		if (spilledDeviceDetails != null) {
+			spilledDeviceDetails.closeQuietly();
+		}
+		if (spilledSentKits != null) {
+			spilledSentKits.closeQuietly();
+		}
+		if (spilledResentKits != null) {
+			spilledResentKits.closeQuietly();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.usell.platform.web.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Describes one row-per-item section of an invoice: the sheet name, the header row and a
+ * typed column for each header. Both the Excel and the delimited renderers walk the same
+ * spec, so a section is defined once.
+ * <p>
+ * Columns are added in header order while the spec is set up, the spec is not changed after that.
+ */
+final class InvoiceSheetSpec<T> {
+
+	private final String sheetName;
+
+	private final String[] headers;
+
+	private final List<InvoiceColumn<T>> columns;
+
+	InvoiceSheetSpec(String sheetName, String[] headers) {
+		this(sheetName, headers, new ArrayList<InvoiceColumn<T>>(headers.length));
+	}
+
+	private InvoiceSheetSpec(String sheetName, String[] headers, List<InvoiceColumn<T>> columns) {
+		this.sheetName = sheetName;
+		this.headers = headers;
+		this.columns = columns;
+	}
+
+	InvoiceSheetSpec<T> column(InvoiceColumn<T> column) {
+		if (columns.size() == headers.length) {
+			throw new IllegalStateException("More columns than headers in sheet " + sheetName);
+		}
+		columns.add(column);
+		return this;
+	}
+
+	InvoiceSheetSpec<T> text(Function<T, String> accessor) {
+		return column(InvoiceColumn.text(accessor));
+	}
+
+	InvoiceSheetSpec<T> name(Function<T, String> firstName, Function<T, String> lastName, boolean upperCase) {
+		return column(InvoiceColumn.name(firstName, lastName, upperCase));
+	}
+
+	InvoiceSheetSpec<T> date(Function<T, Date> accessor) {
+		return column(InvoiceColumn.date(InvoiceColumn.Type.DATE, accessor));
+	}
+
+	InvoiceSheetSpec<T> detailsDate(Function<T, Date> accessor) {
+		return column(InvoiceColumn.date(InvoiceColumn.Type.DETAILS_DATE, accessor));
+	}
+
+	InvoiceSheetSpec<T> money(Function<T, Double> accessor) {
+		return column(InvoiceColumn.number(InvoiceColumn.Type.MONEY, accessor));
+	}
+
+	InvoiceSheetSpec<T> percentage(Function<T, Double> accessor) {
+		return column(InvoiceColumn.number(InvoiceColumn.Type.PERCENTAGE, accessor));
+	}
+
+	/** The same section under another sheet name and header row. */
+	InvoiceSheetSpec<T> as(String otherSheetName, String[] otherHeaders) {
+		if (otherHeaders.length != headers.length) {
+			throw new IllegalArgumentException("Header count differs from sheet " + sheetName);
+		}
+		return new InvoiceSheetSpec<T>(otherSheetName, otherHeaders, columns);
+	}
+
+	/** The same section without the column under the given header. */
+	InvoiceSheetSpec<T> without(String header) {
+		List<String> keptHeaders = new ArrayList<String>(headers.length);
+		List<InvoiceColumn<T>> keptColumns = new ArrayList<InvoiceColumn<T>>(columns.size());
+		for (int i = 0; i < headers.length; i++) {
+			if (!headers[i].equalsIgnoreCase(header)) {
+				keptHeaders.add(headers[i]);
+				keptColumns.add(columns.get(i));
+			}
+		}
+		return new InvoiceSheetSpec<T>(sheetName, keptHeaders.toArray(new String[keptHeaders.size()]), keptColumns);
+	}
+
+	String getSheetName() {
+		return sheetName;
+	}
+
+	String[] getHeaders() {
+		return headers;
+	}
+
+	List<InvoiceColumn<T>> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	int getColumnCount() {
+		return columns.size();
+	}
+
+	InvoiceColumn<T> getColumn(int index) {
+		return columns.get(index);
+	}
+}
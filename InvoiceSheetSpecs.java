@@ -0,0 +1,97 @@
+package com.usell.platform.web.billing;
+
+import com.usell.platform.billing.InvoiceCheckRequest;
+import com.usell.platform.domain.PostPayCustomerPayment;
+
+/**
+ * The row-per-item sections of an invoice export.
+ */
+final class InvoiceSheetSpecs {
+
+	static final String[] LEADS_HEADER_ROW = new String[] {"   Email Address","Prior Fees", "Current Fees", "Prior Invoiced Amount",
+			"Current Invoice Amount", "Customer Billing Inter   va   l"};
+
+	static final String[] DEVICE_DETAILS_HEADER_ROW = new String[] {"UUID", "Email Address", "User Name",
+			"Invoice Period", "Order Date", "Product Name", "Proasdlkjlkasdduct Category", "Product Condition", "Device Fee", "Partner Product Id", "Partner Name"};
+
+	static final String[] RESENT_PACK_HEADER_ROW = new String[] {"UUID","Email", "Customer Name", "Ship Date",
+			"Order Date", "Product Name", "Category Name"};
+
+	static final String[] SENT_PACK_HEADER_ROW = new String[] {"UUID","Email", "Customer Name", "Ship Date",
+			"Order Date", "Product Name", "Category Name"};
+
+	static final String[] CHECK_PROCESSING_DETAILS_HEADER_ROW = new String[] {"UUID", "Check Number", "Check Date", "Customer Name", "Amount"};
+
+	static final String[] POST_PAY_ORDERS_HEADER_ROW = new String[] {"UUID", "Email Address", "User Name", "Order Date", "Payment Date", "Product Name", "Product Category", "Product Condition", "Order Commission Percentage",	"Bid", "Offer",	"Commission Amount Due"};
+
+	static final InvoiceSheetSpec<InvoiceLeadVo> LEADS = new InvoiceSheetSpec<InvoiceLeadVo>("Leads", LEADS_HEADER_ROW)
+			.text(InvoiceLeadVo::getCustomerEmail)
+			.money(InvoiceLeadVo::getPriorCommission)
+			.money(InvoiceLeadVo::getCurrentCommission)
+			.money(InvoiceLeadVo::getPriorFees)
+			.money(InvoiceLeadVo::getCurrentFees)
+			.text(InvoiceLeadVo::getBillingInterval);
+
+	static final InvoiceSheetSpec<InvoiceLeadOrderItemVo> DEVICE_DETAILS =
+			new InvoiceSheetSpec<InvoiceLeadOrderItemVo>("Prepaid Device Level Details", DEVICE_DETAILS_HEADER_ROW)
+			.text(InvoiceLeadOrderItemVo::getUuid)
+			.text(InvoiceLeadOrderItemVo::getCustomerEmail)
+			.text(InvoiceLeadOrderItemVo::getCustomerFullName)
+			.text(InvoiceLeadOrderItemVo::getInvoicePeriod)
+			.text(InvoiceLeadOrderItemVo::getOrderDate)
+			.text(InvoiceLeadOrderItemVo::getProductName)
+			.text(InvoiceLeadOrderItemVo::getProductCategoryName)
+			.text(InvoiceLeadOrderItemVo::getProductConditionName)
+			.money(InvoiceLeadOrderItemVo::getDeviceFee)
+			.text(InvoiceLeadOrderItemVo::getPartnerProductId)
+			.text(InvoiceLeadOrderItemVo::getPartnerName);
+
+	/** Power buyers don't get to see the partner's product ids. */
+	static final InvoiceSheetSpec<InvoiceLeadOrderItemVo> POWER_BUYER_DEVICE_DETAILS = DEVICE_DETAILS.without("Partner Product Id");
+
+	static final InvoiceSheetSpec<PostPayCustomerPayment> POST_PAY_ORDERS =
+			new InvoiceSheetSpec<PostPayCustomerPayment>("Orders", POST_PAY_ORDERS_HEADER_ROW)
+			.text(PostPayCustomerPayment::getOrderNumber)
+			.text(PostPayCustomerPayment::getEmail)
+			.name(PostPayCustomerPayment::getFirstName, PostPayCustomerPayment::getLastName, true)
+			.detailsDate(PostPayCustomerPayment::getOrderDate)
+			.detailsDate(PostPayCustomerPayment::getPaymentDate)
+			.text(PostPayCustomerPayment::getProductName)
+			.text(PostPayCustomerPayment::getProductCategoryName)
+			.text(PostPayCustomerPayment::getProductConditionName)
+			.percentage(PostPayCustomerPayment::getOrderCommissionPercentage)
+			.money(PostPayCustomerPayment::getFinalBid)
+			.money(PostPayCustomerPayment::getFinalOffer)
+			.money(PostPayCustomerPayment::getOrderCommission);
+
+	static final InvoiceSheetSpec<InvoiceKitVo> SENT_KITS = new InvoiceSheetSpec<InvoiceKitVo>("Kits Sent", SENT_PACK_HEADER_ROW)
+			.text(InvoiceKitVo::getOrderNumber)
+			.text(InvoiceKitVo::getCustomerEmail)
+			.text(InvoiceKitVo::getCustomerName)
+			.text(InvoiceKitVo::getShipDate)
+			.text(InvoiceKitVo::getOrderDate)
+			.text(InvoiceKitVo::getProductName)
+			.text(InvoiceKitVo::getProductCategoryName);
+
+	static final InvoiceSheetSpec<InvoiceKitVo> RESENT_KITS = SENT_KITS.as("Kits Resent", RESENT_PACK_HEADER_ROW);
+
+	static final InvoiceSheetSpec<InvoiceCheckRequest> CHECK_REQUESTS =
+			new InvoiceSheetSpec<InvoiceCheckRequest>("Check Processed", CHECK_PROCESSING_DETAILS_HEADER_ROW)
+			.text(InvoiceCheckRequest::getOrderUid)
+			.text(InvoiceCheckRequest::getCheckNumber)
+			.date(InvoiceCheckRequest::getCheckDate)
+			.name(InvoiceCheckRequest::getFirstName, InvoiceCheckRequest::getLastName, false)
+			.money(InvoiceCheckRequest::getCheckAmount);
+
+	static InvoiceSheetSpec<InvoiceLeadOrderItemVo> deviceDetails(Boolean isPowerBuyer) {
+		return isPowerBuyer ? POWER_BUYER_DEVICE_DETAILS : DEVICE_DETAILS;
+	}
+
+	/** {@link #DEVICE_DETAILS} over other rows, spilled ones for example, as the buyer gets to see it. */
+	static <T> InvoiceSheetSpec<T> deviceDetails(InvoiceSheetSpec<T> deviceDetails, Boolean isPowerBuyer) {
+		return isPowerBuyer ? deviceDetails.without("Partner Product Id") : deviceDetails;
+	}
+
+	private InvoiceSheetSpecs() {
+	}
+}
@@ -0,0 +1,177 @@
+package com.usell.platform.web.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.billing.InvoiceLead;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+
+/**
+ * The device details built for an invoice of an open period so far, per lead, with how many
+ * order items of each lead they cover. {@link #refresh} builds details only for the order
+ * items appended since, one order item per builder call, so every detail is known to belong
+ * to its item.
+ * <p>
+ * The first refresh also builds all order items in one call, the way a full export does,
+ * and compares. A builder whose details depend on more than their own item, or that drops
+ * or reorders items, fails the comparison: the snapshot can't stand in for a full build
+ * then. Shipping kits are not kept, whether a kit is sent or resent depends on the others.
+ * <p>
+ * Leads and their order items must only ever be appended to. If a list got shorter the
+ * snapshot starts over. Not thread safe, {@link IncrementalInvoiceExcelService} locks it.
+ */
+class InvoiceSnapshot {
+
+	/** Order items covered, per lead. */
+	private int[] leadOrderItemCounts = new int[0];
+
+	private final List<List<InvoiceLeadOrderItemVo>> leadDeviceDetails = new ArrayList<List<InvoiceLeadOrderItemVo>>();
+
+	/** Set once details built per order item rendered the same as those built all at once. */
+	private boolean verified;
+
+	/**
+	 * Catches up with the invoice's order items.
+	 *
+	 * @return false if the builder's device details can't be built one order item at a time.
+	 * The snapshot can't be kept up to date then.
+	 */
+	boolean refresh(InvoiceVoBuilder invoiceVoBuilder, Invoice invoice, String buyerName) {
+		List<InvoiceLead> leads = invoice.getLeads();
+		if (!isAppendOnly(leads)) {
+			clear();
+		}
+		if (leads == null || leads.isEmpty()) {
+			return true;
+		}
+
+		int[] counts = new int[leads.size()];
+		List<List<InvoiceLeadOrderItemVo>> added = new ArrayList<List<InvoiceLeadOrderItemVo>>(leads.size());
+		int leadIndex = 0;
+		for (InvoiceLead lead : leads) {
+			List<InvoiceLeadOrderItem> orderItems = lead.getOrderItems();
+			counts[leadIndex] = orderItems == null ? 0 : orderItems.size();
+			int covered = covered(leadIndex);
+			List<InvoiceLeadOrderItemVo> details = new ArrayList<InvoiceLeadOrderItemVo>(counts[leadIndex] - covered);
+			if (counts[leadIndex] > covered) {
+				for (InvoiceLeadOrderItem orderItem : orderItems.subList(covered, counts[leadIndex])) {
+					List<InvoiceLeadOrderItemVo> built = invoiceVoBuilder.buildInvoiceLeadOrderItemVo(
+							Collections.singletonList(orderItem), buyerName);
+					if (built == null || built.size() != 1) {
+						clear();
+						return false;
+					}
+					details.add(built.get(0));
+				}
+			}
+			added.add(details);
+			leadIndex++;
+		}
+
+		for (leadIndex = 0; leadIndex < counts.length; leadIndex++) {
+			if (leadIndex == leadDeviceDetails.size()) {
+				leadDeviceDetails.add(new ArrayList<InvoiceLeadOrderItemVo>());
+			}
+			leadDeviceDetails.get(leadIndex).addAll(added.get(leadIndex));
+		}
+		leadOrderItemCounts = counts;
+
+		if (!verified && leadOrderItemCounts.length > 0) {
+			List<InvoiceLeadOrderItem> orderItems = InvoiceLeadOrderItems.of(leads);
+			if (!orderItems.isEmpty()) {
+				List<InvoiceLeadOrderItemVo> together = invoiceVoBuilder.buildInvoiceLeadOrderItemVo(orderItems, buyerName);
+				if (!InvoiceContentDigest.of(InvoiceSheetSpecs.DEVICE_DETAILS, together)
+						.equals(InvoiceContentDigest.of(InvoiceSheetSpecs.DEVICE_DETAILS, getDeviceDetails()))) {
+					clear();
+					return false;
+				}
+				verified = true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The device details of a list of the invoice's order items, taken from the snapshot. Order
+	 * items are recognized by identity, so the invoice must be the one the snapshot was last
+	 * refreshed with. A list holding any other item is built with <code>invoiceVoBuilder</code>.
+	 * <p>
+	 * Safe to call from the threads building the sections, while the snapshot is locked and
+	 * not refreshed.
+	 */
+	Function<List<InvoiceLeadOrderItem>, List<InvoiceLeadOrderItemVo>> deviceDetails(InvoiceVoBuilder invoiceVoBuilder,
+			Invoice invoice, String buyerName) {
+		Map<InvoiceLeadOrderItem, InvoiceLeadOrderItemVo> details = new IdentityHashMap<InvoiceLeadOrderItem, InvoiceLeadOrderItemVo>();
+		List<InvoiceLead> leads = invoice.getLeads();
+		if (leads != null) {
+			int leadIndex = 0;
+			for (InvoiceLead lead : leads) {
+				if (leadIndex < leadDeviceDetails.size() && lead.getOrderItems() != null) {
+					List<InvoiceLeadOrderItemVo> leadDetails = leadDeviceDetails.get(leadIndex);
+					int itemIndex = 0;
+					for (InvoiceLeadOrderItem orderItem : lead.getOrderItems()) {
+						if (itemIndex == leadDetails.size()) {
+							break;
+						}
+						details.put(orderItem, leadDetails.get(itemIndex++));
+					}
+				}
+				leadIndex++;
+			}
+		}
+		return orderItems -> {
+			List<InvoiceLeadOrderItemVo> kept = new ArrayList<InvoiceLeadOrderItemVo>(orderItems.size());
+			for (InvoiceLeadOrderItem orderItem : orderItems) {
+				InvoiceLeadOrderItemVo detail = details.get(orderItem);
+				if (detail == null) {
+					return invoiceVoBuilder.buildInvoiceLeadOrderItemVo(orderItems, buyerName);
+				}
+				kept.add(detail);
+			}
+			return kept;
+		};
+	}
+
+	private boolean isAppendOnly(List<InvoiceLead> leads) {
+		if (leadOrderItemCounts.length == 0) {
+			return true;
+		}
+		int leadCount = leads == null ? 0 : leads.size();
+		if (leadCount < leadOrderItemCounts.length) {
+			return false;
+		}
+		int leadIndex = 0;
+		for (InvoiceLead lead : leads) {
+			if (leadIndex == leadOrderItemCounts.length) {
+				break;
+			}
+			List<InvoiceLeadOrderItem> orderItems = lead.getOrderItems();
+			if ((orderItems == null ? 0 : orderItems.size()) < leadOrderItemCounts[leadIndex++]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int covered(int leadIndex) {
+		return leadIndex < leadOrderItemCounts.length ? leadOrderItemCounts[leadIndex] : 0;
+	}
+
+	private void clear() {
+		leadOrderItemCounts = new int[0];
+		leadDeviceDetails.clear();
+	}
+
+	List<InvoiceLeadOrderItemVo> getDeviceDetails() {
+		List<InvoiceLeadOrderItemVo> deviceDetails = new ArrayList<InvoiceLeadOrderItemVo>();
+		for (List<InvoiceLeadOrderItemVo> details : leadDeviceDetails) {
+			deviceDetails.addAll(details);
+		}
+		return deviceDetails;
+	}
+}
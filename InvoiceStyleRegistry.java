@@ -0,0 +1,135 @@
+package com.usell.platform.web.billing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Creates each cell style, font and data format at most once per workbook. Styles are
+ * looked up by {@link StyleSpec}, so every sheet of an export shares the same header,
+ * currency and percentage styles instead of adding new ones to the workbook's style table.
+ * A registry belongs to one workbook and is not thread-safe.
+ */
+class InvoiceStyleRegistry {
+
+	/** Builtin Excel format 8, <code>"$"#,##0.00_);[Red]("$"#,##0.00)</code>. */
+	private static final short CURRENCY_FORMAT = 8;
+
+	private static final short NO_VALUE = -1;
+
+	static final StyleSpec CURRENCY = new StyleSpec(CURRENCY_FORMAT, null, false, NO_VALUE);
+
+	/** Shows a fraction as a percentage with one or two decimals, 0.125 as 12.5%. */
+	static final StyleSpec PERCENTAGE = new StyleSpec(NO_VALUE, "#,##0.0#%", false, NO_VALUE);
+
+	static final StyleSpec HEADER = new StyleSpec(NO_VALUE, null, true, HSSFCellStyle.ALIGN_LEFT);
+
+	private final Workbook workbook;
+
+	private final Map<StyleSpec, CellStyle> styles = new HashMap<StyleSpec, CellStyle>();
+
+	private final Map<String, Short> dataFormats = new HashMap<String, Short>();
+
+	private Font boldFont;
+
+	private int hits;
+
+	private int misses;
+
+	InvoiceStyleRegistry(Workbook workbook) {
+		this.workbook = workbook;
+	}
+
+	CellStyle getStyle(StyleSpec spec) {
+		CellStyle style = styles.get(spec);
+		if (style != null) {
+			hits++;
+			return style;
+		}
+		misses++;
+		style = workbook.createCellStyle();
+		if (spec.builtinDataFormat != NO_VALUE) {
+			style.setDataFormat(spec.builtinDataFormat);
+		} else if (spec.dataFormat != null) {
+			style.setDataFormat(getDataFormat(spec.dataFormat));
+		}
+		if (spec.bold) {
+			style.setFont(getBoldFont());
+		}
+		if (spec.alignment != NO_VALUE) {
+			style.setAlignment(spec.alignment);
+		}
+		styles.put(spec, style);
+		return style;
+	}
+
+	int getHits() {
+		return hits;
+	}
+
+	int getMisses() {
+		return misses;
+	}
+
+	private short getDataFormat(String format) {
+		Short index = dataFormats.get(format);
+		if (index == null) {
+			index = workbook.createDataFormat().getFormat(format);
+			dataFormats.put(format, index);
+		}
+		return index;
+	}
+
+	private Font getBoldFont() {
+		if (boldFont == null) {
+			boldFont = workbook.createFont();
+			boldFont.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+		}
+		return boldFont;
+	}
+
+	static final class StyleSpec {
+
+		private final short builtinDataFormat;
+
+		private final String dataFormat;
+
+		private final boolean bold;
+
+		private final short alignment;
+
+		StyleSpec(short builtinDataFormat, String dataFormat, boolean bold, short alignment) {
+			this.builtinDataFormat = builtinDataFormat;
+			this.dataFormat = dataFormat;
+			this.bold = bold;
+			this.alignment = alignment;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof StyleSpec)) {
+				return false;
+			}
+			StyleSpec other = (StyleSpec) obj;
+			return builtinDataFormat == other.builtinDataFormat && bold == other.bold
+					&& alignment == other.alignment
+					&& (dataFormat == null ? other.dataFormat == null : dataFormat.equals(other.dataFormat));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = builtinDataFormat;
+			result = 31 * result + (dataFormat == null ? 0 : dataFormat.hashCode());
+			result = 31 * result + (bold ? 1 : 0);
+			return 31 * result + alignment;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.usell.platform.web.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+
+/**
+ * Compares the totals of an {@link InvoiceSummaryIndex} with the summary
+ * {@link InvoiceVoBuilder#buildInvoiceSummaryVo} builds from the whole invoice. Counts must be
+ * equal and amounts may differ by less than half a cent. The order of days and categories
+ * doesn't matter.
+ * <p>
+ * With {@link #setRepair} a check loads the recomputed summary into the index when the two
+ * differ or the index has no complete totals, which also seeds the index.
+ */
+public class InvoiceSummaryConsistencyChecker {
+
+	private static final double TOLERANCE = 0.005;
+
+	private final InvoiceSummaryIndex summaryIndex;
+
+	private final InvoiceVoBuilder invoiceVoBuilder;
+
+	private final Function<Invoice, Map<Integer, Double>> postPayCommissions;
+
+	private final AtomicLong checks = new AtomicLong();
+
+	private final AtomicLong inconsistencies = new AtomicLong();
+
+	private volatile boolean repair;
+
+	/**
+	 * @param postPayCommissions the commission of each post-pay order of an invoice by order
+	 * item id, loaded with a repaired summary, see {@link InvoiceSummaryIndex#load}
+	 */
+	public InvoiceSummaryConsistencyChecker(InvoiceSummaryIndex summaryIndex, InvoiceVoBuilder invoiceVoBuilder,
+			Function<Invoice, Map<Integer, Double>> postPayCommissions) {
+		this.summaryIndex = summaryIndex;
+		this.invoiceVoBuilder = invoiceVoBuilder;
+		this.postPayCommissions = postPayCommissions;
+	}
+
+	/**
+	 * Recomputes the summary of the invoice and compares it with the indexed one.
+	 *
+	 * @return the differences, one line each, empty if the index is consistent
+	 */
+	public List<String> check(Invoice invoice, InvoicePeriod invoicePeriod, Buyer buyer) {
+		checks.incrementAndGet();
+		InvoiceSummaryVo recomputed = invoiceVoBuilder.buildInvoiceSummaryVo(invoice, invoicePeriod, buyer);
+		InvoiceSummaryVo indexed = summaryIndex.getSummary(invoicePeriod.getId().longValue(), buyer.getId().longValue());
+		List<String> differences = indexed == null
+				? Collections.singletonList("Not indexed: period " + invoicePeriod.getId() + ", buyer " + buyer.getId())
+				: compare(indexed, recomputed);
+		if (!differences.isEmpty()) {
+			inconsistencies.incrementAndGet();
+			if (repair) {
+				summaryIndex.load(invoicePeriod.getId().longValue(), buyer.getId().longValue(), recomputed,
+						postPayCommissions.apply(invoice));
+			}
+		}
+		return differences;
+	}
+
+	static List<String> compare(InvoiceSummaryVo indexed, InvoiceSummaryVo recomputed) {
+		List<String> differences = new ArrayList<String>();
+		compareCount(differences, "post-pay order count", indexed.getPostPayOrderCount(), recomputed.getPostPayOrderCount());
+		compareAmount(differences, "post-pay commission", indexed.getTotalPostPayOrderCommission(),
+				recomputed.getTotalPostPayOrderCommission());
+		compareCount(differences, "check count", indexed.getTotalCheckCount(), recomputed.getTotalCheckCount());
+		compareAmount(differences, "check amount due", indexed.getTotalCheckAmountDue(), recomputed.getTotalCheckAmountDue());
+		compareAmount(differences, "amount due", parse(indexed.getAmountDue()), parse(recomputed.getAmountDue()));
+		compareKits(differences, indexed.getShippingKitSummaryVo(), recomputed.getShippingKitSummaryVo());
+		return differences;
+	}
+
+	private static void compareKits(List<String> differences, ShippingKitSummaryVo indexed, ShippingKitSummaryVo recomputed) {
+		if (indexed == null || recomputed == null) {
+			if (hasKits(indexed) || hasKits(recomputed)) {
+				differences.add("kits: indexed " + (indexed == null ? "none" : "some") + ", recomputed "
+						+ (recomputed == null ? "none" : "some"));
+			}
+			return;
+		}
+		compareAmount(differences, "kit amount due", parse(indexed.getAmountDue()), parse(recomputed.getAmountDue()));
+
+		Map<String, Integer> indexedDaily = dailyCounts(indexed);
+		Map<String, Integer> recomputedDaily = dailyCounts(recomputed);
+		for (Map.Entry<String, Integer> entry : recomputedDaily.entrySet()) {
+			compareCount(differences, "kits on " + entry.getKey(), indexedDaily.remove(entry.getKey()), entry.getValue());
+		}
+		for (Map.Entry<String, Integer> entry : indexedDaily.entrySet()) {
+			compareCount(differences, "kits on " + entry.getKey(), entry.getValue(), null);
+		}
+
+		for (String category : recomputed.getProductCategories()) {
+			compareCount(differences, "kits of " + category, indexed.getCategoryCount().get(category),
+					recomputed.getCategoryCount().get(category));
+			compareAmount(differences, "kit amount due of " + category, parse(indexed.getCategoryAmountDue().get(category)),
+					parse(recomputed.getCategoryAmountDue().get(category)));
+		}
+	}
+
+	private static boolean hasKits(ShippingKitSummaryVo kits) {
+		return kits != null && kits.getDailyCategoryCount() != null && !kits.getDailyCategoryCount().isEmpty();
+	}
+
+	/** Non-zero counts by "day / category". */
+	private static Map<String, Integer> dailyCounts(ShippingKitSummaryVo kits) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (Map.Entry<ShippingKitSummaryVo.CategoryDay, Integer> entry : kits.getDailyCategoryCount().entrySet()) {
+			if (entry.getValue() != null && entry.getValue().intValue() != 0) {
+				counts.put(entry.getKey().day + " / " + entry.getKey().productCategory, entry.getValue());
+			}
+		}
+		return counts;
+	}
+
+	private static void compareCount(List<String> differences, String what, Integer indexed, Integer recomputed) {
+		int indexedCount = indexed == null ? 0 : indexed.intValue();
+		int recomputedCount = recomputed == null ? 0 : recomputed.intValue();
+		if (indexedCount != recomputedCount) {
+			differences.add(what + ": indexed " + indexedCount + ", recomputed " + recomputedCount);
+		}
+	}
+
+	private static void compareAmount(List<String> differences, String what, Double indexed, Double recomputed) {
+		double indexedAmount = indexed == null ? 0 : indexed.doubleValue();
+		double recomputedAmount = recomputed == null ? 0 : recomputed.doubleValue();
+		if (!(Math.abs(indexedAmount - recomputedAmount) < TOLERANCE)) {
+			differences.add(what + ": indexed " + indexedAmount + ", recomputed " + recomputedAmount);
+		}
+	}
+
+	private static Double parse(String amount) {
+		return amount == null ? null : Double.valueOf(amount);
+	}
+
+	public long getCheckCount() {
+		return checks.get();
+	}
+
+	/**
+	 * @return checks that found at least one difference
+	 */
+	public long getInconsistentCount() {
+		return inconsistencies.get();
+	}
+
+	/**
+	 * Whether checks load the recomputed summary into the index when they find a difference,
+	 * false by default.
+	 */
+	public void setRepair(boolean repair) {
+		this.repair = repair;
+	}
+}
@@ -0,0 +1,415 @@
+package com.usell.platform.web.billing;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running totals of the "Invoice Summary" sheet per invoice period and buyer, kept up to
+ * date as post-pay orders are paid, kits are shipped and checks are processed, so a summary
+ * is read without scanning the invoice.
+ * <p>
+ * Each event names the order item, kit or check request it is about, repeating an event
+ * changes nothing and a later event for the same id replaces the earlier one. Totals are
+ * kept in cents in primitive long maps. Amounts due are the sum of the post-pay commission,
+ * the kits and the checks. {@link InvoiceSummaryConsistencyChecker} compares the totals with
+ * a summary built from the invoice.
+ * <p>
+ * A summary is only served once it is complete, after {@link #load} seeded the totals from
+ * a summary built from the whole invoice. Events before that are kept but not served. The
+ * load names the post-pay orders the summary counts, so a payment reported again after it,
+ * which PayPal does, replaces the loaded commission instead of adding to it. Kit and check
+ * events after a load must be about rows the loaded summary doesn't count yet, so load when
+ * the index starts receiving the events of the period and buyer, or from
+ * {@link InvoiceSummaryConsistencyChecker#setRepair repairing} checks. A post-pay order the
+ * loaded summary counted without naming it being reversed makes the totals incomplete until
+ * they are loaded again.
+ * <p>
+ * Period and buyer ids must fit in an int. All methods are thread safe.
+ */
+public class InvoiceSummaryIndex {
+
+	private static final long MISSING = Long.MIN_VALUE;
+
+	/** (period, buyer) to the index of its totals in {@link #totalsBySlot}. */
+	private final LongLongMap slots = new LongLongMap();
+
+	private final List<Totals> totalsBySlot = new ArrayList<Totals>();
+
+	private final List<Integer> freeSlots = new ArrayList<Integer>();
+
+	/**
+	 * Replaces the totals of a period and buyer with those of a summary built from the whole
+	 * invoice, and makes them complete.
+	 *
+	 * @param postPayCommissions the commission of each post-pay order the summary counts, by
+	 * order item id; orders it counts but leaves out can't be told apart from new ones
+	 */
+	public void load(long invoicePeriodId, long buyerId, InvoiceSummaryVo summary, Map<Integer, Double> postPayCommissions) {
+		int postPayOrderCount = summary.getPostPayOrderCount() == null ? 0 : summary.getPostPayOrderCount().intValue();
+		if (postPayCommissions.size() > postPayOrderCount) {
+			throw new IllegalArgumentException(postPayCommissions.size() + " post-pay commissions for a summary of "
+					+ postPayOrderCount + " post-pay orders");
+		}
+		Totals totals = totals(invoicePeriodId, buyerId, true);
+		synchronized (totals) {
+			totals.load(summary, postPayCommissions);
+		}
+	}
+
+	/**
+	 * Sets the heading of the summary: the buyer, the invoice number and the dates as the
+	 * sheet shows them.
+	 */
+	public void describe(long invoicePeriodId, long buyerId, String buyer, String invoiceNumber, String invoicePeriodStartDate,
+			String invoicePeriodEndDate, String invoiceDate) {
+		Totals totals = totals(invoicePeriodId, buyerId, true);
+		synchronized (totals) {
+			totals.buyer = buyer;
+			totals.invoiceNumber = invoiceNumber;
+			totals.invoicePeriodStartDate = invoicePeriodStartDate;
+			totals.invoicePeriodEndDate = invoicePeriodEndDate;
+			totals.invoiceDate = invoiceDate;
+		}
+	}
+
+	public void postPayOrderPaid(long invoicePeriodId, long buyerId, int orderItemId, double commission) {
+		Totals totals = totals(invoicePeriodId, buyerId, true);
+		long cents = cents(commission);
+		synchronized (totals) {
+			long previous = totals.postPayCommissions.put(orderItemId, cents, MISSING);
+			totals.postPayCommissionCents += cents - (previous == MISSING ? 0 : previous);
+		}
+	}
+
+	/**
+	 * Takes back a paid post-pay order, for example once its payment is reversed.
+	 */
+	public void postPayOrderReversed(long invoicePeriodId, long buyerId, int orderItemId) {
+		Totals totals = totals(invoicePeriodId, buyerId, false);
+		if (totals == null) {
+			return;
+		}
+		synchronized (totals) {
+			long previous = totals.postPayCommissions.remove(orderItemId, MISSING);
+			if (previous != MISSING) {
+				totals.postPayCommissionCents -= previous;
+			} else if (totals.basePostPayOrderCount > 0) {
+				// may be one of the loaded orders, whose commission isn't known one by one
+				totals.complete = false;
+			}
+		}
+	}
+
+	/**
+	 * @param day the day as the summary lists it
+	 * @param pricePerUnit the buyer's price of a kit of the category, the latest one counts
+	 */
+	public void kitShipped(long invoicePeriodId, long buyerId, int shippingKitId, String day, String productCategory,
+			double pricePerUnit) {
+		Totals totals = totals(invoicePeriodId, buyerId, true);
+		synchronized (totals) {
+			int category = totals.productCategoryIndex(productCategory);
+			long cell = cell(totals.dayIndex(day), category);
+			long previous = totals.kits.put(shippingKitId, cell, MISSING);
+			if (previous != cell) {
+				if (previous != MISSING) {
+					totals.dailyCategoryCounts.add(previous, -1);
+					totals.categoryCounts[(int) previous]--;
+				}
+				totals.dailyCategoryCounts.add(cell, 1);
+				totals.categoryCounts[category]++;
+			}
+			totals.categoryPriceCents[category] = cents(pricePerUnit);
+		}
+	}
+
+	/**
+	 * @param charge what the buyer is charged for the check, the latest one is the charge per unit
+	 */
+	public void checkProcessed(long invoicePeriodId, long buyerId, int checkRequestId, double charge) {
+		Totals totals = totals(invoicePeriodId, buyerId, true);
+		long cents = cents(charge);
+		synchronized (totals) {
+			long previous = totals.checkCharges.put(checkRequestId, cents, MISSING);
+			totals.checkChargeCents += cents - (previous == MISSING ? 0 : previous);
+			totals.checkChargePerUnitCents = cents;
+		}
+	}
+
+	/**
+	 * The summary as <code>InvoiceVoBuilder.buildInvoiceSummaryVo</code> builds it. Takes time
+	 * in the number of days and product categories with kits, not in the size of the invoice.
+	 *
+	 * @return null unless the totals of the period and buyer are complete
+	 */
+	public InvoiceSummaryVo getSummary(long invoicePeriodId, long buyerId) {
+		Totals totals = totals(invoicePeriodId, buyerId, false);
+		if (totals == null) {
+			return null;
+		}
+		synchronized (totals) {
+			return totals.complete ? totals.toSummaryVo() : null;
+		}
+	}
+
+	/**
+	 * Drops the totals of a period and buyer, for example once the invoice is closed. Call it
+	 * once the events of the period have stopped: an event racing with the remove may update
+	 * the dropped totals and be lost. An event after it starts new totals, which aren't served
+	 * before they are loaded.
+	 */
+	public void remove(long invoicePeriodId, long buyerId) {
+		long key = key(invoicePeriodId, buyerId);
+		synchronized (this) {
+			long slot = slots.remove(key, MISSING);
+			if (slot != MISSING) {
+				totalsBySlot.set((int) slot, null);
+				freeSlots.add(Integer.valueOf((int) slot));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of periods and buyers with totals
+	 */
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	private Totals totals(long invoicePeriodId, long buyerId, boolean create) {
+		long key = key(invoicePeriodId, buyerId);
+		synchronized (this) {
+			long slot = slots.get(key, MISSING);
+			if (slot != MISSING) {
+				return totalsBySlot.get((int) slot);
+			}
+			if (!create) {
+				return null;
+			}
+			Totals created = new Totals();
+			if (freeSlots.isEmpty()) {
+				slot = totalsBySlot.size();
+				totalsBySlot.add(created);
+			} else {
+				slot = freeSlots.remove(freeSlots.size() - 1).intValue();
+				totalsBySlot.set((int) slot, created);
+			}
+			slots.put(key, slot, MISSING);
+			return created;
+		}
+	}
+
+	private static long key(long invoicePeriodId, long buyerId) {
+		if (invoicePeriodId != (int) invoicePeriodId || buyerId != (int) buyerId) {
+			throw new IllegalArgumentException("Ids out of int range: period " + invoicePeriodId + ", buyer " + buyerId);
+		}
+		return (invoicePeriodId << 32) | (buyerId & 0xFFFFFFFFL);
+	}
+
+	/** The day in the high and the category in the low half, so a cell's low half is its category. */
+	private static long cell(int day, int category) {
+		return ((long) day << 32) | category;
+	}
+
+	private static long cents(double amount) {
+		return Math.round(amount * 100);
+	}
+
+	private static String amount(long cents) {
+		return BigDecimal.valueOf(cents, 2).toPlainString();
+	}
+
+	private static final class Totals {
+
+		private String buyer;
+
+		private String invoiceNumber;
+
+		private String invoicePeriodStartDate;
+
+		private String invoicePeriodEndDate;
+
+		private String invoiceDate;
+
+		/** Loaded and not made incomplete since, see {@link InvoiceSummaryIndex#load}. */
+		private boolean complete;
+
+		/**
+		 * Rows counted by the loaded summary but not held in the maps below. The kit and check
+		 * maps only hold rows of later events, the post-pay map also the loaded orders it named.
+		 */
+		private int basePostPayOrderCount;
+
+		private int baseKitCount;
+
+		private int baseCheckCount;
+
+		/** Order item id to commission in cents. */
+		private final LongLongMap postPayCommissions = new LongLongMap();
+
+		private long postPayCommissionCents;
+
+		/** Shipping kit id to its {@link InvoiceSummaryIndex#cell}. */
+		private final LongLongMap kits = new LongLongMap();
+
+		/** {@link InvoiceSummaryIndex#cell} to the number of kits. */
+		private final LongLongMap dailyCategoryCounts = new LongLongMap();
+
+		private final List<String> days = new ArrayList<String>();
+
+		private final Map<String, Integer> dayIndexes = new HashMap<String, Integer>();
+
+		private final List<String> productCategories = new ArrayList<String>();
+
+		private final Map<String, Integer> productCategoryIndexes = new HashMap<String, Integer>();
+
+		private int[] categoryCounts = new int[4];
+
+		private long[] categoryPriceCents = new long[4];
+
+		/** Check request id to charge in cents. */
+		private final LongLongMap checkCharges = new LongLongMap();
+
+		private long checkChargeCents;
+
+		private long checkChargePerUnitCents;
+
+		int dayIndex(String day) {
+			Integer index = dayIndexes.get(day);
+			if (index == null) {
+				index = Integer.valueOf(days.size());
+				days.add(day);
+				dayIndexes.put(day, index);
+			}
+			return index.intValue();
+		}
+
+		int productCategoryIndex(String productCategory) {
+			Integer index = productCategoryIndexes.get(productCategory);
+			if (index == null) {
+				index = Integer.valueOf(productCategories.size());
+				productCategories.add(productCategory);
+				productCategoryIndexes.put(productCategory, index);
+				if (index.intValue() == categoryCounts.length) {
+					categoryCounts = Arrays.copyOf(categoryCounts, categoryCounts.length * 2);
+					categoryPriceCents = Arrays.copyOf(categoryPriceCents, categoryPriceCents.length * 2);
+				}
+			}
+			return index.intValue();
+		}
+
+		void load(InvoiceSummaryVo summary, Map<Integer, Double> loadedPostPayCommissions) {
+			buyer = summary.getBuyer();
+			invoiceNumber = summary.getInvoiceNumber();
+			invoicePeriodStartDate = summary.getInvoicePeriodStartDate();
+			invoicePeriodEndDate = summary.getInvoicePeriodEndDate();
+			invoiceDate = summary.getInvoiceDate();
+
+			postPayCommissions.clear();
+			for (Map.Entry<Integer, Double> entry : loadedPostPayCommissions.entrySet()) {
+				postPayCommissions.put(entry.getKey().intValue(), centsOf(entry.getValue()), MISSING);
+			}
+			basePostPayOrderCount = (summary.getPostPayOrderCount() == null ? 0 : summary.getPostPayOrderCount().intValue())
+					- postPayCommissions.size();
+			postPayCommissionCents = centsOf(summary.getTotalPostPayOrderCommission());
+
+			kits.clear();
+			dailyCategoryCounts.clear();
+			days.clear();
+			dayIndexes.clear();
+			productCategories.clear();
+			productCategoryIndexes.clear();
+			Arrays.fill(categoryCounts, 0);
+			Arrays.fill(categoryPriceCents, 0);
+			baseKitCount = 0;
+			ShippingKitSummaryVo kitSummary = summary.getShippingKitSummaryVo();
+			if (kitSummary != null) {
+				for (String day : kitSummary.getDays()) {
+					dayIndex(day);
+				}
+				for (String productCategory : kitSummary.getProductCategories()) {
+					int category = productCategoryIndex(productCategory);
+					Integer count = kitSummary.getCategoryCount().get(productCategory);
+					categoryCounts[category] = count == null ? 0 : count.intValue();
+					baseKitCount += categoryCounts[category];
+					String price = kitSummary.getCategoryPricePerUnit().get(productCategory);
+					categoryPriceCents[category] = price == null ? 0 : cents(Double.parseDouble(price));
+				}
+				for (Map.Entry<ShippingKitSummaryVo.CategoryDay, Integer> entry : kitSummary.getDailyCategoryCount().entrySet()) {
+					if (entry.getValue() != null) {
+						long cell = cell(dayIndex(entry.getKey().day), productCategoryIndex(entry.getKey().productCategory));
+						dailyCategoryCounts.add(cell, entry.getValue().intValue());
+					}
+				}
+			}
+
+			checkCharges.clear();
+			baseCheckCount = summary.getTotalCheckCount();
+			checkChargeCents = centsOf(summary.getTotalCheckAmountDue());
+			checkChargePerUnitCents = centsOf(summary.getCheckChargePerUnit());
+			complete = true;
+		}
+
+		private static long centsOf(Double amount) {
+			return amount == null ? 0 : cents(amount.doubleValue());
+		}
+
+		InvoiceSummaryVo toSummaryVo() {
+			InvoiceSummaryVo summary = new InvoiceSummaryVo();
+			summary.setBuyer(buyer);
+			summary.setInvoiceNumber(invoiceNumber);
+			summary.setInvoicePeriodStartDate(invoicePeriodStartDate);
+			summary.setInvoicePeriodEndDate(invoicePeriodEndDate);
+			summary.setInvoiceDate(invoiceDate);
+			summary.setPostPayOrderCount(Integer.valueOf(basePostPayOrderCount + postPayCommissions.size()));
+			summary.setTotalPostPayOrderCommission(Double.valueOf(postPayCommissionCents / 100.0));
+			summary.setTotalCheckCount(baseCheckCount + checkCharges.size());
+			summary.setCheckChargePerUnit(Double.valueOf(checkChargePerUnitCents / 100.0));
+			summary.setTotalCheckAmountDue(Double.valueOf(checkChargeCents / 100.0));
+
+			long kitCents = 0;
+			if (baseKitCount + kits.size() > 0) {
+				ShippingKitSummaryVo kitSummary = new ShippingKitSummaryVo();
+				Map<ShippingKitSummaryVo.CategoryDay, Integer> dailyCounts = new HashMap<ShippingKitSummaryVo.CategoryDay, Integer>();
+				for (int day = 0; day < days.size(); day++) {
+					for (int category = 0; category < productCategories.size(); category++) {
+						long count = dailyCategoryCounts.get(cell(day, category), 0);
+						if (count > 0) {
+							ShippingKitSummaryVo.CategoryDay categoryDay = new ShippingKitSummaryVo.CategoryDay();
+							categoryDay.day = days.get(day);
+							categoryDay.productCategory = productCategories.get(category);
+							dailyCounts.put(categoryDay, Integer.valueOf((int) count));
+						}
+					}
+				}
+				Map<String, Integer> categoryCountsByName = new LinkedHashMap<String, Integer>();
+				Map<String, String> pricesPerUnit = new LinkedHashMap<String, String>();
+				Map<String, String> amountsDue = new LinkedHashMap<String, String>();
+				for (int category = 0; category < productCategories.size(); category++) {
+					String name = productCategories.get(category);
+					long categoryCents = categoryCounts[category] * categoryPriceCents[category];
+					categoryCountsByName.put(name, Integer.valueOf(categoryCounts[category]));
+					pricesPerUnit.put(name, amount(categoryPriceCents[category]));
+					amountsDue.put(name, amount(categoryCents));
+					kitCents += categoryCents;
+				}
+				kitSummary.setDays(new ArrayList<String>(days));
+				kitSummary.setProductCategories(new ArrayList<String>(productCategories));
+				kitSummary.setDailyCategoryCount(dailyCounts);
+				kitSummary.setCategoryCount(categoryCountsByName);
+				kitSummary.setCategoryPricePerUnit(pricesPerUnit);
+				kitSummary.setCategoryAmountDue(amountsDue);
+				kitSummary.setAmountDue(amount(kitCents));
+				summary.setShippingKitSummaryVo(kitSummary);
+			}
+
+			summary.setAmountDue(amount(postPayCommissionCents + kitCents + checkChargeCents));
+			return summary;
+		}
+	}
+}
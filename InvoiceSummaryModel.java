@@ -0,0 +1,210 @@
+package com.usell.platform.web.billing;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The figures of the "Invoice Summary" sheet, indexed once so the sheet can be written
+ * without lookups or parsing. Amounts are doubles, and the shipping kit counts are a dense
+ * day by category matrix filled in one pass over {@link ShippingKitSummaryVo#getDailyCategoryCount}.
+ * A day without kits of a category counts 0.
+ */
+final class InvoiceSummaryModel {
+
+	private String buyer;
+
+	private String invoiceNumber;
+
+	private String invoicePeriodStartDate;
+
+	private String invoicePeriodEndDate;
+
+	private String invoiceDate;
+
+	private int postPayOrderCount;
+
+	private double totalPostPayOrderCommission;
+
+	private boolean hasShippingKits;
+
+	private String[] days = new String[0];
+
+	private String[] productCategories = new String[0];
+
+	/** Row major, dailyCategoryCounts[day * productCategories.length + category]. */
+	private int[] dailyCategoryCounts = new int[0];
+
+	private int[] categoryCounts = new int[0];
+
+	private double[] categoryPricesPerUnit = new double[0];
+
+	private double[] categoryAmountsDue = new double[0];
+
+	private double shippingKitAmountDue;
+
+	private int totalCheckCount;
+
+	private double checkChargePerUnit;
+
+	private double totalCheckAmountDue;
+
+	private double amountDue;
+
+	private InvoiceSummaryModel() {
+	}
+
+	static InvoiceSummaryModel from(InvoiceSummaryVo summary) {
+		InvoiceSummaryModel model = new InvoiceSummaryModel();
+		model.buyer = summary.getBuyer();
+		model.invoiceNumber = summary.getInvoiceNumber();
+		model.invoicePeriodStartDate = summary.getInvoicePeriodStartDate();
+		model.invoicePeriodEndDate = summary.getInvoicePeriodEndDate();
+		model.invoiceDate = summary.getInvoiceDate();
+		model.postPayOrderCount = intValue(summary.getPostPayOrderCount());
+		model.totalPostPayOrderCommission = doubleValue(summary.getTotalPostPayOrderCommission());
+		model.totalCheckCount = summary.getTotalCheckCount();
+		model.checkChargePerUnit = doubleValue(summary.getCheckChargePerUnit());
+		model.totalCheckAmountDue = doubleValue(summary.getTotalCheckAmountDue());
+		model.amountDue = parse(summary.getAmountDue());
+
+		ShippingKitSummaryVo kits = summary.getShippingKitSummaryVo();
+		if (kits != null) {
+			model.indexShippingKits(kits);
+		}
+		return model;
+	}
+
+	private void indexShippingKits(ShippingKitSummaryVo kits) {
+		hasShippingKits = true;
+		days = kits.getDays().toArray(new String[0]);
+		productCategories = kits.getProductCategories().toArray(new String[0]);
+		Map<String, Integer> dayIndexes = indexes(kits.getDays());
+		Map<String, Integer> categoryIndexes = indexes(kits.getProductCategories());
+
+		int categoryCount = productCategories.length;
+		dailyCategoryCounts = new int[days.length * categoryCount];
+		for (Map.Entry<ShippingKitSummaryVo.CategoryDay, Integer> entry : kits.getDailyCategoryCount().entrySet()) {
+			Integer day = dayIndexes.get(entry.getKey().day);
+			Integer category = categoryIndexes.get(entry.getKey().productCategory);
+			if (day != null && category != null) {
+				dailyCategoryCounts[day.intValue() * categoryCount + category.intValue()] = intValue(entry.getValue());
+			}
+		}
+
+		categoryCounts = new int[categoryCount];
+		categoryPricesPerUnit = new double[categoryCount];
+		categoryAmountsDue = new double[categoryCount];
+		for (int i = 0; i < categoryCount; i++) {
+			String category = productCategories[i];
+			categoryCounts[i] = intValue(kits.getCategoryCount().get(category));
+			categoryPricesPerUnit[i] = parse(kits.getCategoryPricePerUnit().get(category));
+			categoryAmountsDue[i] = parse(kits.getCategoryAmountDue().get(category));
+		}
+		shippingKitAmountDue = parse(kits.getAmountDue());
+	}
+
+	private static Map<String, Integer> indexes(List<String> values) {
+		Map<String, Integer> indexes = new HashMap<String, Integer>(values.size() * 2);
+		for (int i = 0; i < values.size(); i++) {
+			indexes.put(values.get(i), Integer.valueOf(i));
+		}
+		return indexes;
+	}
+
+	private static int intValue(Integer value) {
+		return value == null ? 0 : value.intValue();
+	}
+
+	private static double doubleValue(Double value) {
+		return value == null ? 0 : value.doubleValue();
+	}
+
+	private static double parse(String amount) {
+		return amount == null ? 0 : Double.parseDouble(amount);
+	}
+
+	String getBuyer() {
+		return buyer;
+	}
+
+	String getInvoiceNumber() {
+		return invoiceNumber;
+	}
+
+	String getInvoicePeriodStartDate() {
+		return invoicePeriodStartDate;
+	}
+
+	String getInvoicePeriodEndDate() {
+		return invoicePeriodEndDate;
+	}
+
+	String getInvoiceDate() {
+		return invoiceDate;
+	}
+
+	int getPostPayOrderCount() {
+		return postPayOrderCount;
+	}
+
+	double getTotalPostPayOrderCommission() {
+		return totalPostPayOrderCommission;
+	}
+
+	boolean hasShippingKits() {
+		return hasShippingKits;
+	}
+
+	int getDayCount() {
+		return days.length;
+	}
+
+	String getDay(int day) {
+		return days[day];
+	}
+
+	int getProductCategoryCount() {
+		return productCategories.length;
+	}
+
+	String getProductCategory(int category) {
+		return productCategories[category];
+	}
+
+	int getDailyCategoryCount(int day, int category) {
+		return dailyCategoryCounts[day * productCategories.length + category];
+	}
+
+	int getCategoryCount(int category) {
+		return categoryCounts[category];
+	}
+
+	double getCategoryPricePerUnit(int category) {
+		return categoryPricesPerUnit[category];
+	}
+
+	double getCategoryAmountDue(int category) {
+		return categoryAmountsDue[category];
+	}
+
+	double getShippingKitAmountDue() {
+		return shippingKitAmountDue;
+	}
+
+	int getTotalCheckCount() {
+		return totalCheckCount;
+	}
+
+	double getCheckChargePerUnit() {
+		return checkChargePerUnit;
+	}
+
+	double getTotalCheckAmountDue() {
+		return totalCheckAmountDue;
+	}
+
+	double getAmountDue() {
+		return amountDue;
+	}
+}
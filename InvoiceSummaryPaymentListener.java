@@ -0,0 +1,90 @@
+package com.usell.platform.web.billing;
+
+import java.util.function.IntFunction;
+
+import com.usell.platform.payments.paypal.PayPalPaymentStatusListener;
+import com.usell.platform.payments.paypal.PayPalPaymentStatusUpdate;
+
+/**
+ * Keeps the post-pay totals of an {@link InvoiceSummaryIndex} in step with PayPal payment
+ * status updates, set up on a <code>NotifyingPayPalAdaptivePaymentFacade</code>.
+ * <p>
+ * A payment PayPal reports <code>COMPLETED</code> counts its order as paid. A transaction
+ * that is reversed, refunded, denied or failed, or a payment in <code>ERROR</code>, takes it
+ * back. Other statuses, pending ones for example, change nothing, nor do order items the
+ * lookup doesn't know as post-pay orders.
+ */
+public class InvoiceSummaryPaymentListener implements PayPalPaymentStatusListener {
+
+	private final InvoiceSummaryIndex summaryIndex;
+
+	private final IntFunction<PostPayOrder> postPayOrders;
+
+	/**
+	 * @param postPayOrders the post-pay order of an order item id, or null if it is none
+	 */
+	public InvoiceSummaryPaymentListener(InvoiceSummaryIndex summaryIndex, IntFunction<PostPayOrder> postPayOrders) {
+		this.summaryIndex = summaryIndex;
+		this.postPayOrders = postPayOrders;
+	}
+
+	@Override
+	public void statusUpdated(PayPalPaymentStatusUpdate update) {
+		if (update.getOrderItemId() == null) {
+			return;
+		}
+		boolean reversed = isReversed(update);
+		if (!reversed && !"COMPLETED".equalsIgnoreCase(update.getPaymentExecStatus())) {
+			return;
+		}
+		int orderItemId = update.getOrderItemId().intValue();
+		PostPayOrder order = postPayOrders.apply(orderItemId);
+		if (order == null) {
+			return;
+		}
+		if (reversed) {
+			summaryIndex.postPayOrderReversed(order.getInvoicePeriodId(), order.getBuyerId(), orderItemId);
+		} else {
+			summaryIndex.postPayOrderPaid(order.getInvoicePeriodId(), order.getBuyerId(), orderItemId, order.getCommission());
+		}
+	}
+
+	private static boolean isReversed(PayPalPaymentStatusUpdate update) {
+		String transactionStatus = update.getTransactionStatus();
+		return "ERROR".equalsIgnoreCase(update.getPaymentExecStatus())
+				|| "REVERSED".equalsIgnoreCase(transactionStatus)
+				|| "REFUNDED".equalsIgnoreCase(transactionStatus)
+				|| "DENIED".equalsIgnoreCase(transactionStatus)
+				|| "FAILED".equalsIgnoreCase(transactionStatus);
+	}
+
+	/**
+	 * Where a post-pay order is invoiced and what the buyer owes for it.
+	 */
+	public static final class PostPayOrder {
+
+		private final long invoicePeriodId;
+
+		private final long buyerId;
+
+		private final double commission;
+
+		public PostPayOrder(long invoicePeriodId, long buyerId, double commission) {
+			this.invoicePeriodId = invoicePeriodId;
+			this.buyerId = buyerId;
+			this.commission = commission;
+		}
+
+		public long getInvoicePeriodId() {
+			return invoicePeriodId;
+		}
+
+		public long getBuyerId() {
+			return buyerId;
+		}
+
+		public double getCommission() {
+			return commission;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.usell.platform.web.billing;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to long, without boxing either. Linear probing, and
+ * removal shifts the following entries back instead of leaving tombstones. Not thread safe.
+ */
+final class LongLongMap {
+
+	private long[] keys;
+
+	private long[] values;
+
+	private boolean[] used;
+
+	private int size;
+
+	LongLongMap() {
+		this(16);
+	}
+
+	LongLongMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean containsKey(long key) {
+		return used[slot(key)];
+	}
+
+	/**
+	 * @return the value of the key, <code>missing</code> if there is none
+	 */
+	long get(long key, long missing) {
+		int slot = slot(key);
+		return used[slot] ? values[slot] : missing;
+	}
+
+	/**
+	 * @return the previous value of the key, <code>missing</code> if there was none
+	 */
+	long put(long key, long value, long missing) {
+		int slot = slot(key);
+		if (used[slot]) {
+			long previous = values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+		if (++size > keys.length * 3 / 4) {
+			resize();
+		}
+		return missing;
+	}
+
+	/**
+	 * Adds <code>delta</code> to the value of the key, a missing key counting as 0.
+	 *
+	 * @return the new value
+	 */
+	long add(long key, long delta) {
+		int slot = slot(key);
+		if (used[slot]) {
+			return values[slot] += delta;
+		}
+		put(key, delta, 0);
+		return delta;
+	}
+
+	/**
+	 * @return the removed value, <code>missing</code> if there was none
+	 */
+	long remove(long key, long missing) {
+		int mask = keys.length - 1;
+		int slot = slot(key);
+		if (!used[slot]) {
+			return missing;
+		}
+		long removed = values[slot];
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (used[next]) {
+			int home = hash(keys[next]) & mask;
+			// move the entry into the gap unless its home lies cyclically in (gap, next]
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		used[gap] = false;
+		size--;
+		return removed;
+	}
+
+	void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldKeys.length * 2];
+		used = new boolean[oldKeys.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], oldValues[i], 0);
+			}
+		}
+	}
+}
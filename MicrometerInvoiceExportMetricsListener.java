@@ -0,0 +1,84 @@
+package com.usell.platform.web.billing;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes invoice export metrics to a Micrometer registry:
+ * <ul>
+ * <li><code>invoice.export.phase</code>, a timer tagged with <code>phase</code> and <code>sheet</code></li>
+ * <li><code>invoice.export.sheet.rows</code>, a summary tagged with <code>sheet</code></li>
+ * <li><code>invoice.export.bytes</code> and <code>invoice.export</code>, size and duration of whole exports</li>
+ * </ul>
+ * Phases of the whole export are tagged with the sheet <code>all</code>.
+ */
+public class MicrometerInvoiceExportMetricsListener implements InvoiceExportMetricsListener {
+
+	private static final String ALL_SHEETS = "all";
+
+	private final MeterRegistry registry;
+
+	private final Map<InvoiceExportPhase, ConcurrentMap<String, Timer>> phaseTimers =
+			new EnumMap<InvoiceExportPhase, ConcurrentMap<String, Timer>>(InvoiceExportPhase.class);
+
+	private final ConcurrentMap<String, DistributionSummary> sheetRows = new ConcurrentHashMap<String, DistributionSummary>();
+
+	private final DistributionSummary exportBytes;
+
+	private final Timer exportTimer;
+
+	public MicrometerInvoiceExportMetricsListener(MeterRegistry registry) {
+		this.registry = registry;
+		for (InvoiceExportPhase phase : InvoiceExportPhase.values()) {
+			phaseTimers.put(phase, new ConcurrentHashMap<String, Timer>());
+		}
+		exportBytes = DistributionSummary.builder("invoice.export.bytes")
+				.baseUnit("bytes")
+				.register(registry);
+		exportTimer = Timer.builder("invoice.export")
+				.publishPercentileHistogram()
+				.register(registry);
+	}
+
+	@Override
+	public void phaseCompleted(InvoiceExportPhase phase, String sheetName, long nanos) {
+		String sheet = sheetName == null ? ALL_SHEETS : sheetName;
+		ConcurrentMap<String, Timer> timers = phaseTimers.get(phase);
+		Timer timer = timers.get(sheet);
+		if (timer == null) {
+			timer = Timer.builder("invoice.export.phase")
+					.tag("phase", phase.name().toLowerCase(Locale.ROOT))
+					.tag("sheet", sheet)
+					.register(registry);
+			timers.putIfAbsent(sheet, timer);
+		}
+		timer.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void sheetRendered(String sheetName, int rows) {
+		DistributionSummary summary = sheetRows.get(sheetName);
+		if (summary == null) {
+			summary = DistributionSummary.builder("invoice.export.sheet.rows")
+					.tag("sheet", sheetName)
+					.baseUnit("rows")
+					.register(registry);
+			sheetRows.putIfAbsent(sheetName, summary);
+		}
+		summary.record(rows);
+	}
+
+	@Override
+	public void exportCompleted(long bytes, long nanos) {
+		exportBytes.record(bytes);
+		exportTimer.record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,73 @@
+package com.usell.platform.web.billing;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes the state of an {@link InvoiceExportScheduler} to a Micrometer registry:
+ * <ul>
+ * <li><code>invoice.export.queue.depth</code> and <code>invoice.export.running</code>, tagged with <code>priority</code></li>
+ * <li><code>invoice.export.inflight.bytes</code>, the estimated heap of the running exports</li>
+ * <li><code>invoice.export.wait</code>, a timer of the time to start tagged with <code>priority</code></li>
+ * <li><code>invoice.export.rejected</code>, a counter tagged with <code>priority</code> and <code>reason</code></li>
+ * </ul>
+ * Registers itself as the scheduler's listener.
+ */
+public class MicrometerInvoiceExportSchedulerMetrics implements InvoiceExportSchedulerListener {
+
+	private final MeterRegistry registry;
+
+	private final Map<InvoiceExportPriority, Timer> waitTimers =
+			new EnumMap<InvoiceExportPriority, Timer>(InvoiceExportPriority.class);
+
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	public MicrometerInvoiceExportSchedulerMetrics(MeterRegistry registry, InvoiceExportScheduler scheduler) {
+		this.registry = registry;
+		for (InvoiceExportPriority priority : InvoiceExportPriority.values()) {
+			String tag = priority.name().toLowerCase(Locale.ROOT);
+			Gauge.builder("invoice.export.queue.depth", scheduler, s -> s.getQueueDepth(priority))
+					.tag("priority", tag)
+					.register(registry);
+			Gauge.builder("invoice.export.running", scheduler, s -> s.getRunningCount(priority))
+					.tag("priority", tag)
+					.register(registry);
+			waitTimers.put(priority, Timer.builder("invoice.export.wait")
+					.tag("priority", tag)
+					.publishPercentileHistogram()
+					.register(registry));
+		}
+		Gauge.builder("invoice.export.inflight.bytes", scheduler, InvoiceExportScheduler::getInFlightHeapBytes)
+				.baseUnit("bytes")
+				.register(registry);
+		scheduler.setListener(this);
+	}
+
+	@Override
+	public void exportStarted(InvoiceExportPriority priority, long waitNanos, long estimatedHeapBytes) {
+		waitTimers.get(priority).record(waitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void exportRejected(InvoiceExportPriority priority, InvoiceExportRejectedException.Reason reason) {
+		String key = priority.name() + ',' + reason.name();
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			counter = Counter.builder("invoice.export.rejected")
+					.tag("priority", priority.name().toLowerCase(Locale.ROOT))
+					.tag("reason", reason.name().toLowerCase(Locale.ROOT))
+					.register(registry);
+			counters.putIfAbsent(key, counter);
+		}
+		counter.increment();
+	}
+}
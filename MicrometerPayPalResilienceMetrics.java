@@ -0,0 +1,65 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Publishes the state of a {@link ResilientPayPalAdaptivePaymentFacade} to a Micrometer registry:
+ * <ul>
+ * <li><code>paypal.circuit.state</code>, 0 closed, 1 half open, 2 open, and <code>paypal.circuit.failure.rate</code></li>
+ * <li><code>paypal.circuit.transitions</code>, a counter tagged with the state entered</li>
+ * <li><code>paypal.ratelimit.saturation</code>, tagged with <code>operation</code></li>
+ * <li><code>paypal.bulkhead.calls</code>, the calls in flight</li>
+ * <li><code>paypal.calls.rejected</code>, a counter tagged with <code>operation</code> and <code>reason</code></li>
+ * </ul>
+ * Registers itself as the facade's listener.
+ */
+public class MicrometerPayPalResilienceMetrics implements PayPalResilienceListener {
+
+	private final MeterRegistry registry;
+
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	public MicrometerPayPalResilienceMetrics(MeterRegistry registry, ResilientPayPalAdaptivePaymentFacade facade) {
+		this.registry = registry;
+		Gauge.builder("paypal.circuit.state", facade, f -> f.getCircuitState() == PayPalCircuitBreaker.State.CLOSED ? 0
+				: f.getCircuitState() == PayPalCircuitBreaker.State.HALF_OPEN ? 1 : 2)
+				.register(registry);
+		Gauge.builder("paypal.circuit.failure.rate", facade, ResilientPayPalAdaptivePaymentFacade::getFailureRate)
+				.register(registry);
+		Gauge.builder("paypal.bulkhead.calls", facade, ResilientPayPalAdaptivePaymentFacade::getConcurrentCalls)
+				.register(registry);
+		for (PayPalOperation operation : PayPalOperation.values()) {
+			Gauge.builder("paypal.ratelimit.saturation", facade, f -> f.getRateLimitSaturation(operation))
+					.tag("operation", operation.name().toLowerCase(Locale.ROOT))
+					.register(registry);
+		}
+		facade.setListener(this);
+	}
+
+	@Override
+	public void callRejected(PayPalOperation operation, PayPalCallRejectedException.Reason reason) {
+		counter("paypal.calls.rejected", "operation", operation.name().toLowerCase(Locale.ROOT), "reason", reason.name().toLowerCase(Locale.ROOT))
+				.increment();
+	}
+
+	@Override
+	public void circuitStateChanged(PayPalCircuitBreaker.State from, PayPalCircuitBreaker.State to) {
+		counter("paypal.circuit.transitions", "state", to.name().toLowerCase(Locale.ROOT)).increment();
+	}
+
+	private Counter counter(String name, String... tags) {
+		String key = name + String.join(",", tags);
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			counter = Counter.builder(name).tags(tags).register(registry);
+			counters.putIfAbsent(key, counter);
+		}
+		return counter;
+	}
+}
@@ -0,0 +1,24 @@
+package com.usell.platform.web.billing;
+
+/**
+ * The default listener. Exports configured with it skip taking any measurements.
+ */
+public final class NoOpInvoiceExportMetricsListener implements InvoiceExportMetricsListener {
+
+	public static final NoOpInvoiceExportMetricsListener INSTANCE = new NoOpInvoiceExportMetricsListener();
+
+	private NoOpInvoiceExportMetricsListener() {
+	}
+
+	@Override
+	public void phaseCompleted(InvoiceExportPhase phase, String sheetName, long nanos) {
+	}
+
+	@Override
+	public void sheetRendered(String sheetName, int rows) {
+	}
+
+	@Override
+	public void exportCompleted(long bytes, long nanos) {
+	}
+}
@@ -0,0 +1,43 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+
+/**
+ * Tells a {@link PayPalPaymentStatusListener} about every payment status update, once the
+ * wrapped facade took it without an exception. The listener runs on the caller's thread.
+ */
+public class NotifyingPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final PayPalPaymentStatusListener listener;
+
+	public NotifyingPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade,
+			PayPalPaymentStatusListener listener) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.listener = listener;
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+		return payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey, restrictedPreApprovalKey,
+				orderItemId, isReissue);
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		return payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate, maxTotalPayment, cancelUrl, returnUrl,
+				isRestricted);
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId, transactionStatus,
+				senderTransactionId, senderTransactionStatus, orderItemId);
+		listener.statusUpdated(new PayPalPaymentStatusUpdate(paymentExecStatus, transactionId, transactionStatus,
+				senderTransactionId, senderTransactionStatus, orderItemId));
+	}
+}
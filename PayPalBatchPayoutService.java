@@ -0,0 +1,189 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pays out a batch of order items through an {@link AsyncPayPalAdaptivePaymentFacade},
+ * keeping up to <code>maxConcurrency</code> calls in flight instead of one.
+ * <p>
+ * Payouts are grouped into a lane per sender. A lane pays its items one after another in
+ * batch order, lanes run concurrently. Once PayPal answers a payout with
+ * {@link NeedsPreApprovalException}, the remaining payouts of that sender with the same
+ * pre-approval keys are reported as {@link PayPalPayoutResult.Status#NEEDS_PRE_APPROVAL}
+ * without calling PayPal. With <code>senderOrdered</code> off every payout is a lane of its
+ * own, which pays a batch from a single sender concurrently too.
+ */
+public class PayPalBatchPayoutService {
+
+	private final AsyncPayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private int maxConcurrency = 16;
+
+	private boolean senderOrdered = true;
+
+	public PayPalBatchPayoutService(AsyncPayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+	}
+
+	/**
+	 * @return a future of the results in the order of <code>payouts</code>. It doesn't fail,
+	 * failed payouts are results with {@link PayPalPayoutResult.Status#FAILED}.
+	 */
+	public CompletableFuture<List<PayPalPayoutResult>> payAll(Collection<PayPalPayout> payouts) {
+		PayPalPayoutResult[] results = new PayPalPayoutResult[payouts.size()];
+		Queue<Lane> lanes = new ConcurrentLinkedQueue<Lane>(lanes(payouts));
+		CompletableFuture<List<PayPalPayoutResult>> done = new CompletableFuture<List<PayPalPayoutResult>>();
+		if (lanes.isEmpty()) {
+			done.complete(new ArrayList<PayPalPayoutResult>());
+			return done;
+		}
+
+		AtomicInteger remainingLanes = new AtomicInteger(lanes.size());
+		int workers = Math.min(maxConcurrency, lanes.size());
+		for (int i = 0; i < workers; i++) {
+			runNextLane(lanes, results, remainingLanes, done);
+		}
+		return done;
+	}
+
+	private List<Lane> lanes(Collection<PayPalPayout> payouts) {
+		Map<String, Lane> bySender = new LinkedHashMap<String, Lane>();
+		List<Lane> lanes = new ArrayList<Lane>();
+		int index = 0;
+		for (PayPalPayout payout : payouts) {
+			Lane lane = senderOrdered ? bySender.get(payout.getSenderEmail()) : null;
+			if (lane == null) {
+				lane = new Lane();
+				lanes.add(lane);
+				if (senderOrdered) {
+					bySender.put(payout.getSenderEmail(), lane);
+				}
+			}
+			lane.payouts.add(payout);
+			lane.indexes.add(Integer.valueOf(index++));
+		}
+		return lanes;
+	}
+
+	/**
+	 * Takes a lane off the queue and pays it, then moves on to the next one. Each running
+	 * chain of lanes is one call in flight.
+	 */
+	private void runNextLane(Queue<Lane> lanes, PayPalPayoutResult[] results, AtomicInteger remainingLanes,
+			CompletableFuture<List<PayPalPayoutResult>> done) {
+		for (Lane lane = lanes.poll(); lane != null; lane = lanes.poll()) {
+			CompletableFuture<Void> paid = payFrom(lane, 0, results);
+			if (!paid.isDone()) {
+				paid.whenComplete((ignored, e) -> {
+					laneDone(remainingLanes, results, done);
+					runNextLane(lanes, results, remainingLanes, done);
+				});
+				return;
+			}
+			laneDone(remainingLanes, results, done);
+		}
+	}
+
+	private static void laneDone(AtomicInteger remainingLanes, PayPalPayoutResult[] results,
+			CompletableFuture<List<PayPalPayoutResult>> done) {
+		if (remainingLanes.decrementAndGet() == 0) {
+			done.complete(Arrays.asList(results));
+		}
+	}
+
+	/**
+	 * Pays the lane from <code>position</code> on. Calls that complete right away are handled
+	 * in the loop, so a lane of synchronous calls doesn't nest a stage per payout.
+	 */
+	private CompletableFuture<Void> payFrom(Lane lane, int position, PayPalPayoutResult[] results) {
+		for (; position < lane.payouts.size(); position++) {
+			PayPalPayout payout = lane.payouts.get(position);
+			int index = lane.indexes.get(position).intValue();
+			NeedsPreApprovalException needsPreApproval = lane.needsPreApproval(payout);
+			if (needsPreApproval != null) {
+				results[index] = new PayPalPayoutResult(payout, PayPalPayoutResult.Status.NEEDS_PRE_APPROVAL, null, needsPreApproval);
+				continue;
+			}
+
+			CompletableFuture<PayPalCustomerPaymentDetails> payment;
+			try {
+				payment = payPalAdaptivePaymentFacade.pay(payout.getSenderEmail(), payout.getRecieverEmail(), payout.getAmount(),
+						payout.getPreApprovalKey(), payout.getRestrictedPreApprovalKey(), payout.getOrderItemId(), payout.getIsReissue());
+			} catch (RuntimeException e) {
+				payment = new CompletableFuture<PayPalCustomerPaymentDetails>();
+				payment.completeExceptionally(e);
+			}
+			CompletableFuture<Void> recorded = payment.handle((details, e) -> {
+				results[index] = result(lane, payout, details, e);
+				return null;
+			});
+			if (!recorded.isDone()) {
+				int next = position + 1;
+				return recorded.thenCompose(ignored -> payFrom(lane, next, results));
+			}
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private static PayPalPayoutResult result(Lane lane, PayPalPayout payout, PayPalCustomerPaymentDetails details, Throwable e) {
+		if (e == null) {
+			return new PayPalPayoutResult(payout, PayPalPayoutResult.Status.PAID, details, null);
+		}
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		if (cause instanceof NeedsPreApprovalException) {
+			lane.preApprovalNeeded(payout, (NeedsPreApprovalException) cause);
+			return new PayPalPayoutResult(payout, PayPalPayoutResult.Status.NEEDS_PRE_APPROVAL, null, cause);
+		}
+		return new PayPalPayoutResult(payout, PayPalPayoutResult.Status.FAILED, null, cause);
+	}
+
+	/**
+	 * Most payouts in flight at once, 16 by default.
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public void setSenderOrdered(boolean senderOrdered) {
+		this.senderOrdered = senderOrdered;
+	}
+
+	/**
+	 * Payouts paid one after another. Only one payout of a lane is in flight, so its state
+	 * needs no locking.
+	 */
+	private static class Lane {
+
+		private final List<PayPalPayout> payouts = new ArrayList<PayPalPayout>();
+
+		private final List<Integer> indexes = new ArrayList<Integer>();
+
+		private final Map<String, NeedsPreApprovalException> needsPreApproval = new HashMap<String, NeedsPreApprovalException>();
+
+		NeedsPreApprovalException needsPreApproval(PayPalPayout payout) {
+			return needsPreApproval.isEmpty() ? null : needsPreApproval.get(keys(payout));
+		}
+
+		void preApprovalNeeded(PayPalPayout payout, NeedsPreApprovalException e) {
+			needsPreApproval.put(keys(payout), e);
+		}
+
+		private static String keys(PayPalPayout payout) {
+			return payout.getSenderEmail() + '\n' + payout.getPreApprovalKey() + '\n' + payout.getRestrictedPreApprovalKey();
+		}
+	}
+}
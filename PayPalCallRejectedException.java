@@ -0,0 +1,37 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * A PayPal call refused locally without being attempted, because a limit of
+ * {@link ResilientPayPalAdaptivePaymentFacade} was reached.
+ */
+public class PayPalCallRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Reason {
+		/** The operation's token bucket is empty. */
+		RATE_LIMITED,
+		/** As many calls as allowed are already in flight. */
+		BULKHEAD_FULL,
+		/** Recent calls failed too often, PayPal is given time to recover. */
+		CIRCUIT_OPEN
+	}
+
+	private final PayPalOperation operation;
+
+	private final Reason reason;
+
+	public PayPalCallRejectedException(PayPalOperation operation, Reason reason) {
+		super(operation + " rejected: " + reason);
+		this.operation = operation;
+		this.reason = reason;
+	}
+
+	public PayPalOperation getOperation() {
+		return operation;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+}
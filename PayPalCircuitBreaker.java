@@ -0,0 +1,148 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Circuit breaker over the outcomes of the last <code>windowSize</code> calls.
+ * <p>
+ * CLOSED lets every call through. Once at least <code>minimumCalls</code> of the window
+ * are recorded and the share of failures reaches <code>failureRateThreshold</code> it goes
+ * OPEN and refuses calls for <code>openMillis</code>. It then goes HALF_OPEN and lets
+ * <code>halfOpenProbes</code> calls through: if they all succeed it closes with an empty
+ * window, the first failure opens it again.
+ */
+public class PayPalCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/** Called on every state change, with the breaker's lock held. */
+	public interface Listener {
+
+		void stateChanged(State from, State to);
+	}
+
+	private final boolean[] window;
+
+	private final int minimumCalls;
+
+	private final double failureRateThreshold;
+
+	private final long openMillis;
+
+	private final int halfOpenProbes;
+
+	private final Listener listener;
+
+	private State state = State.CLOSED;
+
+	private int recorded;
+
+	private int next;
+
+	private int failures;
+
+	private long openedAt;
+
+	private int probesStarted;
+
+	private int probesSucceeded;
+
+	public PayPalCircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openMillis,
+			int halfOpenProbes, Listener listener) {
+		this.window = new boolean[windowSize];
+		this.minimumCalls = minimumCalls;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openMillis = openMillis;
+		this.halfOpenProbes = halfOpenProbes;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return false if the call must not be made. A call allowed has to be followed by
+	 * {@link #recordSuccess} or {@link #recordFailure}.
+	 */
+	synchronized boolean tryAcquire() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openMillis) {
+				return false;
+			}
+			probesStarted = 0;
+			probesSucceeded = 0;
+			transition(State.HALF_OPEN);
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesStarted >= halfOpenProbes) {
+				return false;
+			}
+			probesStarted++;
+		}
+		return true;
+	}
+
+	synchronized void recordSuccess() {
+		if (state == State.HALF_OPEN) {
+			if (++probesSucceeded >= halfOpenProbes) {
+				clearWindow();
+				transition(State.CLOSED);
+			}
+			return;
+		}
+		record(false);
+	}
+
+	synchronized void recordFailure() {
+		if (state == State.HALF_OPEN) {
+			open();
+			return;
+		}
+		record(true);
+		if (state == State.CLOSED && recorded >= minimumCalls && failures >= failureRateThreshold * recorded) {
+			open();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the share of failures in the window, 0 while the window is empty
+	 */
+	public synchronized double getFailureRate() {
+		return recorded == 0 ? 0 : (double) failures / recorded;
+	}
+
+	private void record(boolean failure) {
+		if (recorded == window.length) {
+			if (window[next]) {
+				failures--;
+			}
+		} else {
+			recorded++;
+		}
+		window[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % window.length;
+	}
+
+	private void open() {
+		openedAt = System.currentTimeMillis();
+		transition(State.OPEN);
+	}
+
+	private void clearWindow() {
+		recorded = 0;
+		next = 0;
+		failures = 0;
+	}
+
+	private void transition(State to) {
+		State from = state;
+		state = to;
+		if (from != to && listener != null) {
+			listener.stateChanged(from, to);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * The calls of {@link PayPalAdaptivePaymentFacade}, for limits and metrics kept per call.
+ */
+public enum PayPalOperation {
+	PAY, PREAPPROVAL, UPDATE_STATUS
+}
@@ -0,0 +1,11 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * How a call of {@link PayPalAdaptivePaymentFacade} ended.
+ */
+public enum PayPalOutcome {
+	SUCCESS,
+	/** <code>pay</code> threw {@link NeedsPreApprovalException}. */
+	NEEDS_PRE_APPROVAL,
+	FAILURE
+}
@@ -0,0 +1,150 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * In-process record of payouts by order item and reissue flag: the ones in flight, as a
+ * future of their result, and the most recently settled ones, made or of unknown outcome.
+ * <p>
+ * Keys are spread over lock stripes, each with its own in-flight map and its own LRU of
+ * settled payouts, so lookups for different order items rarely wait for each other.
+ * Payouts that surely weren't made are not recorded, the next attempt pays again.
+ */
+public class PayPalPaymentIdempotencyIndex {
+
+	private final Stripe[] stripes;
+
+	/**
+	 * @param stripes rounded up to a power of two
+	 * @param maxCompleted settled payouts kept over all stripes
+	 */
+	public PayPalPaymentIdempotencyIndex(int stripes, int maxCompleted) {
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+		this.stripes = new Stripe[count];
+		int perStripe = Math.max(1, maxCompleted / count);
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe(perStripe);
+		}
+	}
+
+	public PayPalPaymentIdempotencyIndex() {
+		this(64, 100000);
+	}
+
+	/**
+	 * Looks up a payout, registering <code>payment</code> as in flight if there is none.
+	 *
+	 * @return the future of the payout made or in flight, or null if <code>payment</code>
+	 * was registered and the caller has to make the payout
+	 */
+	CompletableFuture<PayPalCustomerPaymentDetails> claim(int orderItemId, boolean isReissue, CompletableFuture<PayPalCustomerPaymentDetails> payment) {
+		long key = key(orderItemId, isReissue);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			CompletableFuture<PayPalCustomerPaymentDetails> settled = stripe.settled.get(key);
+			if (settled != null) {
+				return settled;
+			}
+			CompletableFuture<PayPalCustomerPaymentDetails> inFlight = stripe.inFlight.get(key);
+			if (inFlight != null) {
+				return inFlight;
+			}
+			stripe.inFlight.put(key, payment);
+			return null;
+		}
+	}
+
+	/**
+	 * Records the payout claimed with {@link #claim} as made. The details may be null.
+	 */
+	void completed(int orderItemId, boolean isReissue, PayPalCustomerPaymentDetails paymentDetails) {
+		settle(orderItemId, isReissue, CompletableFuture.completedFuture(paymentDetails));
+	}
+
+	/**
+	 * Records the payout claimed with {@link #claim} as attempted with an unknown outcome.
+	 * Later claims get the failure until it is {@link #forget forgotten}.
+	 */
+	void unknown(int orderItemId, boolean isReissue, PayPalPaymentOutcomeUnknownException failure) {
+		CompletableFuture<PayPalCustomerPaymentDetails> settled = new CompletableFuture<PayPalCustomerPaymentDetails>();
+		settled.completeExceptionally(failure);
+		settle(orderItemId, isReissue, settled);
+	}
+
+	private void settle(int orderItemId, boolean isReissue, CompletableFuture<PayPalCustomerPaymentDetails> settled) {
+		long key = key(orderItemId, isReissue);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.inFlight.remove(key);
+			stripe.settled.put(key, settled);
+		}
+	}
+
+	/**
+	 * Forgets the payout claimed with {@link #claim}, it surely wasn't made.
+	 */
+	void failed(int orderItemId, boolean isReissue) {
+		long key = key(orderItemId, isReissue);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.inFlight.remove(key);
+		}
+	}
+
+	/**
+	 * Forgets a settled payout, once reconciliation has put its outcome in the store.
+	 */
+	void forget(int orderItemId, boolean isReissue) {
+		long key = key(orderItemId, isReissue);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.settled.remove(key);
+		}
+	}
+
+	public int getInFlightCount() {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.inFlight.size();
+			}
+		}
+		return count;
+	}
+
+	private static long key(int orderItemId, boolean isReissue) {
+		return ((long) orderItemId << 1) | (isReissue ? 1 : 0);
+	}
+
+	private Stripe stripe(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+	}
+
+	private static class Stripe {
+
+		private final Map<Long, CompletableFuture<PayPalCustomerPaymentDetails>> inFlight =
+				new HashMap<Long, CompletableFuture<PayPalCustomerPaymentDetails>>();
+
+		/** Completed futures, so a payout made without details isn't taken for one not made. */
+		private final LinkedHashMap<Long, CompletableFuture<PayPalCustomerPaymentDetails>> settled;
+
+		Stripe(final int maxSettled) {
+			settled = new LinkedHashMap<Long, CompletableFuture<PayPalCustomerPaymentDetails>>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<PayPalCustomerPaymentDetails>> eldest) {
+					return size() > maxSettled;
+				}
+			};
+		}
+	}
+}
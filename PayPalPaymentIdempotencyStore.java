@@ -0,0 +1,35 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Persistent record of the payouts made, consulted when {@link PayPalPaymentIdempotencyIndex}
+ * doesn't know an order item, for example after a restart or when another node paid it.
+ * <p>
+ * Besides the payouts made it holds a marker for each payout being attempted, written before
+ * PayPal is called. A marker left behind by a crash or a timeout means the payout may have
+ * been made; it stays until the payout is reconciled.
+ */
+public interface PayPalPaymentIdempotencyStore {
+
+	/**
+	 * @return the details of the payout made for the order item, null if there was none
+	 */
+	PayPalCustomerPaymentDetails find(Integer orderItemId, boolean isReissue);
+
+	/**
+	 * Records that the payout is about to be attempted. Must be atomic across nodes, an insert
+	 * against a unique key for example.
+	 *
+	 * @return false if the order item already has a marker or a payout
+	 */
+	boolean markInFlight(Integer orderItemId, boolean isReissue);
+
+	/**
+	 * Removes the marker of a payout that surely wasn't made.
+	 */
+	void clearInFlight(Integer orderItemId, boolean isReissue);
+
+	/**
+	 * Records the payout made, replacing its marker.
+	 */
+	void save(Integer orderItemId, boolean isReissue, PayPalCustomerPaymentDetails paymentDetails);
+}
@@ -0,0 +1,30 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * A payout for the order item was attempted but it isn't known whether PayPal made it, for
+ * example because the call timed out. It isn't attempted again before it is reconciled, see
+ * {@link IdempotentPayPalAdaptivePaymentFacade#reconciled}.
+ */
+public class PayPalPaymentOutcomeUnknownException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Integer orderItemId;
+
+	private final boolean reissue;
+
+	public PayPalPaymentOutcomeUnknownException(Integer orderItemId, boolean reissue, Throwable cause) {
+		super("Outcome of the payout for order item " + orderItemId + (reissue ? " (reissue)" : "")
+				+ " is unknown, reconcile it before paying again", cause);
+		this.orderItemId = orderItemId;
+		this.reissue = reissue;
+	}
+
+	public Integer getOrderItemId() {
+		return orderItemId;
+	}
+
+	public boolean isReissue() {
+		return reissue;
+	}
+}
@@ -0,0 +1,219 @@
+package com.usell.platform.payments.paypal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of payment status updates, split into numbered segment files.
+ * <p>
+ * {@link #append} writes a record, {@link #sync} makes it durable. Callers syncing at the
+ * same time share one <code>force</code>, the first one in syncs everything written so far.
+ * {@link #rotate} starts a new segment, and once the updates of the older segments are
+ * stored elsewhere {@link #deleteUpTo} removes them. Each record carries its length and a
+ * CRC32, a record torn by a crash ends the recovery of its segment.
+ */
+class PayPalPaymentStatusJournal implements Closeable {
+
+	private static final String PREFIX = "status-";
+
+	private static final String SUFFIX = ".journal";
+
+	private final Path directory;
+
+	private final Object forceLock = new Object();
+
+	private FileChannel segment;
+
+	private long segmentNumber;
+
+	private long written;
+
+	private long forced;
+
+	PayPalPaymentStatusJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Reads the updates of the segments left by an earlier process, oldest first, and opens
+	 * a new segment after them. Must be called once before {@link #append}.
+	 */
+	synchronized List<PayPalPaymentStatusUpdate> recover() throws IOException {
+		List<PayPalPaymentStatusUpdate> updates = new ArrayList<PayPalPaymentStatusUpdate>();
+		long last = 0;
+		for (long number : segmentNumbers()) {
+			readSegment(segmentFile(number), updates);
+			last = number;
+		}
+		openSegment(last + 1);
+		return updates;
+	}
+
+	/**
+	 * @return the position to pass to {@link #sync}
+	 */
+	synchronized long append(PayPalPaymentStatusUpdate update) throws IOException {
+		byte[][] strings = {
+				bytes(update.getPaymentExecStatus()), bytes(update.getTransactionId()), bytes(update.getTransactionStatus()),
+				bytes(update.getSenderTransactionId()), bytes(update.getSenderTransactionStatus())};
+		int length = 4 + 1;
+		for (byte[] string : strings) {
+			length += 4 + (string == null ? 0 : string.length);
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(8 + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put((byte) (update.getOrderItemId() == null ? 0 : 1));
+		record.putInt(update.getOrderItemId() == null ? 0 : update.getOrderItemId().intValue());
+		for (byte[] string : strings) {
+			record.putInt(string == null ? -1 : string.length);
+			if (string != null) {
+				record.put(string);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		while (record.hasRemaining()) {
+			segment.write(record);
+		}
+		return ++written;
+	}
+
+	/**
+	 * Returns once the record at <code>position</code> is on disk.
+	 */
+	void sync(long position) throws IOException {
+		synchronized (forceLock) {
+			if (forced >= position) {
+				return;
+			}
+			long target;
+			FileChannel current;
+			synchronized (this) {
+				target = written;
+				current = segment;
+			}
+			// rotate() takes forceLock too, so the segment stays open, and appends go on meanwhile
+			current.force(false);
+			forced = target;
+		}
+	}
+
+	/**
+	 * Syncs and closes the current segment and opens the next one.
+	 *
+	 * @return the number of the closed segment
+	 */
+	long rotate() throws IOException {
+		synchronized (forceLock) {
+			synchronized (this) {
+				segment.force(false);
+				segment.close();
+				forced = written;
+				long closed = segmentNumber;
+				openSegment(segmentNumber + 1);
+				return closed;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the closed segments up to and including <code>number</code>.
+	 */
+	void deleteUpTo(long number) throws IOException {
+		for (long segment : segmentNumbers()) {
+			if (segment <= number && segment != currentSegmentNumber()) {
+				Files.deleteIfExists(segmentFile(segment));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (forceLock) {
+			synchronized (this) {
+				if (segment != null) {
+					segment.force(false);
+					segment.close();
+				}
+			}
+		}
+	}
+
+	private synchronized long currentSegmentNumber() {
+		return segmentNumber;
+	}
+
+	private void openSegment(long number) throws IOException {
+		segment = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		segmentNumber = number;
+	}
+
+	private List<Long> segmentNumbers() throws IOException {
+		List<Long> numbers = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					numbers.add(Long.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private Path segmentFile(long number) {
+		return directory.resolve(String.format("%s%020d%s", PREFIX, number, SUFFIX));
+	}
+
+	private static void readSegment(Path file, List<PayPalPaymentStatusUpdate> updates) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+		while (data.remaining() >= 8) {
+			int length = data.getInt();
+			int checksum = data.getInt();
+			if (length < 5 || length > data.remaining()) {
+				return;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), data.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				return;
+			}
+			boolean hasOrderItemId = data.get() != 0;
+			int orderItemId = data.getInt();
+			String[] strings = new String[5];
+			for (int i = 0; i < strings.length; i++) {
+				int stringLength = data.getInt();
+				if (stringLength >= 0) {
+					strings[i] = new String(data.array(), data.position(), stringLength, StandardCharsets.UTF_8);
+					data.position(data.position() + stringLength);
+				}
+			}
+			updates.add(new PayPalPaymentStatusUpdate(strings[0], strings[1], strings[2], strings[3], strings[4],
+					hasOrderItemId ? Integer.valueOf(orderItemId) : null));
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+}
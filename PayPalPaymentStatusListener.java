@@ -0,0 +1,9 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Told about each payment status update {@link NotifyingPayPalAdaptivePaymentFacade} passed on.
+ */
+public interface PayPalPaymentStatusListener {
+
+	void statusUpdated(PayPalPaymentStatusUpdate update);
+}
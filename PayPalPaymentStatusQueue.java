@@ -0,0 +1,197 @@
+package com.usell.platform.payments.paypal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue of payment status updates. {@link #submit} returns once the update is
+ * in the {@link PayPalPaymentStatusJournal} on disk, the updates reach the
+ * {@link PayPalPaymentStatusWriter} later in batches.
+ * <p>
+ * Pending updates are coalesced per order item, the latest one wins. That is what writing
+ * them one by one would leave too: an update carries the whole status of the payment, the
+ * execution status and both transactions, and each write replaces the previous one. Updates
+ * without an order item id are never coalesced, they are written as they came. A batch lists
+ * the updates in the order of their latest transition. A batch is written once
+ * <code>maxBatchSize</code> updates are pending, and every <code>flushIntervalMillis</code>
+ * otherwise. Journal segments are deleted only after their batch was written, so after a
+ * crash the updates not yet written are read back from the journal and written first.
+ */
+public class PayPalPaymentStatusQueue implements Closeable {
+
+	private final PayPalPaymentStatusWriter writer;
+
+	private final PayPalPaymentStatusJournal journal;
+
+	private final int maxBatchSize;
+
+	private final ScheduledExecutorService flusher;
+
+	private final Object flushLock = new Object();
+
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	/**
+	 * By order item id, or a key of its own for an update without one. Guarded by this,
+	 * together with the journal segment the updates were appended to.
+	 */
+	private LinkedHashMap<Object, PayPalPaymentStatusUpdate> pending = new LinkedHashMap<Object, PayPalPaymentStatusUpdate>();
+
+	private final AtomicLong submitted = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	private volatile RuntimeException lastFlushFailure;
+
+	public PayPalPaymentStatusQueue(PayPalPaymentStatusWriter writer, File directory, int maxBatchSize,
+			long flushIntervalMillis) throws IOException {
+		this.writer = writer;
+		this.journal = new PayPalPaymentStatusJournal(directory.toPath());
+		this.maxBatchSize = maxBatchSize;
+		for (PayPalPaymentStatusUpdate update : journal.recover()) {
+			enqueue(update);
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "paypal-status-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, 0, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues an update. Returns once it is durable.
+	 */
+	public void submit(PayPalPaymentStatusUpdate update) throws IOException {
+		long position;
+		int size;
+		synchronized (this) {
+			position = journal.append(update);
+			enqueue(update);
+			size = pending.size();
+		}
+		journal.sync(position);
+		submitted.incrementAndGet();
+
+		if (size >= maxBatchSize && flushRequested.compareAndSet(false, true)) {
+			flusher.execute(this::flushQuietly);
+		}
+	}
+
+	/**
+	 * Writes the pending updates now.
+	 *
+	 * @throws RuntimeException of the writer, the updates stay pending then
+	 */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			flushRequested.set(false);
+			LinkedHashMap<Object, PayPalPaymentStatusUpdate> batch;
+			long segment;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new LinkedHashMap<Object, PayPalPaymentStatusUpdate>();
+				segment = journal.rotate();
+			}
+
+			try {
+				writer.writeStatusUpdates(new ArrayList<PayPalPaymentStatusUpdate>(batch.values()));
+			} catch (RuntimeException e) {
+				requeue(batch);
+				throw e;
+			}
+			written.addAndGet(batch.size());
+			journal.deleteUpTo(segment);
+		}
+	}
+
+	/**
+	 * Moves the update behind all pending ones, replacing the pending update of its order item.
+	 */
+	private void enqueue(PayPalPaymentStatusUpdate update) {
+		Object key = update.getOrderItemId() == null ? new Object() : update.getOrderItemId();
+		pending.remove(key);
+		pending.put(key, update);
+	}
+
+	/**
+	 * Puts a batch that failed back in front of the updates that came in since. An order
+	 * item updated meanwhile keeps the newer update.
+	 */
+	private synchronized void requeue(LinkedHashMap<Object, PayPalPaymentStatusUpdate> batch) {
+		for (Object key : pending.keySet()) {
+			batch.remove(key);
+		}
+		batch.putAll(pending);
+		pending = batch;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			failedFlushes.incrementAndGet();
+			lastFlushFailure = e;
+		} catch (IOException e) {
+			failedFlushes.incrementAndGet();
+			lastFlushFailure = new IllegalStateException("Could not rotate the status journal", e);
+		}
+	}
+
+	/**
+	 * Stops the scheduled flushes and writes what is pending. Updates that can't be written
+	 * stay in the journal for the next start.
+	 */
+	@Override
+	public void close() throws IOException {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			flush();
+		} finally {
+			journal.close();
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return updates that reached the writer, the difference to {@link #getSubmittedCount}
+	 * is what was pending or coalesced away
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushes.get();
+	}
+
+	public RuntimeException getLastFlushFailure() {
+		return lastFlushFailure;
+	}
+}
@@ -0,0 +1,53 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * The arguments of one {@link PayPalAdaptivePaymentFacade#updatePaypalAdaptivePaymentStatus} call.
+ */
+public class PayPalPaymentStatusUpdate {
+
+	private final String paymentExecStatus;
+
+	private final String transactionId;
+
+	private final String transactionStatus;
+
+	private final String senderTransactionId;
+
+	private final String senderTransactionStatus;
+
+	private final Integer orderItemId;
+
+	public PayPalPaymentStatusUpdate(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		this.paymentExecStatus = paymentExecStatus;
+		this.transactionId = transactionId;
+		this.transactionStatus = transactionStatus;
+		this.senderTransactionId = senderTransactionId;
+		this.senderTransactionStatus = senderTransactionStatus;
+		this.orderItemId = orderItemId;
+	}
+
+	public String getPaymentExecStatus() {
+		return paymentExecStatus;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	public String getTransactionStatus() {
+		return transactionStatus;
+	}
+
+	public String getSenderTransactionId() {
+		return senderTransactionId;
+	}
+
+	public String getSenderTransactionStatus() {
+		return senderTransactionStatus;
+	}
+
+	public Integer getOrderItemId() {
+		return orderItemId;
+	}
+}
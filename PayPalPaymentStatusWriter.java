@@ -0,0 +1,12 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.List;
+
+/**
+ * Stores a batch of payment status updates, at most one per order item, for example
+ * with a single batched statement. A batch that throws is retried with the next flush.
+ */
+public interface PayPalPaymentStatusWriter {
+
+	void writeStatusUpdates(List<PayPalPaymentStatusUpdate> updates);
+}
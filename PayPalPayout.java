@@ -0,0 +1,60 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * One order item to pay out, with the arguments of {@link PayPalAdaptivePaymentFacade#pay}.
+ */
+public class PayPalPayout {
+
+	private final String senderEmail;
+
+	private final String recieverEmail;
+
+	private final String amount;
+
+	private final String preApprovalKey;
+
+	private final String restrictedPreApprovalKey;
+
+	private final Integer orderItemId;
+
+	private final Boolean isReissue;
+
+	public PayPalPayout(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) {
+		this.senderEmail = senderEmail;
+		this.recieverEmail = recieverEmail;
+		this.amount = amount;
+		this.preApprovalKey = preApprovalKey;
+		this.restrictedPreApprovalKey = restrictedPreApprovalKey;
+		this.orderItemId = orderItemId;
+		this.isReissue = isReissue;
+	}
+
+	public String getSenderEmail() {
+		return senderEmail;
+	}
+
+	public String getRecieverEmail() {
+		return recieverEmail;
+	}
+
+	public String getAmount() {
+		return amount;
+	}
+
+	public String getPreApprovalKey() {
+		return preApprovalKey;
+	}
+
+	public String getRestrictedPreApprovalKey() {
+		return restrictedPreApprovalKey;
+	}
+
+	public Integer getOrderItemId() {
+		return orderItemId;
+	}
+
+	public Boolean getIsReissue() {
+		return isReissue;
+	}
+}
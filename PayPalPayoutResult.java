@@ -0,0 +1,51 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Outcome of one {@link PayPalPayout} of a batch.
+ */
+public class PayPalPayoutResult {
+
+	public enum Status {
+		PAID,
+		/** The sender has to approve payments first, see {@link NeedsPreApprovalException}. */
+		NEEDS_PRE_APPROVAL,
+		FAILED
+	}
+
+	private final PayPalPayout payout;
+
+	private final Status status;
+
+	private final PayPalCustomerPaymentDetails paymentDetails;
+
+	private final Throwable failure;
+
+	PayPalPayoutResult(PayPalPayout payout, Status status, PayPalCustomerPaymentDetails paymentDetails, Throwable failure) {
+		this.payout = payout;
+		this.status = status;
+		this.paymentDetails = paymentDetails;
+		this.failure = failure;
+	}
+
+	public PayPalPayout getPayout() {
+		return payout;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the details PayPal returned, null unless {@link Status#PAID}
+	 */
+	public PayPalCustomerPaymentDetails getPaymentDetails() {
+		return paymentDetails;
+	}
+
+	/**
+	 * @return why the payout wasn't made, null if it was
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+}
@@ -0,0 +1,14 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Told about the calls {@link ResilientPayPalAdaptivePaymentFacade} refuses and the state
+ * changes of its circuit breaker. Both methods do nothing by default.
+ */
+public interface PayPalResilienceListener {
+
+	default void callRejected(PayPalOperation operation, PayPalCallRejectedException.Reason reason) {
+	}
+
+	default void circuitStateChanged(PayPalCircuitBreaker.State from, PayPalCircuitBreaker.State to) {
+	}
+}
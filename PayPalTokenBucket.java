@@ -0,0 +1,54 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Token bucket of <code>capacity</code> tokens refilled at <code>permitsPerSecond</code>.
+ * A call takes one token or is refused, it never waits.
+ */
+class PayPalTokenBucket {
+
+	private final double capacity;
+
+	private final double tokensPerNano;
+
+	private double tokens;
+
+	private long refilledAt;
+
+	PayPalTokenBucket(double permitsPerSecond, int capacity) {
+		this.capacity = capacity;
+		this.tokensPerNano = permitsPerSecond / 1e9;
+		this.tokens = capacity;
+		this.refilledAt = System.nanoTime();
+	}
+
+	synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * Puts back a token taken for a call that was then refused elsewhere.
+	 */
+	synchronized void refund() {
+		refill();
+		tokens = Math.min(capacity, tokens + 1);
+	}
+
+	/**
+	 * @return the share of the bucket in use, 0 when full and 1 when empty
+	 */
+	synchronized double getSaturation() {
+		refill();
+		return 1 - tokens / capacity;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+	}
+}
@@ -0,0 +1,20 @@
+package com.usell.platform.payments.paypal;
+
+/**
+ * Hook for an external tracer, called around every call of
+ * {@link InstrumentedPayPalAdaptivePaymentFacade} on the calling thread. Runtime exceptions
+ * it throws are swallowed, they never change the outcome of the call.
+ */
+public interface PayPalTracer {
+
+	/**
+	 * @param orderItemId null for <code>preapproval</code>
+	 * @return the span, handed back to {@link #spanEnded}
+	 */
+	Object spanStarted(PayPalOperation operation, Integer orderItemId);
+
+	/**
+	 * @param failure the exception of the call, null on {@link PayPalOutcome#SUCCESS}
+	 */
+	void spanEnded(Object span, PayPalOutcome outcome, Throwable failure, long nanos);
+}
@@ -0,0 +1,112 @@
+package com.usell.platform.payments.paypal;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Fills in the pre-approval keys of <code>pay</code> from a {@link PreApprovalKeyCache}, so a
+ * sender with a valid key is paid without asking PayPal for one or failing first.
+ * <p>
+ * Keys passed by the caller are used as is. Without keys, the sender's unrestricted key is
+ * taken from the cache, or else the restricted one, if its window covers now and its budget
+ * covers the amount. Keys returned by {@link #preapproval} are added to the cache pending,
+ * and used once {@link #preapprovalApproved} confirms the sender approved them. A key PayPal
+ * answers with {@link NeedsPreApprovalException} is evicted.
+ * <p>
+ * The reserved budget is given back only when the payment surely didn't happen: PayPal
+ * refused the key, or the call was {@link PayPalCallRejectedException rejected} before it was
+ * made. After any other failure, a timeout for one, the payment may have gone through and
+ * the amount stays reserved; reconciliation gives it back with
+ * {@link PreApprovalKeyCache#release} if PayPal has no such payment.
+ */
+public class PreApprovalCachingPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final PreApprovalKeyCache preApprovalKeyCache;
+
+	public PreApprovalCachingPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade,
+			PreApprovalKeyCache preApprovalKeyCache) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.preApprovalKeyCache = preApprovalKeyCache;
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+
+		BigDecimal payment = parse(amount);
+		long now = System.currentTimeMillis();
+		String cachedKey = null;
+		String cachedRestrictedKey = null;
+		if (payment != null && preApprovalKey == null && restrictedPreApprovalKey == null) {
+			cachedKey = preApprovalKeyCache.reserve(senderEmail, false, payment, now);
+			if (cachedKey == null) {
+				cachedRestrictedKey = preApprovalKeyCache.reserve(senderEmail, true, payment, now);
+			}
+		}
+
+		try {
+			return payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount,
+					cachedKey == null ? preApprovalKey : cachedKey,
+					cachedRestrictedKey == null ? restrictedPreApprovalKey : cachedRestrictedKey,
+					orderItemId, isReissue);
+		} catch (NeedsPreApprovalException e) {
+			if (cachedKey != null) {
+				preApprovalKeyCache.evict(senderEmail, false, cachedKey);
+			}
+			if (cachedRestrictedKey != null) {
+				preApprovalKeyCache.evict(senderEmail, true, cachedRestrictedKey);
+			}
+			throw e;
+		} catch (PayPalCallRejectedException e) {
+			if (cachedKey != null) {
+				preApprovalKeyCache.release(senderEmail, false, cachedKey, payment);
+			}
+			if (cachedRestrictedKey != null) {
+				preApprovalKeyCache.release(senderEmail, true, cachedRestrictedKey, payment);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		PayPalPreApprovalResponse response = payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate,
+				maxTotalPayment, cancelUrl, returnUrl, isRestricted);
+		if (response != null && response.getPreapprovalKey() != null) {
+			preApprovalKeyCache.registerPending(senderEmail, isRestricted, response.getPreapprovalKey(), startDate, endDate,
+					maxTotalPayment);
+		}
+		return response;
+	}
+
+	/**
+	 * Called once the sender approved a key issued by {@link #preapproval}, from its return page
+	 * or PayPal's notification. Payments use the key from then on.
+	 *
+	 * @return false if the key wasn't pending
+	 */
+	public boolean preapprovalApproved(String preApprovalKey) {
+		return preApprovalKeyCache.approve(preApprovalKey);
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId, transactionStatus,
+				senderTransactionId, senderTransactionStatus, orderItemId);
+	}
+
+	private static BigDecimal parse(String amount) {
+		if (amount == null) {
+			return null;
+		}
+		try {
+			return new BigDecimal(amount.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
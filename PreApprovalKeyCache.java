@@ -0,0 +1,188 @@
+package com.usell.platform.payments.paypal;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The pre-approval key each sender holds, one restricted and one unrestricted, with the
+ * window it is valid in and how much of its <code>maxTotalPayment</code> is left.
+ * <p>
+ * {@link #reserve} takes an amount off the budget before paying, so concurrent payouts
+ * can't overspend a key, and {@link #release} gives it back if the payment didn't go
+ * through. A key is dropped once its window has ended or its budget is used up.
+ * <p>
+ * A key just issued by PayPal isn't usable before the sender approves it. It is kept
+ * {@link #registerPending pending} until {@link #approve} is called with it, from the
+ * pre-approval's return page or its IPN, and doesn't displace the key the sender holds meanwhile.
+ */
+public class PreApprovalKeyCache {
+
+	private final ConcurrentMap<String, PreApproval> preApprovals = new ConcurrentHashMap<String, PreApproval>();
+
+	/** Issued keys not approved yet, by pre-approval key. */
+	private final ConcurrentMap<String, PendingPreApproval> pending = new ConcurrentHashMap<String, PendingPreApproval>();
+
+	/**
+	 * Records a key, replacing the one the sender held of the same kind.
+	 *
+	 * @param maxTotalPayment null for a key without a limit
+	 */
+	public void register(String senderEmail, boolean isRestricted, String preApprovalKey, Date startDate, Date endDate,
+			Double maxTotalPayment) {
+		preApprovals.put(key(senderEmail, isRestricted), preApproval(preApprovalKey, startDate, endDate, maxTotalPayment));
+	}
+
+	/**
+	 * Records a key PayPal issued but the sender hasn't approved yet. It is used once
+	 * {@link #approve approved}.
+	 *
+	 * @param maxTotalPayment null for a key without a limit
+	 */
+	public void registerPending(String senderEmail, boolean isRestricted, String preApprovalKey, Date startDate, Date endDate,
+			Double maxTotalPayment) {
+		pending.put(preApprovalKey, new PendingPreApproval(key(senderEmail, isRestricted),
+				preApproval(preApprovalKey, startDate, endDate, maxTotalPayment)));
+	}
+
+	/**
+	 * Makes a pending key the one its sender holds, replacing the one of the same kind.
+	 *
+	 * @return false if the key isn't pending, it was approved already or never registered
+	 */
+	public boolean approve(String preApprovalKey) {
+		PendingPreApproval approved = pending.remove(preApprovalKey);
+		if (approved == null) {
+			return false;
+		}
+		preApprovals.put(approved.key, approved.preApproval);
+		return true;
+	}
+
+	/**
+	 * Takes <code>amount</code> off the budget of the sender's key.
+	 *
+	 * @return the key, or null if the sender holds none that is valid at <code>now</code>
+	 * with enough budget left
+	 */
+	public String reserve(String senderEmail, boolean isRestricted, BigDecimal amount, long now) {
+		String key = key(senderEmail, isRestricted);
+		PreApproval preApproval = preApprovals.get(key);
+		if (preApproval == null) {
+			return null;
+		}
+		if (now >= preApproval.endMillis || preApproval.isExhausted()) {
+			preApprovals.remove(key, preApproval);
+			return null;
+		}
+		if (now < preApproval.startMillis || !preApproval.reserve(amount)) {
+			return null;
+		}
+		return preApproval.preApprovalKey;
+	}
+
+	/**
+	 * Gives back an amount reserved with {@link #reserve} for a payment that failed.
+	 */
+	public void release(String senderEmail, boolean isRestricted, String preApprovalKey, BigDecimal amount) {
+		PreApproval preApproval = preApprovals.get(key(senderEmail, isRestricted));
+		if (preApproval != null && preApproval.preApprovalKey.equals(preApprovalKey)) {
+			preApproval.release(amount);
+		}
+	}
+
+	/**
+	 * Drops a key PayPal no longer accepts.
+	 */
+	public void evict(String senderEmail, boolean isRestricted, String preApprovalKey) {
+		String key = key(senderEmail, isRestricted);
+		PreApproval preApproval = preApprovals.get(key);
+		if (preApproval != null && preApproval.preApprovalKey.equals(preApprovalKey)) {
+			preApprovals.remove(key, preApproval);
+		}
+	}
+
+	/**
+	 * Drops the keys whose window has ended or whose budget is used up.
+	 */
+	public void evictExpired(long now) {
+		preApprovals.values().removeIf(preApproval -> now >= preApproval.endMillis || preApproval.isExhausted());
+		pending.values().removeIf(issued -> now >= issued.preApproval.endMillis);
+	}
+
+	/**
+	 * @return the keys senders hold, pending ones not included
+	 */
+	public int size() {
+		return preApprovals.size();
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	private static String key(String senderEmail, boolean isRestricted) {
+		return (isRestricted ? "R:" : "U:") + senderEmail;
+	}
+
+	private static PreApproval preApproval(String preApprovalKey, Date startDate, Date endDate, Double maxTotalPayment) {
+		return new PreApproval(preApprovalKey,
+				startDate == null ? Long.MIN_VALUE : startDate.getTime(),
+				endDate == null ? Long.MAX_VALUE : endDate.getTime(),
+				maxTotalPayment == null ? null : BigDecimal.valueOf(maxTotalPayment.doubleValue()));
+	}
+
+	private static class PendingPreApproval {
+
+		/** Sender and kind, as in {@link #preApprovals}. */
+		private final String key;
+
+		private final PreApproval preApproval;
+
+		PendingPreApproval(String key, PreApproval preApproval) {
+			this.key = key;
+			this.preApproval = preApproval;
+		}
+	}
+
+	private static class PreApproval {
+
+		private final String preApprovalKey;
+
+		private final long startMillis;
+
+		private final long endMillis;
+
+		/** Null if the key has no limit. */
+		private BigDecimal remaining;
+
+		PreApproval(String preApprovalKey, long startMillis, long endMillis, BigDecimal remaining) {
+			this.preApprovalKey = preApprovalKey;
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+			this.remaining = remaining;
+		}
+
+		synchronized boolean reserve(BigDecimal amount) {
+			if (remaining == null) {
+				return true;
+			}
+			if (remaining.compareTo(amount) < 0) {
+				return false;
+			}
+			remaining = remaining.subtract(amount);
+			return true;
+		}
+
+		synchronized void release(BigDecimal amount) {
+			if (remaining != null) {
+				remaining = remaining.add(amount);
+			}
+		}
+
+		synchronized boolean isExhausted() {
+			return remaining != null && remaining.signum() <= 0;
+		}
+	}
+}
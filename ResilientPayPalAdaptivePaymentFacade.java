@@ -0,0 +1,169 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Guards the PayPal calls <code>pay</code> and <code>preapproval</code> so that a slow or
+ * throttling PayPal fails calls fast instead of tying up the callers' threads.
+ * <p>
+ * Each call passes, in this order:
+ * <ul>
+ * <li>the token bucket of its operation, if one is set with {@link #setRateLimit}</li>
+ * <li>a bulkhead of <code>maxConcurrentCalls</code> calls in flight over both operations</li>
+ * <li>a {@link PayPalCircuitBreaker} shared by both operations</li>
+ * </ul>
+ * A call refused by any of them throws {@link PayPalCallRejectedException} right away.
+ * Runtime exceptions of the wrapped facade count as failures for the breaker.
+ * {@link NeedsPreApprovalException} is an answer from PayPal and counts as a success.
+ * <code>updatePaypalAdaptivePaymentStatus</code> only stores a status and is passed through.
+ */
+public class ResilientPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final int maxConcurrentCalls;
+
+	private final Semaphore bulkhead;
+
+	private final Map<PayPalOperation, PayPalTokenBucket> rateLimits = new EnumMap<PayPalOperation, PayPalTokenBucket>(PayPalOperation.class);
+
+	private PayPalCircuitBreaker circuitBreaker;
+
+	private PayPalResilienceListener listener = new PayPalResilienceListener() {
+	};
+
+	public ResilientPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade, int maxConcurrentCalls) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.bulkhead = new Semaphore(maxConcurrentCalls);
+		setCircuitBreaker(100, 20, 0.5, 30000, 3);
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+		admit(PayPalOperation.PAY);
+		try {
+			PayPalCustomerPaymentDetails details = payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount,
+					preApprovalKey, restrictedPreApprovalKey, orderItemId, isReissue);
+			circuitBreaker.recordSuccess();
+			return details;
+		} catch (NeedsPreApprovalException e) {
+			circuitBreaker.recordSuccess();
+			throw e;
+		} catch (RuntimeException | Error e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		} finally {
+			bulkhead.release();
+		}
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		admit(PayPalOperation.PREAPPROVAL);
+		try {
+			PayPalPreApprovalResponse response = payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate,
+					maxTotalPayment, cancelUrl, returnUrl, isRestricted);
+			circuitBreaker.recordSuccess();
+			return response;
+		} catch (RuntimeException | Error e) {
+			circuitBreaker.recordFailure();
+			throw e;
+		} finally {
+			bulkhead.release();
+		}
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(paymentExecStatus, transactionId, transactionStatus,
+				senderTransactionId, senderTransactionStatus, orderItemId);
+	}
+
+	/**
+	 * Takes a token, a bulkhead permit and a breaker permit, or none of them.
+	 */
+	private void admit(PayPalOperation operation) {
+		PayPalTokenBucket rateLimit = rateLimits.get(operation);
+		if (rateLimit != null && !rateLimit.tryAcquire()) {
+			throw reject(operation, PayPalCallRejectedException.Reason.RATE_LIMITED);
+		}
+		if (!bulkhead.tryAcquire()) {
+			refund(rateLimit);
+			throw reject(operation, PayPalCallRejectedException.Reason.BULKHEAD_FULL);
+		}
+		if (!circuitBreaker.tryAcquire()) {
+			bulkhead.release();
+			refund(rateLimit);
+			throw reject(operation, PayPalCallRejectedException.Reason.CIRCUIT_OPEN);
+		}
+	}
+
+	/**
+	 * A call refused by the bulkhead or the breaker never reaches PayPal, so it mustn't use up
+	 * the rate limit. Otherwise calls refused while the breaker is open drain the bucket.
+	 */
+	private static void refund(PayPalTokenBucket rateLimit) {
+		if (rateLimit != null) {
+			rateLimit.refund();
+		}
+	}
+
+	private PayPalCallRejectedException reject(PayPalOperation operation, PayPalCallRejectedException.Reason reason) {
+		listener.callRejected(operation, reason);
+		return new PayPalCallRejectedException(operation, reason);
+	}
+
+	/**
+	 * Limits an operation to <code>permitsPerSecond</code> calls, with bursts of up to
+	 * <code>burst</code> calls.
+	 */
+	public void setRateLimit(PayPalOperation operation, double permitsPerSecond, int burst) {
+		rateLimits.put(operation, new PayPalTokenBucket(permitsPerSecond, burst));
+	}
+
+	/**
+	 * Replaces the circuit breaker, see {@link PayPalCircuitBreaker} for the parameters.
+	 * The default opens at half of the last 100 calls failing, with at least 20 calls
+	 * recorded, for 30 seconds, and closes after 3 successful probes.
+	 */
+	public void setCircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openMillis,
+			int halfOpenProbes) {
+		circuitBreaker = new PayPalCircuitBreaker(windowSize, minimumCalls, failureRateThreshold, openMillis, halfOpenProbes,
+				(from, to) -> listener.circuitStateChanged(from, to));
+	}
+
+	public void setListener(PayPalResilienceListener listener) {
+		this.listener = listener;
+	}
+
+	public PayPalCircuitBreaker.State getCircuitState() {
+		return circuitBreaker.getState();
+	}
+
+	public double getFailureRate() {
+		return circuitBreaker.getFailureRate();
+	}
+
+	/**
+	 * @return the share of the operation's token bucket in use, 0 without a rate limit
+	 */
+	public double getRateLimitSaturation(PayPalOperation operation) {
+		PayPalTokenBucket rateLimit = rateLimits.get(operation);
+		return rateLimit == null ? 0 : rateLimit.getSaturation();
+	}
+
+	public int getConcurrentCalls() {
+		return maxConcurrentCalls - bulkhead.availablePermits();
+	}
+
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+}
@@ -0,0 +1,36 @@
+package com.usell.platform.web.billing;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Writes the same sheets as {@link InvoiceExcelServiceImpl} as an XLSX file, keeping only
+ * the last <code>rowAccessWindowSize</code> rows of each sheet in memory. Older rows are
+ * flushed to a temporary file and copied to the output stream when the workbook is written.
+ */
+public class StreamingInvoiceExcelServiceImpl extends InvoiceExcelServiceImpl {
+
+	private int rowAccessWindowSize = 100;
+
+	private boolean compressTempFiles = true;
+
+	@Override
+	protected Workbook createWorkbook() {
+		SXSSFWorkbook workbook = new SXSSFWorkbook(rowAccessWindowSize);
+		workbook.setCompressTempFiles(compressTempFiles);
+		return workbook;
+	}
+
+	@Override
+	protected void disposeWorkbook(Workbook workbook) {
+		((SXSSFWorkbook) workbook).dispose();
+	}
+
+	public void setRowAccessWindowSize(int rowAccessWindowSize) {
+		this.rowAccessWindowSize = rowAccessWindowSize;
+	}
+
+	public void setCompressTempFiles(boolean compressTempFiles) {
+		this.compressTempFiles = compressTempFiles;
+	}
+}
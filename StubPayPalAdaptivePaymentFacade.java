@@ -0,0 +1,137 @@
+package com.usell.platform.payments.paypal;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for PayPal, for exercising payout code offline. Every call sleeps for
+ * a random latency between <code>minLatencyMillis</code> and <code>maxLatencyMillis</code>
+ * and fails with an {@link IllegalStateException} at <code>failureRate</code>, or always
+ * while <code>unavailable</code> is set.
+ * <p>
+ * <code>pay</code> without a pre-approval key throws {@link NeedsPreApprovalException}, as
+ * PayPal does for a sender that hasn't approved payments. <code>preapproval</code> hands out
+ * keys <code>STUB-PA-1</code>, <code>STUB-PA-2</code> and so on. The call counts and the highest
+ * number of concurrent calls seen can be read back.
+ */
+public class StubPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private long minLatencyMillis;
+
+	private long maxLatencyMillis;
+
+	private double failureRate;
+
+	private volatile boolean unavailable;
+
+	private final AtomicLong payCalls = new AtomicLong();
+
+	private final AtomicLong preapprovalCalls = new AtomicLong();
+
+	private final AtomicLong statusUpdates = new AtomicLong();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	private final AtomicLong preapprovalKeys = new AtomicLong();
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+		payCalls.incrementAndGet();
+		enter();
+		try {
+			if (preApprovalKey == null && restrictedPreApprovalKey == null) {
+				throw new NeedsPreApprovalException("No pre-approval for " + senderEmail);
+			}
+			return new PayPalCustomerPaymentDetails();
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		preapprovalCalls.incrementAndGet();
+		enter();
+		try {
+			PayPalPreApprovalResponse response = new PayPalPreApprovalResponse();
+			response.setPreapprovalKey("STUB-PA-" + preapprovalKeys.incrementAndGet());
+			return response;
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		statusUpdates.incrementAndGet();
+		enter();
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Counts the call as in flight, then waits out the latency and rolls for a failure.
+	 * The caller decrements <code>inFlight</code> when done.
+	 */
+	private void enter() {
+		int current = inFlight.incrementAndGet();
+		int max = maxInFlight.get();
+		while (current > max && !maxInFlight.compareAndSet(max, current)) {
+			max = maxInFlight.get();
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long latency = maxLatencyMillis > minLatencyMillis ? random.nextLong(minLatencyMillis, maxLatencyMillis + 1) : minLatencyMillis;
+		try {
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+		} catch (InterruptedException e) {
+			inFlight.decrementAndGet();
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+		if (unavailable || failureRate > 0 && random.nextDouble() < failureRate) {
+			inFlight.decrementAndGet();
+			throw new IllegalStateException("Simulated PayPal failure");
+		}
+	}
+
+	public void setLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+		this.minLatencyMillis = minLatencyMillis;
+		this.maxLatencyMillis = maxLatencyMillis;
+	}
+
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * Fails every call, after its latency, until cleared. Simulates a PayPal outage.
+	 */
+	public void setUnavailable(boolean unavailable) {
+		this.unavailable = unavailable;
+	}
+
+	public long getPayCalls() {
+		return payCalls.get();
+	}
+
+	public long getPreapprovalCalls() {
+		return preapprovalCalls.get();
+	}
+
+	public long getStatusUpdates() {
+		return statusUpdates.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+}
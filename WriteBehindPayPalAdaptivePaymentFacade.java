@@ -0,0 +1,64 @@
+package com.usell.platform.payments.paypal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
+
+/**
+ * Sends <code>updatePaypalAdaptivePaymentStatus</code> through a {@link PayPalPaymentStatusQueue}
+ * instead of writing each IPN callback right away. The call returns once the update is
+ * journaled, so the callback can be acknowledged, and fails with an {@link UncheckedIOException}
+ * if it couldn't be, so PayPal sends it again. <code>pay</code> and <code>preapproval</code> go
+ * straight to the wrapped facade.
+ */
+public class WriteBehindPayPalAdaptivePaymentFacade implements PayPalAdaptivePaymentFacade {
+
+	private final PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade;
+
+	private final PayPalPaymentStatusQueue statusQueue;
+
+	public WriteBehindPayPalAdaptivePaymentFacade(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade,
+			PayPalPaymentStatusQueue statusQueue) {
+		this.payPalAdaptivePaymentFacade = payPalAdaptivePaymentFacade;
+		this.statusQueue = statusQueue;
+	}
+
+	@Override
+	public PayPalCustomerPaymentDetails pay(String senderEmail, String recieverEmail, String amount, String preApprovalKey,
+			String restrictedPreApprovalKey, Integer orderItemId, Boolean isReissue) throws NeedsPreApprovalException {
+		return payPalAdaptivePaymentFacade.pay(senderEmail, recieverEmail, amount, preApprovalKey, restrictedPreApprovalKey,
+				orderItemId, isReissue);
+	}
+
+	@Override
+	public PayPalPreApprovalResponse preapproval(String senderEmail, Date startDate, Date endDate, Double maxTotalPayment,
+			String cancelUrl, String returnUrl, boolean isRestricted) {
+		return payPalAdaptivePaymentFacade.preapproval(senderEmail, startDate, endDate, maxTotalPayment, cancelUrl, returnUrl,
+				isRestricted);
+	}
+
+	@Override
+	public void updatePaypalAdaptivePaymentStatus(String paymentExecStatus, String transactionId, String transactionStatus,
+			String senderTransactionId, String senderTransactionStatus, Integer orderItemId) {
+		try {
+			statusQueue.submit(new PayPalPaymentStatusUpdate(paymentExecStatus, transactionId, transactionStatus,
+					senderTransactionId, senderTransactionStatus, orderItemId));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not journal the status of order item " + orderItemId, e);
+		}
+	}
+
+	/**
+	 * A writer that stores each update of a batch with the wrapped facade's own
+	 * <code>updatePaypalAdaptivePaymentStatus</code>, for a store without a batched write.
+	 */
+	public static PayPalPaymentStatusWriter writerFor(PayPalAdaptivePaymentFacade payPalAdaptivePaymentFacade) {
+		return updates -> {
+			for (PayPalPaymentStatusUpdate update : updates) {
+				payPalAdaptivePaymentFacade.updatePaypalAdaptivePaymentStatus(update.getPaymentExecStatus(),
+						update.getTransactionId(), update.getTransactionStatus(), update.getSenderTransactionId(),
+						update.getSenderTransactionStatus(), update.getOrderItemId());
+			}
+		};
+	}
+}
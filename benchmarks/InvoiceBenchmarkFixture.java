@@ -0,0 +1,273 @@
+package com.usell.platform.web.billing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.usell.platform.billing.Invoice;
+import com.usell.platform.billing.InvoiceCheckRequest;
+import com.usell.platform.billing.InvoiceLead;
+import com.usell.platform.billing.InvoiceLeadOrderItem;
+import com.usell.platform.domain.Buyer;
+import com.usell.platform.domain.InvoicePeriod;
+import com.usell.platform.domain.PostPayCustomerPayment;
+
+/**
+ * A synthetic invoice with the given number of leads, order items, post-pay payments,
+ * shipping kits and check requests, and a stub {@link InvoiceVoBuilder} that hands out
+ * value objects built up front. Benchmarks measure rendering, not the database or the
+ * VO builder. The data is generated from a fixed seed, so every run renders the same invoice.
+ */
+public class InvoiceBenchmarkFixture {
+
+	private static final String[] CATEGORIES = {"Phones", "Tablets", "Laptops", "Cameras", "Game Consoles"};
+
+	private static final String[] CONDITIONS = {"Like New", "Good", "Fair", "Broken"};
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final long PERIOD_START = 1420070400000L;
+
+	private final Random random = new Random(42);
+
+	private final Invoice invoice = new Invoice();
+
+	private final InvoicePeriod invoicePeriod = new InvoicePeriod();
+
+	private final Buyer buyer = new Buyer();
+
+	private final InvoiceVoBuilder invoiceVoBuilder;
+
+	public InvoiceBenchmarkFixture(int leads, int orderItemsPerLead, int postPayPayments, int shippingKits, int checkRequests) {
+		buyer.setName("Benchmark Partner");
+
+		List<InvoiceLead> invoiceLeads = new ArrayList<InvoiceLead>(leads);
+		List<InvoiceLeadVo> leadVos = new ArrayList<InvoiceLeadVo>(leads);
+		List<InvoiceLeadOrderItemVo> orderItemVos = new ArrayList<InvoiceLeadOrderItemVo>(leads * orderItemsPerLead);
+		for (int i = 0; i < leads; i++) {
+			InvoiceLead lead = new InvoiceLead();
+			List<InvoiceLeadOrderItem> orderItems = new ArrayList<InvoiceLeadOrderItem>(orderItemsPerLead);
+			for (int j = 0; j < orderItemsPerLead; j++) {
+				orderItems.add(new InvoiceLeadOrderItem());
+				orderItemVos.add(orderItemVo(i, j));
+			}
+			lead.setOrderItems(orderItems);
+			invoiceLeads.add(lead);
+			leadVos.add(leadVo(i));
+		}
+		invoice.setLeads(invoiceLeads);
+
+		List<PostPayCustomerPayment> payments = new ArrayList<PostPayCustomerPayment>(postPayPayments);
+		for (int i = 0; i < postPayPayments; i++) {
+			payments.add(payment(i));
+		}
+		invoice.setPostPayCustomerPayments(payments);
+
+		List<InvoiceCheckRequest> checks = new ArrayList<InvoiceCheckRequest>(checkRequests);
+		for (int i = 0; i < checkRequests; i++) {
+			checks.add(checkRequest(i));
+		}
+		invoice.setCheckRequests(checks);
+
+		//One in ten kits is a reship
+		List<InvoiceKitVo> sentKits = new ArrayList<InvoiceKitVo>(shippingKits);
+		List<InvoiceKitVo> resentKits = new ArrayList<InvoiceKitVo>(shippingKits / 10);
+		for (int i = 0; i < shippingKits; i++) {
+			(i % 10 == 9 ? resentKits : sentKits).add(kitVo(i));
+		}
+
+		invoiceVoBuilder = stubVoBuilder(summaryVo(postPayPayments, sentKits, checkRequests), leadVos,
+				orderItemVos, sentKits, resentKits);
+	}
+
+	public Invoice getInvoice() {
+		return invoice;
+	}
+
+	public InvoicePeriod getInvoicePeriod() {
+		return invoicePeriod;
+	}
+
+	public Buyer getBuyer() {
+		return buyer;
+	}
+
+	public InvoiceVoBuilder getInvoiceVoBuilder() {
+		return invoiceVoBuilder;
+	}
+
+	private static InvoiceVoBuilder stubVoBuilder(InvoiceSummaryVo summaryVo, List<InvoiceLeadVo> leadVos,
+			List<InvoiceLeadOrderItemVo> orderItemVos, List<InvoiceKitVo> sentKits, List<InvoiceKitVo> resentKits) {
+
+		final Map<String, Object> results = new HashMap<String, Object>();
+		results.put("buildInvoiceSummaryVo", summaryVo);
+		results.put("buildLeadVo", leadVos);
+		results.put("buildInvoiceLeadOrderItemVo", orderItemVos);
+		results.put("buildSentKitsVo", sentKits);
+		results.put("buildReshippedVo", resentKits);
+
+		return (InvoiceVoBuilder) Proxy.newProxyInstance(InvoiceVoBuilder.class.getClassLoader(),
+				new Class<?>[] {InvoiceVoBuilder.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (!results.containsKey(method.getName())) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+						return results.get(method.getName());
+					}
+				});
+	}
+
+	private InvoiceSummaryVo summaryVo(int postPayPayments, List<InvoiceKitVo> sentKits, int checkRequests) {
+		InvoiceSummaryVo summaryVo = new InvoiceSummaryVo();
+		summaryVo.setBuyer(buyer.getName());
+		summaryVo.setInvoiceNumber("INV-000042");
+		summaryVo.setInvoicePeriodStartDate("2015-01-01");
+		summaryVo.setInvoicePeriodEndDate("2015-01-31");
+		summaryVo.setInvoiceDate("2015-02-01");
+		summaryVo.setPostPayOrderCount(postPayPayments);
+		summaryVo.setTotalPostPayOrderCommission(postPayPayments * 12.5);
+		summaryVo.setTotalCheckCount(checkRequests);
+		summaryVo.setCheckChargePerUnit(1.5);
+		summaryVo.setTotalCheckAmountDue(checkRequests * 1.5);
+
+		List<String> days = new ArrayList<String>();
+		for (int day = 1; day <= 31; day++) {
+			days.add(String.format("2015-01-%02d", day));
+		}
+		Map<ShippingKitSummaryVo.CategoryDay, Integer> dailyCategoryCount = new HashMap<ShippingKitSummaryVo.CategoryDay, Integer>();
+		Map<String, Integer> categoryCount = new LinkedHashMap<String, Integer>();
+		Map<String, String> categoryPricePerUnit = new HashMap<String, String>();
+		Map<String, String> categoryAmountDue = new HashMap<String, String>();
+		for (String category : CATEGORIES) {
+			categoryCount.put(category, 0);
+			categoryPricePerUnit.put(category, "4.50");
+			for (String day : days) {
+				dailyCategoryCount.put(categoryDay(day, category), 0);
+			}
+		}
+		for (int i = 0; i < sentKits.size(); i++) {
+			String category = CATEGORIES[i % CATEGORIES.length];
+			ShippingKitSummaryVo.CategoryDay categoryDay = categoryDay(days.get(i % days.size()), category);
+			dailyCategoryCount.put(categoryDay, dailyCategoryCount.get(categoryDay) + 1);
+			categoryCount.put(category, categoryCount.get(category) + 1);
+		}
+		double kitsAmountDue = 0;
+		for (String category : CATEGORIES) {
+			double amountDue = categoryCount.get(category) * 4.5;
+			categoryAmountDue.put(category, String.valueOf(amountDue));
+			kitsAmountDue += amountDue;
+		}
+
+		ShippingKitSummaryVo shippingKitSummaryVo = new ShippingKitSummaryVo();
+		shippingKitSummaryVo.setDays(days);
+		shippingKitSummaryVo.setProductCategories(new ArrayList<String>(categoryCount.keySet()));
+		shippingKitSummaryVo.setDailyCategoryCount(dailyCategoryCount);
+		shippingKitSummaryVo.setCategoryCount(categoryCount);
+		shippingKitSummaryVo.setCategoryPricePerUnit(categoryPricePerUnit);
+		shippingKitSummaryVo.setCategoryAmountDue(categoryAmountDue);
+		shippingKitSummaryVo.setAmountDue(String.valueOf(kitsAmountDue));
+		summaryVo.setShippingKitSummaryVo(shippingKitSummaryVo);
+
+		summaryVo.setAmountDue(String.valueOf(postPayPayments * 12.5 + kitsAmountDue + checkRequests * 1.5));
+		return summaryVo;
+	}
+
+	private static ShippingKitSummaryVo.CategoryDay categoryDay(String day, String category) {
+		ShippingKitSummaryVo.CategoryDay categoryDay = new ShippingKitSummaryVo.CategoryDay();
+		categoryDay.day = day;
+		categoryDay.productCategory = category;
+		return categoryDay;
+	}
+
+	private InvoiceLeadVo leadVo(int lead) {
+		InvoiceLeadVo leadVo = new InvoiceLeadVo();
+		leadVo.setCustomerEmail(email(lead));
+		leadVo.setPriorCommission(amount());
+		leadVo.setCurrentCommission(amount());
+		leadVo.setPriorFees(amount());
+		leadVo.setCurrentFees(amount());
+		leadVo.setBillingInterval("Monthly");
+		return leadVo;
+	}
+
+	private InvoiceLeadOrderItemVo orderItemVo(int lead, int item) {
+		InvoiceLeadOrderItemVo orderItemVo = new InvoiceLeadOrderItemVo();
+		orderItemVo.setUuid(uuid(lead * 1000 + item));
+		orderItemVo.setCustomerEmail(email(lead));
+		orderItemVo.setCustomerFullName("Customer " + lead);
+		orderItemVo.setInvoicePeriod("01/01/15 - 01/31/15");
+		orderItemVo.setOrderDate("01/" + String.format("%02d", 1 + item % 31) + "/15");
+		orderItemVo.setProductName("Product " + random.nextInt(500));
+		orderItemVo.setProductCategoryName(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+		orderItemVo.setProductConditionName(CONDITIONS[random.nextInt(CONDITIONS.length)]);
+		orderItemVo.setDeviceFee(amount());
+		orderItemVo.setPartnerProductId("PP-" + random.nextInt(100000));
+		orderItemVo.setPartnerName("Benchmark Partner");
+		return orderItemVo;
+	}
+
+	private PostPayCustomerPayment payment(int index) {
+		PostPayCustomerPayment payment = new PostPayCustomerPayment();
+		payment.setOrderNumber(uuid(index));
+		payment.setEmail(email(index));
+		payment.setFirstName("First" + index);
+		payment.setLastName("Last" + index);
+		payment.setOrderDate(date(index));
+		payment.setPaymentDate(date(index + 3));
+		payment.setProductName("Product " + random.nextInt(500));
+		payment.setProductCategoryName(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+		payment.setProductConditionName(CONDITIONS[random.nextInt(CONDITIONS.length)]);
+		payment.setOrderCommissionPercentage(15.0);
+		payment.setFinalBid(amount());
+		payment.setFinalOffer(amount());
+		payment.setOrderCommission(amount());
+		return payment;
+	}
+
+	private InvoiceCheckRequest checkRequest(int index) {
+		InvoiceCheckRequest checkRequest = new InvoiceCheckRequest();
+		checkRequest.setOrderUid(uuid(index));
+		checkRequest.setCheckNumber(String.valueOf(100000 + index));
+		checkRequest.setCheckDate(date(index));
+		checkRequest.setFirstName("First" + index);
+		checkRequest.setLastName("Last" + index);
+		checkRequest.setCheckAmount(amount());
+		return checkRequest;
+	}
+
+	private InvoiceKitVo kitVo(int index) {
+		InvoiceKitVo kitVo = new InvoiceKitVo();
+		kitVo.setOrderNumber(uuid(index));
+		kitVo.setCustomerEmail(email(index));
+		kitVo.setCustomerName("Customer " + index);
+		kitVo.setShipDate("2015-01-" + String.format("%02d", 1 + index % 31));
+		kitVo.setOrderDate("2015-01-" + String.format("%02d", 1 + index % 31));
+		kitVo.setProductName("Product " + random.nextInt(500));
+		kitVo.setProductCategoryName(CATEGORIES[index % CATEGORIES.length]);
+		return kitVo;
+	}
+
+	private static String uuid(int index) {
+		return String.format("00000000-0000-4000-8000-%012d", index);
+	}
+
+	private static String email(int index) {
+		return "customer" + index + "@example.com";
+	}
+
+	private static Date date(int index) {
+		return new Date(PERIOD_START + (index % 31) * DAY_MILLIS);
+	}
+
+	private double amount() {
+		return random.nextInt(100000) / 100.0;
+	}
+}
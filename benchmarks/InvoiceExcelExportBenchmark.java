@@ -0,0 +1,98 @@
+package com.usell.platform.web.billing;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of {@link InvoiceExcelServiceImpl#exportInvoiceToExcel} per sheet type.
+ * <p>
+ * <code>section</code> selects which part of the synthetic invoice is populated, so the
+ * throughput and the latency percentiles of {@link Mode#SampleTime} can be read per sheet.
+ * <code>ALL</code> fills every section. The allocation rate comes from the gc profiler,
+ * which {@link #main} enables. It is <code>-prof gc</code> when running the benchmark jar.
+ * Everything runs in-process without a database or network, so it can gate a release build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvoiceExcelExportBenchmark {
+
+	/** Drops the export, only its size is kept by a {@link CountingOutputStream}. */
+	private static final OutputStream DISCARD = new OutputStream() {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public enum Section {
+		ALL, SUMMARY, LEADS, DEVICE_DETAILS, ORDERS, KITS, CHECKS
+	}
+
+	@Param({"ALL", "SUMMARY", "LEADS", "DEVICE_DETAILS", "ORDERS", "KITS", "CHECKS"})
+	public Section section;
+
+	/** Rows of the benchmarked section. Leads get a tenth of it, with ten order items each. */
+	@Param({"100", "10000"})
+	public int rows;
+
+	@Param({"false", "true"})
+	public boolean streaming;
+
+	private InvoiceBenchmarkFixture fixture;
+
+	private InvoiceExcelServiceImpl invoiceExcelService;
+
+	@Setup
+	public void setUp() {
+		int leads = section == Section.ALL || section == Section.LEADS || section == Section.DEVICE_DETAILS ? Math.max(1, rows / 10) : 0;
+		int postPayPayments = section == Section.ALL || section == Section.ORDERS ? rows : 0;
+		int shippingKits = section == Section.ALL || section == Section.KITS ? rows : 0;
+		int checkRequests = section == Section.ALL || section == Section.CHECKS ? rows : 0;
+		int orderItemsPerLead = section == Section.LEADS ? 0 : 10;
+
+		fixture = new InvoiceBenchmarkFixture(leads, orderItemsPerLead, postPayPayments, shippingKits, checkRequests);
+		invoiceExcelService = streaming ? new StreamingInvoiceExcelServiceImpl() : new InvoiceExcelServiceImpl();
+		invoiceExcelService.setInvoiceVoBuilder(fixture.getInvoiceVoBuilder());
+	}
+
+	/**
+	 * @return bytes written, returned so the export can't be optimized away
+	 */
+	@Benchmark
+	public long exportInvoice() throws Exception {
+		CountingOutputStream out = new CountingOutputStream(DISCARD);
+		invoiceExcelService.exportInvoiceToExcel(fixture.getInvoice(), fixture.getInvoicePeriod(), fixture.getBuyer(),
+				Boolean.FALSE, out);
+		return out.getCount();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(InvoiceExcelExportBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
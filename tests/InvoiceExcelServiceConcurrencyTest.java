@@ -0,0 +1,111 @@
+package com.usell.platform.web.billing;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exports the same invoice from many threads through one {@link InvoiceExcelServiceImpl}, the
+ * way a singleton serves concurrent requests, and checks every file is byte-identical to the
+ * one rendered on a single thread. Shared styles or date formats would mix up the workbooks.
+ * <p>
+ * The invoice comes from {@link InvoiceBenchmarkFixture}, so the benchmarks sources must be on
+ * the class path. Only the HSSF mode is compared: XLSX files carry the time they were written.
+ */
+public class InvoiceExcelServiceConcurrencyTest {
+
+	private static final int THREADS = 8;
+
+	private static final int EXPORTS_PER_THREAD = 25;
+
+	private InvoiceBenchmarkFixture fixture;
+
+	private InvoiceExcelServiceImpl invoiceExcelService;
+
+	@Before
+	public void setUp() {
+		fixture = new InvoiceBenchmarkFixture(50, 10, 500, 500, 200);
+		invoiceExcelService = new InvoiceExcelServiceImpl();
+		invoiceExcelService.setInvoiceVoBuilder(fixture.getInvoiceVoBuilder());
+	}
+
+	@Test
+	public void concurrentExportsAreByteIdenticalToSingleThreadedExport() throws Exception {
+		final byte[] expected = export(Boolean.FALSE);
+
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<byte[]>>> results = new ArrayList<Future<List<byte[]>>>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit(new Callable<List<byte[]>>() {
+					@Override
+					public List<byte[]> call() throws Exception {
+						start.await();
+						List<byte[]> files = new ArrayList<byte[]>(EXPORTS_PER_THREAD);
+						for (int j = 0; j < EXPORTS_PER_THREAD; j++) {
+							files.add(export(Boolean.FALSE));
+						}
+						return files;
+					}
+				}));
+			}
+			for (Future<List<byte[]>> result : results) {
+				for (byte[] file : result.get(5, TimeUnit.MINUTES)) {
+					assertArrayEquals("Concurrent export differs from the single-threaded one", expected, file);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void concurrentPowerBuyerAndStandardExportsKeepTheirOwnColumns() throws Exception {
+		final byte[] standard = export(Boolean.FALSE);
+		final byte[] powerBuyer = export(Boolean.TRUE);
+
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < THREADS; i++) {
+				final Boolean isPowerBuyer = Boolean.valueOf(i % 2 == 0);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int j = 0; j < EXPORTS_PER_THREAD; j++) {
+							assertArrayEquals("Export mixed up with a concurrent one",
+									isPowerBuyer.booleanValue() ? powerBuyer : standard, export(isPowerBuyer));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get(5, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private byte[] export(Boolean isPowerBuyer) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		invoiceExcelService.exportInvoiceToExcel(fixture.getInvoice(), fixture.getInvoicePeriod(), fixture.getBuyer(),
+				isPowerBuyer, out);
+		return out.toByteArray();
+	}
+}
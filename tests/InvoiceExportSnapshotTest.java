@@ -0,0 +1,113 @@
+package com.usell.platform.web.billing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes the {@link InvoiceBenchmarkFixture} invoice as an {@link InvoiceExportSnapshot} and
+ * checks that rendering the snapshot gives the same bytes as exporting the invoice itself,
+ * for the Excel and the delimited renderers, from heap and direct buffers.
+ */
+public class InvoiceExportSnapshotTest {
+
+	private InvoiceBenchmarkFixture fixture;
+
+	private InvoiceExcelServiceImpl invoiceExcelService;
+
+	private InvoiceDelimitedExportServiceImpl delimitedExportService;
+
+	private byte[] snapshotBytes;
+
+	@Before
+	public void setUp() throws Exception {
+		fixture = new InvoiceBenchmarkFixture(50, 10, 500, 500, 200);
+		invoiceExcelService = new InvoiceExcelServiceImpl();
+		invoiceExcelService.setInvoiceVoBuilder(fixture.getInvoiceVoBuilder());
+		delimitedExportService = new InvoiceDelimitedExportServiceImpl();
+		delimitedExportService.setInvoiceVoBuilder(fixture.getInvoiceVoBuilder());
+
+		InvoiceExportSnapshotWriter writer = new InvoiceExportSnapshotWriter();
+		writer.setInvoiceVoBuilder(fixture.getInvoiceVoBuilder());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeSnapshot(fixture.getInvoice(), fixture.getInvoicePeriod(), fixture.getBuyer(), out);
+		snapshotBytes = out.toByteArray();
+	}
+
+	@Test
+	public void excelFromSnapshotMatchesExcelFromInvoice() throws Exception {
+		for (Boolean isPowerBuyer : new Boolean[] {Boolean.FALSE, Boolean.TRUE}) {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			invoiceExcelService.exportInvoiceToExcel(fixture.getInvoice(), fixture.getInvoicePeriod(), fixture.getBuyer(),
+					isPowerBuyer, expected);
+
+			ByteArrayOutputStream fromHeap = new ByteArrayOutputStream();
+			invoiceExcelService.exportSnapshotToExcel(InvoiceExportSnapshot.read(ByteBuffer.wrap(snapshotBytes)), isPowerBuyer,
+					fromHeap);
+			assertArrayEquals("Excel from a heap snapshot, power buyer " + isPowerBuyer, expected.toByteArray(),
+					fromHeap.toByteArray());
+
+			ByteArrayOutputStream fromDirect = new ByteArrayOutputStream();
+			invoiceExcelService.exportSnapshotToExcel(InvoiceExportSnapshot.read(direct(snapshotBytes)), isPowerBuyer, fromDirect);
+			assertArrayEquals("Excel from a direct snapshot, power buyer " + isPowerBuyer, expected.toByteArray(),
+					fromDirect.toByteArray());
+		}
+	}
+
+	@Test
+	public void delimitedFromSnapshotMatchesDelimitedFromInvoice() throws Exception {
+		for (InvoiceDelimitedExportServiceImpl.Format format : InvoiceDelimitedExportServiceImpl.Format.values()) {
+			delimitedExportService.setFormat(format);
+			for (Boolean isPowerBuyer : new Boolean[] {Boolean.FALSE, Boolean.TRUE}) {
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				delimitedExportService.exportInvoiceToExcel(fixture.getInvoice(), fixture.getInvoicePeriod(), fixture.getBuyer(),
+						isPowerBuyer, expected);
+
+				ByteArrayOutputStream fromSnapshot = new ByteArrayOutputStream();
+				delimitedExportService.exportSnapshot(InvoiceExportSnapshot.read(direct(snapshotBytes)), isPowerBuyer,
+						fromSnapshot);
+				assertArrayEquals(format + " from a snapshot, power buyer " + isPowerBuyer, expected.toByteArray(),
+						fromSnapshot.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void snapshotKeepsEveryRow() {
+		InvoiceExportSnapshot snapshot = InvoiceExportSnapshot.read(ByteBuffer.wrap(snapshotBytes));
+		assertEquals(InvoiceExportSnapshot.VERSION, snapshot.getVersion());
+		try (InvoiceSections sections = InvoiceSections.build(fixture.getInvoiceVoBuilder(), fixture.getInvoice(),
+				fixture.getInvoicePeriod(), fixture.getBuyer())) {
+			assertEquals(sections.getLeads().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.LEADS));
+			assertEquals(sections.getDeviceDetails().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.DEVICE_DETAILS));
+			assertEquals(sections.getPostPayOrders().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.POST_PAY_ORDERS));
+			assertEquals(sections.getSentKits().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.SENT_KITS));
+			assertEquals(sections.getResentKits().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.RESENT_KITS));
+			assertEquals(sections.getCheckRequests().size(), snapshot.getRowCount(InvoiceExportSnapshot.Section.CHECK_REQUESTS));
+		}
+	}
+
+	@Test
+	public void snapshotOfAnotherMajorVersionIsRefused() {
+		byte[] bytes = snapshotBytes.clone();
+		bytes[4]++;
+		try {
+			InvoiceExportSnapshot.read(ByteBuffer.wrap(bytes));
+			fail("Read a snapshot of another major version");
+		} catch (IllegalArgumentException expected) {
+			// refused
+		}
+	}
+
+	private static ByteBuffer direct(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+}